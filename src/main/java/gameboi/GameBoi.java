@@ -25,20 +25,27 @@ package main.java.gameboi;
 
 import main.java.gameboi.cpu.CPU;
 import main.java.gameboi.gpu.GPU;
+import main.java.gameboi.memory.CountingGBMem;
 import main.java.gameboi.memory.GBMem;
+import main.java.gameboi.memory.cartridge.UnsupportedCartridgeException;
 import main.java.gameboi.joypad.JoyPad;
+import main.java.gameboi.library.RomInfo;
+import main.java.gameboi.library.RomLibrary;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.io.File;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * TODO Better error handling
@@ -49,12 +56,18 @@ public class GameBoi {
     private CPU z80;
     private GPU gpu;
     private Path current_rom;
+    //battery save picked by the caller for the current rom, null for the default
+    private Path batterySave;
     private JoyPad joypad;
+    //names of roms that run without idle loop skipping
+    private final Set<String> idleSkippingOff = new HashSet<>();
 
     //saving/loading info TODO Load from environment variables
     private static Path home = null;
     private static Path saves = null;
     private static Path roms = null;
+    //catalogue of roms, made on first use
+    private static RomLibrary library = null;
 
     //for saving state
     private static final int CPU_START_BYTE = 0;
@@ -62,6 +75,14 @@ public class GameBoi {
     private static final int MEM_LAST_BYTE = CPU_LAST_BYTE + GBMem.byteSaveLength();
     private static final int GPU_LAST_BYTE = MEM_LAST_BYTE + GPU.byteSaveLength();
 
+    //clock cycles in one frame
+    private static final int CYCLES_PER_FRAME = 70244;
+    //frames between background writes of battery ram (~3 seconds)
+    private static final int BATTERY_FLUSH_FRAMES = 180;
+    private int framesSinceBatteryFlush;
+    //catch cartridge clocks up with the time a save spent on disk
+    private boolean realTimeClockSync = true;
+
     /**
      * runs the gameboi emulator locally
      * (not configured for server)
@@ -87,6 +108,8 @@ public class GameBoi {
     /**
      * local constructor
      * @param rom path to rom file to load
+     * @throws UnsupportedCartridgeException if the rom's memory bank
+     *     controller isn't supported
      */
     public GameBoi(Path rom) {
         mem = new GBMem();
@@ -102,6 +125,7 @@ public class GameBoi {
         if (home == null || roms == null || saves == null) {
             makeHome();
         }
+        attachBattery(rom);
     }
 
     /**
@@ -110,7 +134,20 @@ public class GameBoi {
      * If makeHome has not been called, calls it
      */
     public GameBoi() {
-        mem = new GBMem();
+        this(false);
+    }
+
+    /**
+     * Creates a GameBoi object, optionally counting memory
+     * accesses (see getMemoryReport). Without counting the
+     * plain memory is used and there is no overhead
+     *
+     * If makeHome has not been called, calls it
+     *
+     * @param countMemoryAccesses true to count accesses by region
+     */
+    public GameBoi(boolean countMemoryAccesses) {
+        mem = countMemoryAccesses ? new CountingGBMem() : new GBMem();
         z80 = new CPU(mem);
         gpu = new GPU(mem, z80);
         joypad = new JoyPad(z80, mem);
@@ -121,23 +158,150 @@ public class GameBoi {
     }
 
     /**
-     * loads a rom based on path
+     * loads a rom based on path, its battery ram is
+     * kept in {home | .GBoi}/saves/"rom name".sav
      *
      * @param rom
+     * @throws UnsupportedCartridgeException if the rom's memory bank
+     *     controller isn't supported, the current rom keeps running
      */
-    public void loadRom(Path rom) {
-        current_rom = rom;
+    public void loadRom(Path rom) throws UnsupportedCartridgeException {
+        loadRom(rom, null);
+    }
+
+    /**
+     * loads a rom based on path, keeping its battery ram in the
+     * given file. Sessions running the same rom each pass their own
+     * file, a file another emulator already holds isn't attached
+     *
+     * @param rom
+     * @param batterySave .sav file for the rom's battery ram,
+     *     null for {home | .GBoi}/saves/"rom name".sav
+     * @throws UnsupportedCartridgeException if the rom's memory bank
+     *     controller isn't supported, the current rom keeps running
+     */
+    public void loadRom(Path rom, Path batterySave) throws UnsupportedCartridgeException {
         mem.loadRom(rom);
+        current_rom = rom;
+        this.batterySave = batterySave;
         if (mem.isGBCRom()) {
             gpu.setGBCMode(true);
             z80.setGBCMode(true);
         }
+        z80.setIdleLoopSkipping(!idleSkippingOff.contains(rom.getFileName().toString()));
+        attachBattery(rom);
+    }
+
+    /**
+     * Keeps the rom's battery ram (if it has any) in the save picked
+     * for it, or {home | .GBoi}/saves/"rom name".sav
+     *
+     * @param rom path of the loaded rom
+     */
+    private void attachBattery(Path rom) {
+        if (batterySave != null) {
+            mem.attachBatteryFile(batterySave);
+        } else if (saves != null) {
+            String name = rom.getFileName().toString();
+            int extension = name.lastIndexOf('.');
+            if (extension > 0) {
+                name = name.substring(0, extension);
+            }
+            mem.attachBatteryFile(saves.resolve(name + ".sav"));
+        }
+        framesSinceBatteryFlush = 0;
+    }
+
+    /**
+     * Turns idle loop skipping on or off for the current rom,
+     * remembered for when it is loaded again
+     *
+     * Skipping fast-forwards loops that only poll LY/STAT/IF,
+     * roms that misbehave with it can have it turned off
+     *
+     * @param enabled true to skip idle loops (default)
+     */
+    public void setIdleLoopSkipping(boolean enabled) {
+        if (current_rom != null) {
+            String name = current_rom.getFileName().toString();
+            if (enabled) {
+                idleSkippingOff.remove(name);
+            } else {
+                idleSkippingOff.add(name);
+            }
+        }
+        z80.setIdleLoopSkipping(enabled);
+    }
+
+    /**
+     * turns superinstructions (common instruction pairs run
+     * as one handler) on or off
+     *
+     * @param enabled true to fuse pairs (default)
+     */
+    public void setInstructionFusion(boolean enabled) {
+        z80.setInstructionFusion(enabled);
+    }
+
+    /**
+     * Cartridge real time clocks (MBC3) count emulated time. With
+     * sync on, loading a save also moves them on by the real time
+     * since the save was made, as a battery would have
+     *
+     * @param enabled true to sync on loadSave (default)
+     */
+    public void setRealTimeClockSync(boolean enabled) {
+        realTimeClockSync = enabled;
+    }
+
+    /**
+     * Report of the fused instruction pairs the current rom
+     * ran most since it was loaded
+     *
+     * @return rom name followed by one line per pair
+     */
+    public String getFusionReport() {
+        String name = (current_rom == null) ? "unknown" : current_rom.getFileName().toString();
+        return "fused pairs for " + name + "\n" + z80.getFusionReport();
+    }
+
+    /**
+     * Memory accesses by region and bank, bank switches and DMA
+     * bytes since the last call (or since the rom was loaded).
+     * Called once per frame or per second it gives rates
+     *
+     * @return the report, empty unless created to count memory accesses
+     */
+    public String getMemoryReport() {
+        if (!(mem instanceof CountingGBMem)) {
+            return "";
+        }
+        CountingGBMem counting = (CountingGBMem) mem;
+        String report = counting.getReport();
+        counting.resetCounts();
+        return report;
+    }
+
+    /**
+     * @return clock cycles skipped in idle loops since the rom was loaded
+     */
+    public long getIdleCyclesSkipped() {
+        return z80.getIdleCyclesSkipped();
+    }
+
+    /**
+     * @return number of idle loop skips since the rom was loaded
+     */
+    public long getIdleLoopSkips() {
+        return z80.getIdleLoopSkips();
     }
 
     /**
      *  Loads a rom from the /save file
      *
      * @param rom String - name of rom to load
+     * @return true on success, false if there is no such rom
+     *     or its cartridge type isn't supported
      */
     public boolean loadRom(String rom) {
         if (!rom.endsWith(".gb")) {
@@ -145,7 +309,12 @@ public class GameBoi {
         }
         File romFile = new File(roms.toString() + "/" + rom);
         if (romFile.isFile()) {
-            loadRom(romFile.toPath());
+            try {
+                loadRom(romFile.toPath());
+            } catch (UnsupportedCartridgeException e) {
+                System.err.println("Unable to load " + rom + ": " + e.getMessage());
+                return false;
+            }
             return true;
         }
         return false;
@@ -266,19 +435,70 @@ public class GameBoi {
         String file_path = saves.toString() + "/" + name;
         try {
             byte[] saveData = Files.readAllBytes(new File(file_path).toPath());
-            //load the ROM into memory first
-            loadRom(getSavedRomPath(Arrays.copyOfRange(saveData, GPU_LAST_BYTE, saveData.length)));
-            //Load the state of ROM
-            z80.loadState(Arrays.copyOfRange(saveData, CPU_START_BYTE, CPU_LAST_BYTE));
+            //load the ROM into memory first, keeping this session's battery save
+            Path rom = getSavedRomPath(Arrays.copyOfRange(saveData, GPU_LAST_BYTE, saveData.length));
+            loadRom(rom, rom.equals(current_rom) ? batterySave : null);
+            //Load the state of ROM, memory first so the cpu timers
+            //and the gpu pick up their registers
             mem.loadState(Arrays.copyOfRange(saveData, CPU_LAST_BYTE, MEM_LAST_BYTE));
+            z80.loadState(Arrays.copyOfRange(saveData, CPU_START_BYTE, CPU_LAST_BYTE));
             gpu.loadState(Arrays.copyOfRange(saveData, MEM_LAST_BYTE, GPU_LAST_BYTE));
-        } catch(IOException | IndexOutOfBoundsException e) {
+            if (realTimeClockSync) {
+                mem.resumeClock();
+            }
+        } catch(IOException | IndexOutOfBoundsException | UnsupportedCartridgeException e) {
             System.err.println("FAILED TO LOAD: " + file_path + " " + e.getLocalizedMessage());
             return false;
         }
         return true;
     }
 
+    /**
+     * size of a snapshot of the loaded rom, the same
+     * for every snapshot until another rom is loaded
+     *
+     * @return bytes saveSnapshot() writes
+     */
+    public int getSnapshotSize() {
+        return CPU.SNAPSHOT_SIZE + GPU.SNAPSHOT_SIZE + mem.snapshotSize();
+    }
+
+    /**
+     * @return an off-heap buffer that holds one snapshot
+     */
+    public ByteBuffer newSnapshot() {
+        return ByteBuffer.allocateDirect(getSnapshotSize());
+    }
+
+    /**
+     * Copies the complete machine state into snapshot, for rewind
+     * or run-ahead. Unlike saveGame() nothing is allocated and the
+     * state restores exactly: cpu (with the clock and pending
+     * events) at 0, gpu after it, then memory with all of ram in
+     * one block and the cartridge last
+     *
+     * @param snapshot at least getSnapshotSize() bytes (newSnapshot())
+     */
+    public void saveSnapshot(ByteBuffer snapshot) {
+        snapshot.position(0);
+        z80.saveSnapshot(snapshot);
+        gpu.saveSnapshot(snapshot);
+        mem.saveSnapshot(snapshot);
+    }
+
+    /**
+     * Returns to the state in a snapshot taken
+     * with the same rom loaded
+     *
+     * @param snapshot from saveSnapshot()
+     */
+    public void loadSnapshot(ByteBuffer snapshot) {
+        snapshot.position(0);
+        z80.loadSnapshot(snapshot);
+        gpu.loadSnapshot(snapshot);
+        mem.loadSnapshot(snapshot);
+    }
+
     /**
      *
      * interface to keyPressed event in joypad
@@ -323,6 +543,27 @@ public class GameBoi {
         gpu.drawBuffer(buffer);
     }
 
+    /**
+     * advances gameboy state one frame
+     * draws the frame into pixels as ARGB ints
+     * @param pixels to draw frame into
+     *               must be 23040 long
+     */
+    public void drawFrameToBuffer(int[] pixels) {
+        renderFrame();
+        gpu.getFrameBuffer().get(pixels);
+    }
+
+    /**
+     * The screen as ARGB pixels, 160 per row, see
+     * GPU.getFrameBuffer()
+     *
+     * @return read only view of the screen
+     */
+    public IntBuffer getFrameBuffer() {
+        return gpu.getFrameBuffer();
+    }
+
 
     /**
      * gets all files in dir with endings that are in a
@@ -361,6 +602,23 @@ public class GameBoi {
         return getFiles(roms, endings);
     }
 
+    /**
+     * Get the roms in the rom directory with their header
+     * information. Only roms added or changed since the last
+     * call are read, the rest comes from the index file
+     * ({home | .GBoi}/roms.idx)
+     *
+     * @return info of every rom, sorted by file name
+     */
+    public List<RomInfo> getRomLibrary() {
+        synchronized (GameBoi.class) {
+            if (library == null) {
+                library = new RomLibrary(roms, home.resolve("roms.idx"), ".gb");
+            }
+        }
+        return library.scan();
+    }
+
     /**
      *
      * Get the current saves
@@ -376,13 +634,15 @@ public class GameBoi {
     /**
      * advances gameboy state one frame
      * draws the frame onto the screen
+     *
+     * the gpu and timers run from events on the cpu's scheduler,
+     * battery ram is written out every BATTERY_FLUSH_FRAMES
      */
     private void renderFrame() {
-        int count = 0, cycles = 0;
-        while (count < 70244) {
-            cycles = z80.ExecuteOpcode();
-            gpu.updateGraphics(cycles);
-            count += cycles;
+        z80.runFor(CYCLES_PER_FRAME);
+        if (++framesSinceBatteryFlush >= BATTERY_FLUSH_FRAMES) {
+            framesSinceBatteryFlush = 0;
+            mem.flushBatteryRam();
         }
     }
 }
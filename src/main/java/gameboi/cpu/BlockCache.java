@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.cpu;
+
+import main.java.gameboi.memory.CodeWatcher;
+import main.java.gameboi.memory.GBMem;
+
+/**
+ * Profiles block start addresses and keeps the compiled blocks
+ *
+ * <p>
+ * Blocks are keyed by where their code physically lives: the fixed ROM
+ * bank, the switchable ROM bank (one table per bank), the work RAM
+ * (by wram bank for 0xd000-0xdfff) or the high RAM. Other areas are
+ * always interpreted. A start address gets compiled once it has been
+ * executed COMPILE_THRESHOLD times.
+ *
+ * <p>
+ * Blocks in RAM are invalidated when one of their bytes is written
+ * (GBMem reports writes to watched pages). A block stops after the
+ * current instruction if it gets invalidated while running, or if the
+ * bank it is running from is switched.
+ *
+ * @author tomis007
+ */
+final class BlockCache implements CodeWatcher {
+    //executions before a start address is compiled
+    private static final int COMPILE_THRESHOLD = 32;
+    //extra executions before an invalidated start is compiled again
+    private static final int RECOMPILE_DELAY = 1024;
+    //count for starts that can't be compiled
+    private static final int UNCOMPILABLE = Integer.MIN_VALUE;
+
+    private final GBMem memory;
+    private final Decoder decoder;
+    private final IdleLoops idleLoops;
+    private final BlockCompiler compiler;
+    private boolean enabled;
+
+    private Region rom0;
+    private final Region[] romBanks;
+    private Region wram;
+    private Region hram;
+
+    //block currently executing, if any
+    private CompiledBlock running;
+
+    /**
+     * Blocks and execution counts for one memory area
+     * coverage (RAM only) counts the blocks containing each byte
+     */
+    private static final class Region {
+        final CompiledBlock[] blocks;
+        final int[] counts;
+        final int[] coverage;
+
+        Region(int size, boolean writable) {
+            blocks = new CompiledBlock[size];
+            counts = new int[size];
+            coverage = writable ? new int[size] : null;
+        }
+    }
+
+    /**
+     * @param cpu to run blocks on
+     * @param memory to compile code from, the cache registers as its CodeWatcher
+     * @param decoder to decode instructions with, reset along with the blocks
+     * @param idleLoops found in rom, reset along with the blocks
+     */
+    BlockCache(CPU cpu, GBMem memory, Decoder decoder, IdleLoops idleLoops) {
+        this.memory = memory;
+        this.decoder = decoder;
+        this.idleLoops = idleLoops;
+        compiler = new BlockCompiler(cpu, decoder);
+        romBanks = new Region[0x200];
+        enabled = true;
+        memoryReset();
+        memory.setCodeWatcher(this);
+    }
+
+    /**
+     * turns block compilation on or off,
+     * when off every instruction is interpreted
+     *
+     * @param enabled true to compile hot blocks
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Makes the running block, if any, stop after
+     * its current instruction
+     */
+    void stopRunning() {
+        if (running != null) {
+            running.stop = true;
+        }
+    }
+
+    /**
+     * Runs the compiled block at pc
+     *
+     * @param pc address of the next instruction
+     * @return clock cycles taken, 0 if there is no block at pc
+     *     (the instruction has to be interpreted)
+     */
+    int runBlock(int pc) {
+        if (!enabled || pc < 0) {
+            return 0;
+        }
+        Region region;
+        int index;
+        int limit;
+        if (pc < 0x4000) {
+            region = rom0;
+            index = pc;
+            limit = 0x4000;
+        } else if (pc < 0x8000) {
+            region = romBank(memory.getRomBank());
+            index = pc - 0x4000;
+            limit = 0x8000;
+        } else if (pc < 0xc000) {
+            return 0;
+        } else if (pc < 0xe000) {
+            region = wram;
+            index = wramIndex(pc);
+            limit = (pc < 0xd000) ? 0xd000 : 0xe000;
+        } else if (pc >= 0xff80 && pc < 0xffff) {
+            region = hram;
+            index = pc - 0xff80;
+            limit = 0xffff;
+        } else {
+            return 0;
+        }
+
+        CompiledBlock block = region.blocks[index];
+        if (block == null) {
+            if (++region.counts[index] < COMPILE_THRESHOLD) {
+                return 0;
+            }
+            block = compile(region, index, pc, limit);
+            if (block == null) {
+                return 0;
+            }
+        }
+
+        running = block;
+        block.stop = false;
+        int cycles = block.execute();
+        running = null;
+        return cycles;
+    }
+
+    /**
+     * compiles and installs the block at pc
+     */
+    private CompiledBlock compile(Region region, int index, int pc, int limit) {
+        CompiledBlock block = compiler.compile(pc, limit);
+        if (block == null) {
+            region.counts[index] = UNCOMPILABLE;
+            return null;
+        }
+        region.blocks[index] = block;
+        if (region.coverage != null) {
+            for (int i = index; i < index + block.end - block.start; ++i) {
+                region.coverage[i]++;
+            }
+            memory.watchCode(block.start, block.end);
+        }
+        return block;
+    }
+
+    /**
+     * table for a switchable rom bank
+     */
+    private Region romBank(int bank) {
+        bank &= 0x1ff;
+        if (romBanks[bank] == null) {
+            romBanks[bank] = new Region(0x4000, false);
+        }
+        return romBanks[bank];
+    }
+
+    /**
+     * index into the work ram table for an address in 0xc000-0xdfff
+     */
+    private int wramIndex(int address) {
+        if (address < 0xd000) {
+            return address - 0xc000;
+        }
+        return memory.getWorkRamBank() * 0x1000 + (address - 0xd000);
+    }
+
+    /**
+     * Drops the blocks containing the written byte, or stops
+     * the running block if its bank was switched out
+     *
+     * @param address that was written to
+     */
+    @Override
+    public void codeWritten(int address) {
+        if (address < 0x8000) {
+            if (running != null && running.start >= 0x4000 && running.start < 0x8000) {
+                running.stop = true;
+            }
+        } else if (address == 0xff70) {
+            if (running != null && running.start >= 0xd000 && running.start < 0xe000) {
+                running.stop = true;
+            }
+        } else if (address >= 0xc000 && address < 0xe000) {
+            invalidate(wram, wramIndex(address));
+        } else if (address >= 0xff80 && address < 0xffff) {
+            invalidate(hram, address - 0xff80);
+        }
+    }
+
+    /**
+     * removes every block in region that contains index
+     */
+    private void invalidate(Region region, int index) {
+        if (region.coverage[index] == 0) {
+            return;
+        }
+        int first = Math.max(0, index - BlockCompiler.MAX_BLOCK_BYTES + 1);
+        for (int i = index; i >= first; --i) {
+            CompiledBlock block = region.blocks[i];
+            if (block != null && i + block.end - block.start > index) {
+                region.blocks[i] = null;
+                region.counts[i] = -RECOMPILE_DELAY;
+                for (int j = i; j < i + block.end - block.start; ++j) {
+                    region.coverage[j]--;
+                }
+                block.stop = true;
+            }
+        }
+    }
+
+    /**
+     * Throws away the blocks compiled from ram, the
+     * rom blocks and decoded instructions stay
+     */
+    @Override
+    public void ramReplaced() {
+        if (running != null) {
+            running.stop = true;
+        }
+        wram = new Region(0x8000, true);
+        hram = new Region(0x7f, true);
+        compiler.resetRam();
+    }
+
+    /**
+     * Throws away every compiled block, pre-decoded instruction
+     * and known idle loop
+     */
+    @Override
+    public void memoryReset() {
+        if (running != null) {
+            running.stop = true;
+        }
+        rom0 = new Region(0x4000, false);
+        for (int i = 0; i < romBanks.length; ++i) {
+            romBanks[i] = null;
+        }
+        wram = new Region(0x8000, true);
+        hram = new Region(0x7f, true);
+        compiler.reset();
+        decoder.reset();
+        idleLoops.reset();
+    }
+}
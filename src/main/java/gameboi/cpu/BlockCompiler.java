@@ -0,0 +1,487 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.cpu;
+
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns basic blocks of gameboy code into JVM classes
+ *
+ * <p>
+ * A block starts at a given address and runs until the first
+ * instruction that can change control flow (jumps, calls, returns,
+ * restarts, HALT, STOP, DI, EI, RETI), an illegal opcode, the end of
+ * the memory region it started in or MAX_BLOCK_INSTRUCTIONS.
+ *
+ * <p>
+ * Instructions are decoded by the Decoder. For every instruction the
+ * generated execute() method sets pc past it, calls the instruction's
+ * Opcode handler through its own field with the immediate operand as
+ * a constant and advances the clock. Each call site only ever sees one
+ * handler, so the JIT can inline the handlers into the block instead
+ * of going through the megamorphic dispatch table. The block gives
+ * control back early once it has used CYCLE_BUDGET cycles, or when
+ * CompiledBlock.stop is set.
+ *
+ * <p>
+ * Classes are written directly as version 49 class files (no stack
+ * map frames needed) and defined by a BlockLoader, which is replaced
+ * on reset() so old blocks can be unloaded. RAM blocks get dropped
+ * while the game runs, so they have loaders of their own: one is
+ * replaced on resetRam() and after RAM_BLOCKS_PER_LOADER blocks, and
+ * is unloaded once none of its blocks are left.
+ *
+ * @author tomis007
+ */
+final class BlockCompiler {
+    //longest block, keeps generated methods small
+    static final int MAX_BLOCK_INSTRUCTIONS = 32;
+    //instructions are at most 3 bytes long
+    static final int MAX_BLOCK_BYTES = MAX_BLOCK_INSTRUCTIONS * 3;
+    //cycles after which a block returns so interrupts get checked
+    private static final int CYCLE_BUDGET = 64;
+    //ram blocks defined before a new loader is started
+    private static final int RAM_BLOCKS_PER_LOADER = 64;
+
+    //opcodes with no instruction
+    private static final boolean[] ILLEGAL = new boolean[0x100];
+    //opcodes that end a block
+    private static final boolean[] ENDS_BLOCK = new boolean[0x100];
+
+    static {
+        int[] illegal = {0xd3, 0xdb, 0xdd, 0xe3, 0xe4, 0xeb, 0xec, 0xed, 0xf4, 0xfc, 0xfd};
+        for (int op : illegal) {
+            ILLEGAL[op] = true;
+        }
+        int[] exits = {0x18, 0x20, 0x28, 0x30, 0x38, 0xc2, 0xc3, 0xca, 0xd2,
+            0xda, 0xe9, 0xc4, 0xcc, 0xcd, 0xd4, 0xdc, 0xc0, 0xc8, 0xc9, 0xd0,
+            0xd8, 0xd9, 0xc7, 0xcf, 0xd7, 0xdf, 0xe7, 0xef, 0xf7, 0xff,
+            0x76, 0x10, 0xf3, 0xfb};
+        for (int op : exits) {
+            ENDS_BLOCK[op] = true;
+        }
+    }
+
+    private static final String BLOCK_PACKAGE = "main/java/gameboi/cpu/blocks/";
+    private static final String SUPER_CLASS = "main/java/gameboi/cpu/CompiledBlock";
+    private static final String OPCODE_CLASS = "main/java/gameboi/cpu/Opcode";
+    private static final String CPU_DESC = "Lmain/java/gameboi/cpu/CPU;";
+    private static final String OPCODE_DESC = "L" + OPCODE_CLASS + ";";
+
+    private final CPU cpu;
+    private final Decoder decoder;
+    private BlockLoader loader;
+    //loader for blocks in ram and the blocks defined in it
+    private BlockLoader ramLoader;
+    private int ramBlocks;
+    private int serial;
+
+    /**
+     * @param cpu the blocks run on
+     * @param decoder to decode instructions with
+     */
+    BlockCompiler(CPU cpu, Decoder decoder) {
+        this.cpu = cpu;
+        this.decoder = decoder;
+        reset();
+    }
+
+    /**
+     * drops the class loader of all blocks compiled so far
+     */
+    void reset() {
+        loader = new BlockLoader(CompiledBlock.class.getClassLoader());
+        resetRam();
+    }
+
+    /**
+     * drops the class loader of the ram blocks compiled so far,
+     * rom blocks keep theirs
+     */
+    void resetRam() {
+        ramLoader = new BlockLoader(CompiledBlock.class.getClassLoader());
+        ramBlocks = 0;
+    }
+
+    /**
+     * Compiles the block starting at start
+     *
+     * @param start address of the first instruction
+     * @param limit end of the memory region, the block stays below it
+     * @return the block, or null if there is nothing to compile
+     */
+    CompiledBlock compile(int start, int limit) {
+        Opcode[] handlers = new Opcode[MAX_BLOCK_INSTRUCTIONS];
+        int[] fetch = new int[MAX_BLOCK_INSTRUCTIONS];
+        int[] operands = new int[MAX_BLOCK_INSTRUCTIONS];
+        int count = 0;
+        int address = start;
+
+        while (count < MAX_BLOCK_INSTRUCTIONS) {
+            int op = decoder.decode(address, limit);
+            if (op == Decoder.UNCACHEABLE) {
+                break;
+            }
+            int handler = Decoder.handler(op);
+            if (handler < 0x100 && ILLEGAL[handler]) {
+                break;
+            }
+            address += Decoder.length(op);
+            handlers[count] = cpu.getHandler(handler);
+            fetch[count] = address;
+            operands[count] = Decoder.operand(op);
+            count++;
+            if (handler < 0x100 && ENDS_BLOCK[handler]) {
+                break;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        BlockLoader target = loader;
+        if (start >= 0x8000) {
+            if (ramBlocks == RAM_BLOCKS_PER_LOADER) {
+                resetRam();
+            }
+            ramBlocks++;
+            target = ramLoader;
+        }
+        String name = BLOCK_PACKAGE + "Block" + Integer.toHexString(start) + "_" + serial++;
+        try {
+            Class<?> blockClass = target.define(name.replace('/', '.'), emit(name, fetch, operands, count));
+            Constructor<?> constructor = blockClass.getConstructor(CPU.class, Opcode[].class);
+            CompiledBlock block = (CompiledBlock)constructor.newInstance(cpu, handlers);
+            block.start = start;
+            block.end = address;
+            return block;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("Unable to compile block at 0x" + Integer.toHexString(start)
+                    + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the class file for a block
+     *
+     * @param name internal name of the class
+     * @param fetch pc after each instruction
+     * @param operands immediate operand of each instruction
+     * @param count number of instructions
+     * @return class file bytes
+     */
+    private static byte[] emit(String name, int[] fetch, int[] operands, int count) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef(SUPER_CLASS);
+        int code = pool.utf8("Code");
+        int[] handlerFields = new int[count];
+        for (int i = 0; i < count; ++i) {
+            handlerFields[i] = pool.member(9, name, "h" + i, OPCODE_DESC);
+        }
+
+        //constructor(CPU cpu, Opcode[] handlers)
+        Bytes init = new Bytes();
+        init.u1(0x2a); //aload_0
+        init.u1(0x2b); //aload_1
+        init.u1(0xb7); //invokespecial
+        init.u2(pool.member(10, SUPER_CLASS, "<init>", "(" + CPU_DESC + ")V"));
+        for (int i = 0; i < count; ++i) {
+            init.u1(0x2a); //aload_0
+            init.u1(0x2c); //aload_2
+            pushInt(init, pool, i);
+            init.u1(0x32); //aaload
+            init.u1(0xb5); //putfield
+            init.u2(handlerFields[i]);
+        }
+        init.u1(0xb1); //return
+
+        //int execute(), local 1 is the cycle total, local 2 the last instruction
+        int fetchMethod = pool.member(10, SUPER_CLASS, "fetch", "(I)V");
+        int tickMethod = pool.member(10, SUPER_CLASS, "tick", "(I)V");
+        int executeMethod = pool.member(11, OPCODE_CLASS, "execute", "(I)I");
+        int stopField = pool.member(9, SUPER_CLASS, "stop", "Z");
+        Bytes run = new Bytes();
+        int[] exitJumps = new int[count * 2];
+        int jumps = 0;
+        run.u1(0x03); //iconst_0
+        run.u1(0x3c); //istore_1
+        for (int i = 0; i < count; ++i) {
+            run.u1(0x2a); //aload_0
+            pushInt(run, pool, fetch[i]);
+            run.u1(0xb6); //invokevirtual fetch
+            run.u2(fetchMethod);
+            run.u1(0x2a); //aload_0
+            run.u1(0xb4); //getfield h<i>
+            run.u2(handlerFields[i]);
+            pushInt(run, pool, operands[i]);
+            run.u1(0xb9); //invokeinterface execute
+            run.u2(executeMethod);
+            run.u1(2);
+            run.u1(0);
+            run.u1(0x3d); //istore_2
+            run.u1(0x2a); //aload_0
+            run.u1(0x1c); //iload_2
+            run.u1(0xb6); //invokevirtual tick
+            run.u2(tickMethod);
+            run.u1(0x1b); //iload_1
+            run.u1(0x1c); //iload_2
+            run.u1(0x60); //iadd
+            run.u1(0x3c); //istore_1
+            if (i < count - 1) {
+                run.u1(0x1b); //iload_1
+                pushInt(run, pool, CYCLE_BUDGET);
+                exitJumps[jumps++] = run.length();
+                run.u1(0xa2); //if_icmpge exit
+                run.u2(0);
+                run.u1(0x2a); //aload_0
+                run.u1(0xb4); //getfield stop
+                run.u2(stopField);
+                exitJumps[jumps++] = run.length();
+                run.u1(0x9a); //ifne exit
+                run.u2(0);
+            }
+        }
+        int exit = run.length();
+        for (int i = 0; i < jumps; ++i) {
+            run.patch2(exitJumps[i] + 1, exit - exitJumps[i]);
+        }
+        run.u1(0x1b); //iload_1
+        run.u1(0xac); //ireturn
+
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("(" + CPU_DESC + "[" + OPCODE_DESC + ")V");
+        int executeName = pool.utf8("execute");
+        int executeDesc = pool.utf8("()I");
+
+        Bytes out = new Bytes();
+        out.u4(0xcafebabe);
+        out.u2(0);
+        out.u2(49);
+        out.u2(pool.count());
+        out.append(pool.bytes());
+        out.u2(0x0031); //public final super
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0); //interfaces
+        out.u2(count);
+        for (int i = 0; i < count; ++i) {
+            out.u2(0x0012); //private final
+            out.u2(pool.utf8("h" + i));
+            out.u2(pool.utf8(OPCODE_DESC));
+            out.u2(0);
+        }
+        out.u2(2);
+        writeMethod(out, initName, initDesc, code, init);
+        writeMethod(out, executeName, executeDesc, code, run);
+        out.u2(0); //class attributes
+        return out.toByteArray();
+    }
+
+    /**
+     * writes a public method with a Code attribute,
+     * max stack 3 and max locals 3 cover both block methods
+     */
+    private static void writeMethod(Bytes out, int name, int desc, int code, Bytes body) {
+        out.u2(0x0001); //public
+        out.u2(name);
+        out.u2(desc);
+        out.u2(1);
+        out.u2(code);
+        out.u4(12 + body.length());
+        out.u2(3); //max stack
+        out.u2(3); //max locals
+        out.u4(body.length());
+        out.append(body);
+        out.u2(0); //exception table
+        out.u2(0); //attributes
+    }
+
+    /**
+     * pushes an int constant with the shortest instruction
+     */
+    private static void pushInt(Bytes code, ConstantPool pool, int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(0x03 + value); //iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(0x10); //bipush
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(0x11); //sipush
+            code.u2(value);
+        } else {
+            code.u1(0x13); //ldc_w
+            code.u2(pool.integer(value));
+        }
+    }
+
+    /**
+     * growable big endian byte buffer
+     */
+    private static final class Bytes {
+        private byte[] buf = new byte[256];
+        private int length;
+
+        void u1(int value) {
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[length++] = (byte)value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void patch2(int position, int value) {
+            buf[position] = (byte)(value >> 8);
+            buf[position + 1] = (byte)value;
+        }
+
+        void append(Bytes other) {
+            for (int i = 0; i < other.length; ++i) {
+                u1(other.buf[i]);
+            }
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, length);
+        }
+    }
+
+    /**
+     * class file constant pool, entries are shared by key
+     */
+    private static final class ConstantPool {
+        private final Bytes bytes = new Bytes();
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            Integer index = entries.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            bytes.u1(1);
+            bytes.u2(data.length);
+            for (byte b : data) {
+                bytes.u1(b);
+            }
+            return add("U" + value);
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            bytes.u1(7);
+            bytes.u2(nameIndex);
+            return add("C" + name);
+        }
+
+        int integer(int value) {
+            Integer index = entries.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+            bytes.u1(3);
+            bytes.u4(value);
+            return add("I" + value);
+        }
+
+        /**
+         * @param tag 9 field, 10 method, 11 interface method
+         */
+        int member(int tag, String owner, String name, String desc) {
+            String key = tag + owner + "." + name + desc;
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, desc);
+            bytes.u1(tag);
+            bytes.u2(ownerIndex);
+            bytes.u2(nameAndType);
+            return add(key);
+        }
+
+        private int nameAndType(String name, String desc) {
+            Integer index = entries.get("N" + name + desc);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            int descIndex = utf8(desc);
+            bytes.u1(12);
+            bytes.u2(nameIndex);
+            bytes.u2(descIndex);
+            return add("N" + name + desc);
+        }
+
+        private int add(String key) {
+            entries.put(key, next);
+            return next++;
+        }
+
+        int count() {
+            return next;
+        }
+
+        Bytes bytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Class loader for generated blocks
+     */
+    private static final class BlockLoader extends ClassLoader {
+        BlockLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
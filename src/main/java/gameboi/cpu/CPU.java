@@ -24,10 +24,13 @@
 package main.java.gameboi.cpu;
 
 import main.java.gameboi.memory.GBMem;
+import main.java.gameboi.scheduler.Scheduler;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * Z80 Gameboy CPU
@@ -42,36 +45,61 @@ public class CPU {
     private final GBRegisters registers;
     private int sp;
     private int pc;
-    private static final GBRegisters.Reg A = GBRegisters.Reg.A;
-    private static final GBRegisters.Reg B = GBRegisters.Reg.B;
-    private static final GBRegisters.Reg C = GBRegisters.Reg.C;
-    private static final GBRegisters.Reg D = GBRegisters.Reg.D;
-    private static final GBRegisters.Reg E = GBRegisters.Reg.E;
-    private static final GBRegisters.Reg F = GBRegisters.Reg.F;
-    private static final GBRegisters.Reg H = GBRegisters.Reg.H;
-    private static final GBRegisters.Reg L = GBRegisters.Reg.L;
-    private static final GBRegisters.Reg HL = GBRegisters.Reg.HL;
-    private static final GBRegisters.Reg BC = GBRegisters.Reg.BC;
-    private static final GBRegisters.Reg DE = GBRegisters.Reg.DE;
-    private static final GBRegisters.Reg AF = GBRegisters.Reg.AF;
-
-    //flag bitnum constants
-    private static final int ZERO_F = 7;
-    private static final int SUBTRACT_F = 6;
-    private static final int HALFCARRY_F = 5;
-    private static final int CARRY_F = 4;
-
+    //eight bit register fields in opcodes
+    private static final int B = GBRegisters.B;
+    private static final int C = GBRegisters.C;
+    private static final int D = GBRegisters.D;
+    private static final int E = GBRegisters.E;
+    private static final int H = GBRegisters.H;
+    private static final int L = GBRegisters.L;
+    private static final int HL_ADDR = 6; //(HL)
+    private static final int A = GBRegisters.A;
+    //register pair fields in opcodes
+    private static final int BC = GBRegisters.BC;
+    private static final int DE = GBRegisters.DE;
+    private static final int SP = 3; //LD, INC, DEC, ADD HL
+    private static final int AF = 3; //PUSH, POP
 
     //memory
     private final GBMem memory;
 
+    //opcode dispatch table, indexed by opcode (0x100 + opcode for 0xcb prefixed,
+    //Decoder.FUSED + pair for fused pairs)
+    private final Opcode[] opcodes;
+    //pre-decoded rom instructions
+    private final Decoder decoder;
+    //hot blocks compiled to jvm classes
+    private final BlockCache blockCache;
+    //polling loops that can be skipped
+    private final IdleLoops idleLoops;
+
     //cpu clocks
     private static final int clockSpeed = 4194304;
+    //clock cycles between DIV increments
+    private static final int DIVIDER_PERIOD = 0xff;
+    //central clock, runs the timer and gpu events
+    private final Scheduler scheduler;
+    //cycles until TIMA increments, only up to date while the timer is stopped
     private int timerCounter;
-    private int divideCounter;
+    //clock cycle of the next TIMA increment while the timer runs, TIMA in
+    //memory is only brought up to it when read, the TIMER event is due at
+    //the increment that overflows
+    private long timerNext;
+    //cycles between TIMA increments as of the last TAC write
+    private int timerPeriod;
+    //TAC enable as of the last TAC write, the TIMER event is scheduled while set
+    private boolean timerRunning;
+    //clock cycle DIV last incremented at
+    private long dividerStart;
+    //longest single skip of a halted or idle cpu
+    private static final int MAX_SKIP_CYCLES = 0x10000;
+    //longest first half of a fused pair
+    private static final int MAX_FUSED_LEAD_CYCLES = 12;
     //stop, halt
     private boolean isStopped;
     private boolean executionHalted;
+    //if current ROM is gbc
+    private boolean gbcMode;
 
     /**
      * Interrupt state of cpu
@@ -89,6 +117,8 @@ public class CPU {
 
 
     private static final int BYTE_SAVE_LENGTH = 17;
+    //registers, timers, flags and the scheduler
+    public static final int SNAPSHOT_SIZE = 8 + 4 + 4 + 4 + 8 + 4 + 1 + 8 + 4 + Scheduler.SNAPSHOT_SIZE;
 
 
 
@@ -102,10 +132,111 @@ public class CPU {
         sp = 0xfffe;
         this.memory = memory;
         registers = new GBRegisters();
+        scheduler = new Scheduler();
+        scheduler.setEvent(Scheduler.DIVIDER, this::dividerEvent);
+        scheduler.setEvent(Scheduler.TIMER, this::timerEvent);
+        memory.setClock(scheduler::now);
         timerCounter = getCountFrequency();
-        divideCounter = 16384; //TODO
+        startTimers(16384); //TODO
+        memory.watchRegister(0xff07, (address, data) -> timerControlWritten(data));
+        memory.setRegisterHandlers(0xff05, address -> readTimer(), (address, data) -> writeTimer(data));
         interruptState = DISABLED;
         executionHalted = false; //TODO ADD TO SAVING
+        gbcMode = false;
+        opcodes = new Opcode[Decoder.FUSED + Decoder.FUSED_PAIRS.length];
+        initOpcodes();
+        decoder = new Decoder(memory);
+        idleLoops = new IdleLoops(memory, decoder);
+        blockCache = new BlockCache(this, memory, decoder, idleLoops);
+        //a running block gives control back when an interrupt may be pending
+        memory.watchRegister(0xff0f, (address, data) -> blockCache.stopRunning());
+        memory.watchRegister(0xffff, (address, data) -> blockCache.stopRunning());
+    }
+
+
+    /**
+     * Sets the cpu to gameboy color mode
+     *
+     * @param mode true if running a GBC rom
+     */
+    public void setGBCMode(boolean mode) {
+        this.gbcMode = mode;
+    }
+
+
+    /**
+     * The clock the cpu advances, for scheduling events
+     * (gpu) on it
+     *
+     * @return scheduler of this cpu
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+
+    /**
+     * Turns compilation of hot blocks to jvm bytecode on or off
+     * (on by default). When off every instruction is interpreted
+     *
+     * @param enabled true to compile hot blocks
+     */
+    public void setBlockCompilation(boolean enabled) {
+        blockCache.setEnabled(enabled);
+    }
+
+    /**
+     * turns fusing of common instruction pairs into
+     * superinstructions on or off
+     *
+     * @param enabled true to run fused pairs as one handler
+     */
+    public void setInstructionFusion(boolean enabled) {
+        decoder.setFusion(enabled);
+    }
+
+    /**
+     * Lists the fused pairs by how often they ran (in the
+     * interpreter, compiled blocks run their instructions
+     * directly) since the rom was loaded
+     *
+     * @return one line per pair, most used first
+     */
+    public String getFusionReport() {
+        Integer[] pairs = new Integer[Decoder.FUSED_PAIRS.length];
+        for (int i = 0; i < pairs.length; ++i) {
+            pairs[i] = i;
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(decoder.fusedCounts[b], decoder.fusedCounts[a]));
+        StringBuilder report = new StringBuilder();
+        for (int pair : pairs) {
+            report.append(String.format("%-24s %12d%n", Decoder.FUSED_NAMES[pair],
+                    decoder.fusedCounts[pair]));
+        }
+        return report.toString();
+    }
+
+    /**
+     * turns skipping of idle (polling) loops on or off
+     *
+     * @param enabled true to fast-forward idle loops
+     */
+    public void setIdleLoopSkipping(boolean enabled) {
+        idleLoops.setEnabled(enabled);
+    }
+
+    /**
+     * @return clock cycles skipped in idle loops since the rom was loaded
+     */
+    public long getIdleCyclesSkipped() {
+        return idleLoops.getSkippedCycles();
+    }
+
+    /**
+     * @return number of idle loop skips since the rom was loaded
+     */
+    public long getIdleLoopSkips() {
+        return idleLoops.getSkips();
     }
 
 
@@ -123,17 +254,20 @@ public class CPU {
         buf[2] = (byte)registers.getReg(C);
         buf[3] = (byte)registers.getReg(D);
         buf[4] = (byte)registers.getReg(E);
-        buf[5] = (byte)registers.getReg(F);
+        buf[5] = (byte)registers.getF();
         buf[6] = (byte)registers.getReg(H);
         buf[7] = (byte)registers.getReg(L);
         buf[8] = (byte)(sp & 0xff);
         buf[9] = (byte)((sp & 0xff00) >> 8);
         buf[10] = (byte)(pc & 0xff);
         buf[11] = (byte)((pc & 0xff00) >> 8);
-        buf[12] = (byte)(timerCounter & 0xff);
-        buf[13] = (byte)((timerCounter & 0xff00) >> 8);
-        buf[14] = (byte)(divideCounter & 0xff);
-        buf[15] = (byte)((divideCounter & 0xff00) >> 8);
+        updateTimer();
+        int timerCount = timerRunning ? (int)(timerNext - scheduler.now()) : timerCounter;
+        int divideCount = (int)(scheduler.now() - dividerStart);
+        buf[12] = (byte)(timerCount & 0xff);
+        buf[13] = (byte)((timerCount & 0xff00) >> 8);
+        buf[14] = (byte)(divideCount & 0xff);
+        buf[15] = (byte)((divideCount & 0xff00) >> 8);
         buf[16] = interruptStateToByte();
         dumpRegisters(0x0);
         return buf;
@@ -184,6 +318,8 @@ public class CPU {
      * returns the state to how it was saved
      * from saveState()
      *
+     * memory has to be loaded first, the timer
+     * restarts from the TAC register
      *
      * @param save same byte array as created in saveGame
      */
@@ -193,7 +329,7 @@ public class CPU {
         registers.setReg(C, Byte.toUnsignedInt(save[2]));
         registers.setReg(D, Byte.toUnsignedInt(save[3]));
         registers.setReg(E, Byte.toUnsignedInt(save[4]));
-        registers.setReg(F, Byte.toUnsignedInt(save[5]));
+        registers.setF(Byte.toUnsignedInt(save[5]));
         registers.setReg(H, Byte.toUnsignedInt(save[6]));
         registers.setReg(L, Byte.toUnsignedInt(save[7]));
         sp = Byte.toUnsignedInt(save[8]);
@@ -202,13 +338,76 @@ public class CPU {
         pc |= Byte.toUnsignedInt(save[11]) << 8;
         timerCounter = Byte.toUnsignedInt(save[12]);
         timerCounter |= (Byte.toUnsignedInt(save[13]) << 8);
-        divideCounter = Byte.toUnsignedInt(save[14]);
+        int divideCounter = Byte.toUnsignedInt(save[14]);
         divideCounter |= Byte.toUnsignedInt(save[15]);
+        startTimers(divideCounter);
         setInterruptStateFromByte(save[16]);
         dumpRegisters(0x0);
     }
 
 
+    /**
+     * Writes the complete cpu state, including the clock
+     * and the pending events, to snapshot
+     *
+     * <p>
+     * Unlike saveState() nothing is rounded or left out, running
+     * on from loadSnapshot() gives the same results cycle for cycle
+     *
+     * @param snapshot to write SNAPSHOT_SIZE bytes to at its position
+     */
+    public void saveSnapshot(ByteBuffer snapshot) {
+        //TIMA in memory, saved after the cpu, has to be current
+        updateTimer();
+        snapshot.put((byte)registers.getReg(A));
+        snapshot.put((byte)registers.getReg(B));
+        snapshot.put((byte)registers.getReg(C));
+        snapshot.put((byte)registers.getReg(D));
+        snapshot.put((byte)registers.getReg(E));
+        snapshot.put((byte)registers.getF());
+        snapshot.put((byte)registers.getReg(H));
+        snapshot.put((byte)registers.getReg(L));
+        snapshot.putInt(sp);
+        snapshot.putInt(pc);
+        snapshot.putInt(timerCounter);
+        snapshot.putLong(timerNext);
+        snapshot.putInt(timerPeriod);
+        snapshot.put((byte)((timerRunning ? 1 : 0) | (isStopped ? 2 : 0)
+                | (executionHalted ? 4 : 0) | (gbcMode ? 8 : 0)));
+        snapshot.putLong(dividerStart);
+        snapshot.putInt(interruptState.ordinal());
+        scheduler.saveSnapshot(snapshot);
+    }
+
+    /**
+     * Restores the state written by saveSnapshot()
+     *
+     * @param snapshot to read SNAPSHOT_SIZE bytes from at its position
+     */
+    public void loadSnapshot(ByteBuffer snapshot) {
+        registers.setReg(A, Byte.toUnsignedInt(snapshot.get()));
+        registers.setReg(B, Byte.toUnsignedInt(snapshot.get()));
+        registers.setReg(C, Byte.toUnsignedInt(snapshot.get()));
+        registers.setReg(D, Byte.toUnsignedInt(snapshot.get()));
+        registers.setReg(E, Byte.toUnsignedInt(snapshot.get()));
+        registers.setF(Byte.toUnsignedInt(snapshot.get()));
+        registers.setReg(H, Byte.toUnsignedInt(snapshot.get()));
+        registers.setReg(L, Byte.toUnsignedInt(snapshot.get()));
+        sp = snapshot.getInt();
+        pc = snapshot.getInt();
+        timerCounter = snapshot.getInt();
+        timerNext = snapshot.getLong();
+        timerPeriod = snapshot.getInt();
+        int flags = snapshot.get();
+        timerRunning = (flags & 1) != 0;
+        isStopped = (flags & 2) != 0;
+        executionHalted = (flags & 4) != 0;
+        gbcMode = (flags & 8) != 0;
+        dividerStart = snapshot.getLong();
+        interruptState = InterruptCpuState.values()[snapshot.getInt()];
+        scheduler.loadSnapshot(snapshot);
+    }
+
     /**
      * amount of bytes used for byte saving
      * @return lenght of bytes used for saving
@@ -223,687 +422,562 @@ public class CPU {
      * @return clock cycles taken to execute the opcode
      */ 
     public int ExecuteOpcode() {
+        return step(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs instructions until at least cycles clock cycles have passed
+     *
+     * <p>
+     * A halted cpu skips ahead no further than the end of the run, so
+     * key presses (joypad interrupts) are seen between runs at the latest
+     *
+     * @param cycles clock cycles to run for
+     */
+    public void runFor(int cycles) {
+        long end = scheduler.now() + cycles;
+        while (scheduler.now() < end) {
+            step(end);
+        }
+    }
+
+    /**
+     * Executes the next opcode, or waits out a HALT
+     *
+     * @param limit clock cycle a HALT may skip ahead to
+     * @return clock cycles taken
+     */
+    private int step(long limit) {
         if (executionHalted) {
-            if ((memory.readByte(0xff0f) & memory.readByte(0xffff)) != 0) {
+            if (memory.getPendingInterrupts() != 0) {
                 executionHalted = false;
             } else {
-                updateDivideRegister(4);
-                updateTimers(4);
-                return 4;
+                return skipHalt(limit);
             }
         }
+        int start = pc;
         //handle interrupt state change
-        if (interruptState == DELAY_ON) {
+        boolean enabling = interruptState == DELAY_ON;
+        if (enabling) {
             interruptState = ENABLED;
         } else if (interruptState == DELAY_OFF) {
             interruptState = DISABLED;
         }
 
-        int opcode = memory.readByte(pc);
-        pc++;
-        int cycles = runInstruction(opcode);
-
-        updateDivideRegister(cycles); //TODO
-        updateTimers(cycles);
+        //a compiled block runs one or more instructions and
+        //advances the clock itself, not right after interrupts
+        //get enabled (one that is already pending is taken
+        //after this instruction)
+        int cycles = enabling ? 0 : blockCache.runBlock(pc);
+        if (cycles == 0) {
+            //rom instructions come pre-decoded
+            int op = (pc >= 0 && pc < 0x8000) ? decoder.cached(pc) : 0;
+            //a fused pair can't run as one when an event or
+            //interrupt could come between its halves, or when
+            //its store could see the clock before the first half
+            if (op != 0 && Decoder.handler(op) >= Decoder.FUSED && (enabling
+                    || memory.getPendingInterrupts() != 0
+                    || scheduler.now() + MAX_FUSED_LEAD_CYCLES >= scheduler.nextEventTime()
+                    || (Decoder.handler(op) == Decoder.FUSED
+                        && !untimedStore(registers.getPair(DE))))) {
+                op = 0;
+            }
+            if (op != 0) {
+                pc += Decoder.length(op);
+                cycles = opcodes[Decoder.handler(op)].execute(Decoder.operand(op));
+            } else {
+                cycles = runInstruction();
+            }
+            tick(cycles);
+        }
         checkInterrupts();
 
+        //jumped back to what might be the head of an idle loop
+        if (pc <= start && idleLoops.isEnabled()) {
+            IdleLoops.Loop loop = idleLoops.find(pc);
+            if (loop != null) {
+                cycles += runIdleLoop(loop, limit);
+            }
+        }
         return cycles;
     }
 
+    /**
+     * Runs an idle loop from its head, skipping ahead if it is stuck
+     *
+     * <p>
+     * One iteration runs as usual. If no event ran during it and it
+     * left A and F (all the loop can write) as they were, every further
+     * iteration does the same until an event changes a value the loop
+     * reads. Those iterations are skipped by only advancing the clock,
+     * an instruction at a time where an event is due, so events still
+     * run at the same instruction boundaries. The skip ends at the
+     * boundary where an event changed a value the loop reads or raised
+     * an interrupt that will be taken, with pc and AF as they would be
+     * there, or at limit.
+     *
+     * @param loop found at pc
+     * @param limit clock cycle to skip ahead to at most
+     * @return clock cycles taken
+     */
+    private int runIdleLoop(IdleLoops.Loop loop, long limit) {
+        if (interruptState == DELAY_ON || interruptState == DELAY_OFF) {
+            return 0;
+        }
+        int head = pc;
+        int af = registers.getAF();
+        int count = loop.ops.length;
+        int cycles = 0;
+        for (int i = 0; i < count; ++i) {
+            int op = loop.ops[i];
+            pc += Decoder.length(op);
+            int taken = opcodes[Decoder.handler(op)].execute(Decoder.operand(op));
+            cycles += taken;
+            if (tick(taken)) {
+                checkInterrupts();
+                return cycles;
+            }
+            loop.cycles[i] = taken;
+            loop.af[i] = registers.getAF();
+        }
+        if (pc != head || registers.getAF() != af) {
+            return cycles;
+        }
+
+        int reads = 0;
+        for (int i = 0; i < count; ++i) {
+            int address = loop.readAddress(i, registers.getPair(BC),
+                    registers.getPair(DE), registers.getHL());
+            if (address >= 0xfea0 && address < 0xff00) {
+                return cycles; //invalid reads get reported
+            }
+            if (address == 0xff05 && timerRunning) {
+                return cycles; //TIMA counts without events
+            }
+            if (address >= 0) {
+                loop.addresses[reads] = address;
+                loop.values[reads] = memory.peek(address);
+                reads++;
+            }
+        }
+
+        int iteration = cycles;
+        long end = Math.min(limit, scheduler.now() + MAX_SKIP_CYCLES);
+        int skipped = 0;
+        while (scheduler.now() < end) {
+            long now = scheduler.now();
+            long next = scheduler.nextEventTime();
+            if (now + iteration < next) {
+                //whole iterations before the next event
+                long iterations = Math.min((next - 1 - now) / iteration,
+                        (end - now + iteration - 1) / iteration);
+                tick((int)(iterations * iteration));
+                skipped += (int)(iterations * iteration);
+                continue;
+            }
+            for (int i = 0; i < count; ++i) {
+                skipped += loop.cycles[i];
+                if (tick(loop.cycles[i]) && idleLoopDisturbed(loop, reads)) {
+                    pc = (i == count - 1) ? head : loop.next[i];
+                    registers.setAF(loop.af[i]);
+                    checkInterrupts();
+                    idleLoops.skipped(skipped);
+                    return cycles + skipped;
+                }
+            }
+        }
+        idleLoops.skipped(skipped);
+        return cycles + skipped;
+    }
+
+    /**
+     * true if an event changed memory an idle loop reads, or
+     * raised an interrupt that will be taken
+     */
+    private boolean idleLoopDisturbed(IdleLoops.Loop loop, int reads) {
+        if (interruptState == ENABLED && memory.getPendingInterrupts() != 0) {
+            return true;
+        }
+        for (int i = 0; i < reads; ++i) {
+            if (memory.peek(loop.addresses[i]) != loop.values[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Opcode Instructions for the Gameboy Z80 Chip.
      * 
      * <p>
-     * Runs the instruction associated with the opcode, and returns the 
-     * clock cycles taken.
+     * Decodes the instruction at pc from memory, runs it and returns the 
+     * clock cycles taken. Instructions are looked up in the opcode
+     * dispatch table built by initOpcodes()
      * 
      * TODO HALT BUG
-     * @param opcode (required) opcode to execute
      * @return number of cycles taken to execute
      */ 
-    private int runInstruction(int opcode) { 
-        switch (opcode) {
-            case 0x0:  return 4; //NOP
-
-            //--------8 BIT LOADS---------
-            // LD nn,n
-            case 0x06: return ld_NN_N(B);
-            case 0x0e: return ld_NN_N(C);
-            case 0x16: return ld_NN_N(D);
-            case 0x1e: return ld_NN_N(E);
-            case 0x26: return ld_NN_N(H);
-            case 0x2e: return ld_NN_N(L);
-            //LD r1,r2
-            case 0x7f: return eightBitLdR1R2(A, A);
-            case 0x78: return eightBitLdR1R2(A, B);
-            case 0x79: return eightBitLdR1R2(A, C);
-            case 0x7a: return eightBitLdR1R2(A, D);
-            case 0x7b: return eightBitLdR1R2(A, E);
-            case 0x7c: return eightBitLdR1R2(A, H);
-            case 0x7d: return eightBitLdR1R2(A, L);
-            case 0x7e: return eightBitLdR1R2(A, HL);
-            case 0x40: return eightBitLdR1R2(B, B);
-            case 0x41: return eightBitLdR1R2(B, C);
-            case 0x42: return eightBitLdR1R2(B, D);
-            case 0x43: return eightBitLdR1R2(B, E);
-            case 0x44: return eightBitLdR1R2(B, H);
-            case 0x45: return eightBitLdR1R2(B, L);
-            case 0x46: return eightBitLdR1R2(B, HL);
-            case 0x48: return eightBitLdR1R2(C, B);
-            case 0x49: return eightBitLdR1R2(C, C);
-            case 0x4a: return eightBitLdR1R2(C, D);
-            case 0x4b: return eightBitLdR1R2(C, E);
-            case 0x4c: return eightBitLdR1R2(C, H);
-            case 0x4d: return eightBitLdR1R2(C, L);
-            case 0x4e: return eightBitLdR1R2(C, HL);
-            case 0x50: return eightBitLdR1R2(D, B);
-            case 0x51: return eightBitLdR1R2(D, C);
-            case 0x52: return eightBitLdR1R2(D, D);
-            case 0x53: return eightBitLdR1R2(D, E);
-            case 0x54: return eightBitLdR1R2(D, H);
-            case 0x55: return eightBitLdR1R2(D, L);
-            case 0x56: return eightBitLdR1R2(D, HL);
-            case 0x58: return eightBitLdR1R2(E, B);
-            case 0x59: return eightBitLdR1R2(E, C);
-            case 0x5a: return eightBitLdR1R2(E, D);
-            case 0x5b: return eightBitLdR1R2(E, E);
-            case 0x5c: return eightBitLdR1R2(E, H);
-            case 0x5d: return eightBitLdR1R2(E, L);
-            case 0x5e: return eightBitLdR1R2(E, HL);
-            case 0x60: return eightBitLdR1R2(H, B);
-            case 0x61: return eightBitLdR1R2(H, C);
-            case 0x62: return eightBitLdR1R2(H, D);
-            case 0x63: return eightBitLdR1R2(H, E);
-            case 0x64: return eightBitLdR1R2(H, H);
-            case 0x65: return eightBitLdR1R2(H, L);
-            case 0x66: return eightBitLdR1R2(H, HL);
-            case 0x68: return eightBitLdR1R2(L, B);
-            case 0x69: return eightBitLdR1R2(L, C);
-            case 0x6a: return eightBitLdR1R2(L, D);
-            case 0x6b: return eightBitLdR1R2(L, E);
-            case 0x6c: return eightBitLdR1R2(L, H);
-            case 0x6d: return eightBitLdR1R2(L, L);
-            case 0x6e: return eightBitLdR1R2(L, HL);
-            case 0x70: return eightBitLdR1R2(HL, B);
-            case 0x71: return eightBitLdR1R2(HL, C);
-            case 0x72: return eightBitLdR1R2(HL, D);
-            case 0x73: return eightBitLdR1R2(HL, E);
-            case 0x74: return eightBitLdR1R2(HL, H);
-            case 0x75: return eightBitLdR1R2(HL, L);
-            // special 8 bit load from memory
-            case 0x36: return eightBitLoadFromMem();
-            // LD A,n
-            case 0x0a: return eightBitLdAN(BC);
-            case 0x1a: return eightBitLdAN(DE);
-            case 0xfa: return eightBitALoadMem(true);
-            case 0x3e: return eightBitALoadMem(false);
-            // LD n,A
-            case 0x47: return eightBitLdR1R2(B, A);
-            case 0x4f: return eightBitLdR1R2(C, A);
-            case 0x57: return eightBitLdR1R2(D, A);
-            case 0x5f: return eightBitLdR1R2(E, A);
-            case 0x67: return eightBitLdR1R2(H, A);
-            case 0x6f: return eightBitLdR1R2(L, A);
-            case 0x02: return eightBitLdR1R2(BC, A);
-            case 0x12: return eightBitLdR1R2(DE, A);
-            case 0x77: return eightBitLdR1R2(HL, A);
-            case 0xea: return eightBitLoadToMem();
-            // LD A, (C)
-            case 0xf2: return eightBitLDfromAC();
-            case 0xe2: return eightBitLDtoAC();
-            // LDD A,(HL)
-            case 0x3a: return eightBitLDAHl();
-            // LDD (HL), A
-            case 0x32: return eightBitStoreHL();
-            // LDI (HL), A
-            case 0x2a: return eightBitLDIA();
-            // LDI (HL), A
-            case 0x22: return LDI_HL_A();
-            // LDH (n), A, LDH A,(n)
-            case 0xe0: return eightBitLdhA(true);
-            case 0xf0: return eightBitLdhA(false);
-            
-            //--------16 BIT LOADS------/
+    private int runInstruction() { 
+        int opcode = memory.readByte(pc);
+        int length = Decoder.instructionLength(opcode);
+        int handler = opcode;
+        int operand = 0;
+        if (opcode == 0xcb) {
+            handler = 0x100 | memory.readByte(pc + 1);
+        } else if (length == 2) {
+            operand = memory.readByte(pc + 1);
+        } else if (length == 3) {
+            operand = readWordFromMem(pc + 1);
+        }
+        pc += length;
+        return opcodes[handler].execute(operand);
+    }
+    
+    
+    /**
+     * Handler for an instruction, used by BlockCompiler
+     *
+     * @param handler opcode, 0x100 + opcode for 0xcb prefixed
+     * @return dispatch table entry
+     */
+    Opcode getHandler(int handler) {
+        return opcodes[handler];
+    }
+
+    /**
+     * Sets pc, compiled blocks use this in place of the opcode fetch
+     *
+     * @param address new pc
+     */
+    void setPC(int address) {
+        pc = address;
+    }
+
+    /**
+     * Stores to video and work ram don't depend on the clock, the
+     * cartridge (real time clocks) and io registers do
+     *
+     * @param address to store to
+     * @return true if the store can happen early in a fused pair
+     */
+    private static boolean untimedStore(int address) {
+        return (address >= 0x8000 && address < 0xa000)
+                || (address >= 0xc000 && address < 0xfe00);
+    }
+
+    /**
+     * Advances the clock after an instruction, running the
+     * timer and gpu events that are due
+     *
+     * @param cycles taken by the instruction
+     * @return true if any event ran
+     */
+    boolean tick(int cycles) {
+        return scheduler.advance(cycles);
+    }
+
+
+    /**
+     * Builds the opcode dispatch table
+     *
+     * <p>
+     * Table construction is split into small groups so no single
+     * method comes near the JIT's huge method limit (checked at build
+     * time by MethodSizeCheck)
+     */
+    private void initOpcodes() {
+        for (int i = 0; i < 0x100; ++i) {
+            final int opcode = i;
+            opcodes[i] = n -> unimplementedOpcode(opcode);
+            opcodes[0x100 | i] = n -> unimplementedExtendedOpcode(opcode);
+        }
+        initLoadOpcodes();
+        initAluOpcodes();
+        initControlOpcodes();
+        initShiftOpcodes();
+        initBitOpcodes();
+        initFusedOpcodes();
+    }
+
+    /**
+     * 8 and 16 bit loads, push and pop
+     */
+    private void initLoadOpcodes() {
+        //--------8 BIT LOADS---------
+        for (int r = 0; r < 8; ++r) {
+            final int reg = r;
+            // LD r,n  LD (HL),n
+            opcodes[0x06 | (r << 3)] = n -> ld_NN_N(reg, n);
+            //LD r1,r2 (0x76 is HALT)
+            for (int src = 0; src < 8; ++src) {
+                final int srcReg = src;
+                if (reg != HL_ADDR || src != HL_ADDR) {
+                    opcodes[0x40 | (r << 3) | src] = n -> eightBitLdR1R2(reg, srcReg);
+                }
+            }
+        }
+        // LD A,n
+        opcodes[0x0a] = n -> eightBitLdAN(BC);
+        opcodes[0x1a] = n -> eightBitLdAN(DE);
+        opcodes[0xfa] = n -> eightBitALoadMem(n);
+        // LD n,A
+        opcodes[0x02] = n -> eightBitLdNA(BC);
+        opcodes[0x12] = n -> eightBitLdNA(DE);
+        opcodes[0xea] = n -> eightBitLoadToMem(n);
+        // LD A, (C)
+        opcodes[0xf2] = n -> eightBitLDfromAC();
+        opcodes[0xe2] = n -> eightBitLDtoAC();
+        // LDD A,(HL)
+        opcodes[0x3a] = n -> eightBitLDAHl();
+        // LDD (HL), A
+        opcodes[0x32] = n -> eightBitStoreHL();
+        // LDI (HL), A
+        opcodes[0x2a] = n -> eightBitLDIA();
+        // LDI (HL), A
+        opcodes[0x22] = n -> LDI_HL_A();
+        // LDH (n), A, LDH A,(n)
+        opcodes[0xe0] = n -> eightBitLdhA(true, n);
+        opcodes[0xf0] = n -> eightBitLdhA(false, n);
+
+        //--------16 BIT LOADS------/
+        for (int p = 0; p < 4; ++p) {
+            final int pair = p;
             //LD n, nn
-            case 0x01: return ld_N_NN(BC);
-            case 0x11: return ld_N_NN(DE);
-            case 0x21: return ld_N_NN(HL);
-            case 0x31: return ld_SP_NN();
-            //LD SP,HL
-            case 0xf9: return sixteenBitLdSpHl();
-            case 0xf8: return sixteenBitLdHlSp();
-            //LD (nn), SP
-            case 0x08: return sixteenBitLdNnSp();
+            if (pair != SP) {
+                opcodes[0x01 | (p << 4)] = n -> ld_N_NN(pair, n);
+            }
             //Push nn to stack
-            case 0xf5: return pushNN(AF);
-            case 0xc5: return pushNN(BC);
-            case 0xd5: return pushNN(DE);
-            case 0xe5: return pushNN(HL);
+            opcodes[0xc5 | (p << 4)] = n -> pushNN(pair);
             //POP nn off stack
-            case 0xf1: return popNN(AF);
-            case 0xc1: return popNN(BC);
-            case 0xd1: return popNN(DE);
-            case 0xe1: return popNN(HL);
-            
-            
-            //---------8-BIT ALU----------/
-            //ADD A,n
-            case 0x87: return addAN(A, false, false);
-            case 0x80: return addAN(B, false, false);
-            case 0x81: return addAN(C, false, false);
-            case 0x82: return addAN(D, false, false);
-            case 0x83: return addAN(E, false, false);
-            case 0x84: return addAN(H, false, false);
-            case 0x85: return addAN(L, false, false);
-            case 0x86: return addAN(HL, false, false);
-            case 0xc6: return addAN(A, false, true);                
-            //ADC A,n
-            case 0x8f: return addAN(A, true, false);
-            case 0x88: return addAN(B, true, false);
-            case 0x89: return addAN(C, true, false);
-            case 0x8a: return addAN(D, true, false);
-            case 0x8b: return addAN(E, true, false);
-            case 0x8c: return addAN(H, true, false);
-            case 0x8d: return addAN(L, true, false);
-            case 0x8e: return addAN(HL, true, false);
-            case 0xce: return addAN(A, true, true);
-            //SUB n
-            case 0x97: return subAN(A, false, false);
-            case 0x90: return subAN(B, false, false);
-            case 0x91: return subAN(C, false, false);
-            case 0x92: return subAN(D, false, false);
-            case 0x93: return subAN(E, false, false);
-            case 0x94: return subAN(H, false, false);
-            case 0x95: return subAN(L, false, false);
-            case 0x96: return subAN(HL, false, false);
-            case 0xd6: return subAN(A, false, true);
-            //SUBC A,n    
-            case 0x9f: return subAN(A, true, false); 
-            case 0x98: return subAN(B, true, false);
-            case 0x99: return subAN(C, true, false);
-            case 0x9a: return subAN(D, true, false);
-            case 0x9b: return subAN(E, true, false);
-            case 0x9c: return subAN(H, true, false);
-            case 0x9d: return subAN(L, true, false);
-            case 0x9e: return subAN(HL, true, false);
-            case 0xde: return subAN(A, true, true);
-            //AND N
-            case 0xa7: return andN(A, false);
-            case 0xa0: return andN(B, false);
-            case 0xa1: return andN(C, false);
-            case 0xa2: return andN(D, false);
-            case 0xa3: return andN(E, false);
-            case 0xa4: return andN(H, false);
-            case 0xa5: return andN(L, false);
-            case 0xa6: return andN(HL, false);
-            case 0xe6: return andN(A, true);
-            //OR N
-            case 0xb7: return orN(A, false);
-            case 0xb0: return orN(B, false);
-            case 0xb1: return orN(C, false);
-            case 0xb2: return orN(D, false);
-            case 0xb3: return orN(E, false);
-            case 0xb4: return orN(H, false);
-            case 0xb5: return orN(L, false);
-            case 0xb6: return orN(HL, false);
-            case 0xf6: return orN(A, true);         
-            // XOR n
-            case 0xaf: return xorN(A, false);
-            case 0xa8: return xorN(B, false);
-            case 0xa9: return xorN(C, false);
-            case 0xaa: return xorN(D, false);
-            case 0xab: return xorN(E, false);
-            case 0xac: return xorN(H, false);
-            case 0xad: return xorN(L, false);
-            case 0xae: return xorN(HL, false);
-            case 0xee: return xorN(A, true);
-            // CP n
-            case 0xbf: return cpN(A, false);
-            case 0xb8: return cpN(B, false);
-            case 0xb9: return cpN(C, false);
-            case 0xba: return cpN(D, false);
-            case 0xbb: return cpN(E, false);
-            case 0xbc: return cpN(H, false);
-            case 0xbd: return cpN(L, false);
-            case 0xbe: return cpN(HL, false);
-            case 0xfe: return cpN(A, true);
-            // INC n
-            case 0x3c: return incN(A);
-            case 0x04: return incN(B);
-            case 0x0c: return incN(C);
-            case 0x14: return incN(D);
-            case 0x1c: return incN(E);
-            case 0x24: return incN(H);
-            case 0x2c: return incN(L);
-            case 0x34: return incN(HL);
-            // DEC n
-            case 0x3d: return decN(A);
-            case 0x05: return decN(B);
-            case 0x0d: return decN(C);
-            case 0x15: return decN(D);
-            case 0x1d: return decN(E);
-            case 0x25: return decN(H);
-            case 0x2d: return decN(L);
-            case 0x35: return decN(HL);
+            opcodes[0xc1 | (p << 4)] = n -> popNN(pair);
+        }
+        opcodes[0x31] = n -> ld_SP_NN(n);
+        //LD SP,HL
+        opcodes[0xf9] = n -> sixteenBitLdSpHl();
+        opcodes[0xf8] = n -> sixteenBitLdHlSp(n);
+        //LD (nn), SP
+        opcodes[0x08] = n -> sixteenBitLdNnSp(n);
+    }
+
+    /**
+     * 8 and 16 bit arithmetic/logic
+     */
+    private void initAluOpcodes() {
+        //---------8-BIT ALU----------/
+        for (int r = 0; r < 8; ++r) {
+            final int reg = r;
+            opcodes[0x80 | r] = n -> addAN(reg, false, false);
+            opcodes[0x88 | r] = n -> addAN(reg, true, false);
+            opcodes[0x90 | r] = n -> subAN(reg, false, false);
+            opcodes[0x98 | r] = n -> subAN(reg, true, false);
+            opcodes[0xa0 | r] = n -> andN(reg, false);
+            opcodes[0xa8 | r] = n -> xorN(reg, false);
+            opcodes[0xb0 | r] = n -> orN(reg, false);
+            opcodes[0xb8 | r] = n -> cpN(reg, false);
+            opcodes[0x04 | (r << 3)] = n -> incN(reg);
+            opcodes[0x05 | (r << 3)] = n -> decN(reg);
+        }
+        //immediate value
+        opcodes[0xc6] = n -> addAN(n, false, true);
+        opcodes[0xce] = n -> addAN(n, true, true);
+        opcodes[0xd6] = n -> subAN(n, false, true);
+        opcodes[0xde] = n -> subAN(n, true, true);
+        opcodes[0xe6] = n -> andN(n, true);
+        opcodes[0xee] = n -> xorN(n, true);
+        opcodes[0xf6] = n -> orN(n, true);
+        opcodes[0xfe] = n -> cpN(n, true);
+
+        //---------16-BIT ALU----------/
+        for (int p = 0; p < 4; ++p) {
+            final int pair = p;
             //ADD HL,n
-            case 0x09: return sixteenBitAdd(BC, false);
-            case 0x19: return sixteenBitAdd(DE, false);
-            case 0x29: return sixteenBitAdd(HL, false);
-            case 0x39: return sixteenBitAdd(BC, true);
-            //ADD SP,n
-            case 0xe8: return addSPN();
+            opcodes[0x09 | (p << 4)] = n -> sixteenBitAdd(pair);
             //INC nn
-            case 0x03: return incNN(BC, false);
-            case 0x13: return incNN(DE, false);
-            case 0x23: return incNN(HL, false);
-            case 0x33: return incNN(BC, true);
+            opcodes[0x03 | (p << 4)] = n -> incNN(pair);
             //DEC nn
-            case 0x0B: return decNN(BC, false);
-            case 0x1B: return decNN(DE, false);
-            case 0x2B: return decNN(HL, false);
-            case 0x3B: return decNN(BC, true);
-
-            // extended
-            case 0xcb: return extendedOpcode();
-            // DAA
-            case 0x27: return decAdjust();
-            //CPL
-            case 0x2f: return cplRegA();
-            //CCF
-            case 0x3f: return ccf();
-            //SCF
-            case 0x37: return scf();
-            
-            
-            //Jumps
-            case 0xc3: return jump();
-            // conditional jump
-            case 0xc2: return jumpC(opcode);
-            case 0xca: return jumpC(opcode);
-            case 0xd2: return jumpC(opcode);
-            case 0xda: return jumpC(opcode);
-            // JP (HL)
-            case 0xe9: return jumpHL();
-            //JR n
-            case 0x18: return jumpN();
-            //JR cc, n
-            case 0x20: return jumpCN(opcode);
-            case 0x28: return jumpCN(opcode);
-            case 0x30: return jumpCN(opcode);
-            case 0x38: return jumpCN(opcode);
-            
-            
-            case 0x76: return halt();
-            case 0x10: return stop();
-            case 0xf3: return disableInterrupts();
-            case 0xfb: return enableInterrupts();
-
-    
-            //calls
-            case 0xcd: return call();
-            case 0xc4: return callC(opcode);
-            case 0xcc: return callC(opcode);
-            case 0xd4: return callC(opcode);
-            case 0xdc: return callC(opcode);
-            
-            //restarts
-            case 0xc7: return restart(0x00);
-            case 0xcf: return restart(0x08);
-            case 0xd7: return restart(0x10);
-            case 0xdf: return restart(0x18);
-            case 0xe7: return restart(0x20);
-            case 0xef: return restart(0x28);
-            case 0xf7: return restart(0x30);
-            case 0xff: return restart(0x38);            
-            
-            
-            //RETURNs
-            case 0xc9: return ret();
-            case 0xc0: return retC(opcode);
-            case 0xc8: return retC(opcode);
-            case 0xd0: return retC(opcode);
-            case 0xd8: return retC(opcode);
-            //RETI
-            case 0xd9: return retI();
-                       
-            //ROTATES AND SHIFTS
-            //RLCA
-            case 0x07: return rlcA();
-            //RLA
-            case 0x17: return rlA();      
-            //RRCA
-            case 0x0f: return rrcA();
-            case 0x1f: return rrN(A, false);
-                       
-                       
-            default:
-                System.err.println("Unimplemented opcode: 0x" + 
-                        Integer.toHexString(opcode));
-                System.err.println("pc: 0x" + Integer.toHexString(pc));
-                System.exit(1); //TODO DONT
+            opcodes[0x0b | (p << 4)] = n -> decNN(pair);
         }
-        return 0;
+        //ADD SP,n
+        opcodes[0xe8] = n -> addSPN(n);
+
+        // DAA
+        opcodes[0x27] = n -> decAdjust();
+        //CPL
+        opcodes[0x2f] = n -> cplRegA();
+        //CCF
+        opcodes[0x3f] = n -> ccf();
+        //SCF
+        opcodes[0x37] = n -> scf();
     }
-    
-    
-    
-    private int extendedOpcode() {
-        int opcode = memory.readByte(pc);
-        pc++;
 
-        switch(opcode) {
-            //SWAP N
-            case 0x37: return swapN(A);
-            case 0x30: return swapN(B);
-            case 0x31: return swapN(C);
-            case 0x32: return swapN(D);
-            case 0x33: return swapN(E);
-            case 0x34: return swapN(H);
-            case 0x35: return swapN(L);
-            case 0x36: return swapN(HL);
-
-            //RLC n
-            case 0x07: return rlcN(A);
-            case 0x00: return rlcN(B);
-            case 0x01: return rlcN(C);
-            case 0x02: return rlcN(D);
-            case 0x03: return rlcN(E);
-            case 0x04: return rlcN(H);
-            case 0x05: return rlcN(L);
-            case 0x06: return rlcN(HL);
-            //RL n
-            case 0x17: return rlN(A);
-            case 0x10: return rlN(B);
-            case 0x11: return rlN(C);
-            case 0x12: return rlN(D);
-            case 0x13: return rlN(E);
-            case 0x14: return rlN(H);
-            case 0x15: return rlN(L);
-            case 0x16: return rlN(HL);
-            //RRC n
-            case 0x0f: return rrcN(A);
-            case 0x08: return rrcN(B);
-            case 0x09: return rrcN(C);
-            case 0x0a: return rrcN(D);
-            case 0x0b: return rrcN(E);
-            case 0x0c: return rrcN(H);
-            case 0x0d: return rrcN(L);
-            case 0x0e: return rrcN(HL);
-            //RR n
-            case 0x1f: return rrN(A, true);
-            case 0x18: return rrN(B, true);
-            case 0x19: return rrN(C, true);
-            case 0x1a: return rrN(D, true);
-            case 0x1b: return rrN(E, true);
-            case 0x1c: return rrN(H, true);
-            case 0x1d: return rrN(L, true);
-            case 0x1e: return rrN(HL, true);
-            //SLA n
-            case 0x27: return slAN(A);
-            case 0x20: return slAN(B);
-            case 0x21: return slAN(C);
-            case 0x22: return slAN(D);
-            case 0x23: return slAN(E);
-            case 0x24: return slAN(H);
-            case 0x25: return slAN(L);
-            case 0x26: return slAN(HL);
-            
-            //SRA n
-            case 0x2f: return srAL(A, false);
-            case 0x28: return srAL(B, false);
-            case 0x29: return srAL(C, false);
-            case 0x2a: return srAL(D, false);
-            case 0x2b: return srAL(E, false);
-            case 0x2c: return srAL(H, false);
-            case 0x2d: return srAL(L, false);
-            case 0x2e: return srAL(HL, false);
-            //SRL n
-            case 0x3f: return srAL(A, true);
-            case 0x38: return srAL(B, true);
-            case 0x39: return srAL(C, true);
-            case 0x3a: return srAL(D, true);
-            case 0x3b: return srAL(E, true);
-            case 0x3c: return srAL(H, true);
-            case 0x3d: return srAL(L, true);
-            case 0x3e: return srAL(HL, true);
-            
-            //Bit opcodes
-            case 0x47: return bitBR(0, A);
-            case 0x40: return bitBR(0, B);
-            case 0x41: return bitBR(0, C);
-            case 0x42: return bitBR(0, D);
-            case 0x43: return bitBR(0, E);
-            case 0x44: return bitBR(0, H);
-            case 0x45: return bitBR(0, L);
-            case 0x46: return bitBR(0, HL);
-
-            case 0x4f: return bitBR(1, A);
-            case 0x48: return bitBR(1, B);
-            case 0x49: return bitBR(1, C);
-            case 0x4a: return bitBR(1, D);
-            case 0x4b: return bitBR(1, E);
-            case 0x4c: return bitBR(1, H);
-            case 0x4d: return bitBR(1, L);
-            case 0x4e: return bitBR(1, HL);
-            
-            case 0x57: return bitBR(2, A);
-            case 0x50: return bitBR(2, B);
-            case 0x51: return bitBR(2, C);
-            case 0x52: return bitBR(2, D);
-            case 0x53: return bitBR(2, E);
-            case 0x54: return bitBR(2, H);
-            case 0x55: return bitBR(2, L);
-            case 0x56: return bitBR(2, HL);
-
-            case 0x5f: return bitBR(3, A);
-            case 0x58: return bitBR(3, B);
-            case 0x59: return bitBR(3, C);
-            case 0x5a: return bitBR(3, D);
-            case 0x5b: return bitBR(3, E);
-            case 0x5c: return bitBR(3, H);
-            case 0x5d: return bitBR(3, L);
-            case 0x5e: return bitBR(3, HL);
-
-            case 0x67: return bitBR(4, A);
-            case 0x60: return bitBR(4, B);
-            case 0x61: return bitBR(4, C);
-            case 0x62: return bitBR(4, D);
-            case 0x63: return bitBR(4, E);
-            case 0x64: return bitBR(4, H);
-            case 0x65: return bitBR(4, L);
-            case 0x66: return bitBR(4, HL);
-
-            case 0x6f: return bitBR(5, A);
-            case 0x68: return bitBR(5, B);
-            case 0x69: return bitBR(5, C);
-            case 0x6a: return bitBR(5, D);
-            case 0x6b: return bitBR(5, E);
-            case 0x6c: return bitBR(5, H);
-            case 0x6d: return bitBR(5, L);
-            case 0x6e: return bitBR(5, HL);
-            
-            case 0x77: return bitBR(6, A);
-            case 0x70: return bitBR(6, B);
-            case 0x71: return bitBR(6, C);
-            case 0x72: return bitBR(6, D);
-            case 0x73: return bitBR(6, E);
-            case 0x74: return bitBR(6, H);
-            case 0x75: return bitBR(6, L);
-            case 0x76: return bitBR(6, HL);
-
-            case 0x7f: return bitBR(7, A);
-            case 0x78: return bitBR(7, B);
-            case 0x79: return bitBR(7, C);
-            case 0x7a: return bitBR(7, D);
-            case 0x7b: return bitBR(7, E);
-            case 0x7c: return bitBR(7, H);
-            case 0x7d: return bitBR(7, L);
-            case 0x7e: return bitBR(7, HL);
-            
-            case 0xc7: return setBR(1, 0, A);
-            case 0xc0: return setBR(1, 0, B);
-            case 0xc1: return setBR(1, 0, C);
-            case 0xc2: return setBR(1, 0, D);
-            case 0xc3: return setBR(1, 0, E);
-            case 0xc4: return setBR(1, 0, H);
-            case 0xc5: return setBR(1, 0, L);
-            case 0xc6: return setBR(1, 0, HL);
-
-            case 0xcf: return setBR(1, 1, A);
-            case 0xc8: return setBR(1, 1, B);
-            case 0xc9: return setBR(1, 1, C);
-            case 0xca: return setBR(1, 1, D);
-            case 0xcb: return setBR(1, 1, E);
-            case 0xcc: return setBR(1, 1, H);
-            case 0xcd: return setBR(1, 1, L);
-            case 0xce: return setBR(1, 1, HL);
-            
-            case 0xd7: return setBR(1, 2, A);
-            case 0xd0: return setBR(1, 2, B);
-            case 0xd1: return setBR(1, 2, C);
-            case 0xd2: return setBR(1, 2, D);
-            case 0xd3: return setBR(1, 2, E);
-            case 0xd4: return setBR(1, 2, H);
-            case 0xd5: return setBR(1, 2, L);
-            case 0xd6: return setBR(1, 2, HL);
-
-            case 0xdf: return setBR(1, 3, A);
-            case 0xd8: return setBR(1, 3, B);
-            case 0xd9: return setBR(1, 3, C);
-            case 0xda: return setBR(1, 3, D);
-            case 0xdb: return setBR(1, 3, E);
-            case 0xdc: return setBR(1, 3, H);
-            case 0xdd: return setBR(1, 3, L);
-            case 0xde: return setBR(1, 3, HL);
-            
-            case 0xe7: return setBR(1, 4, A);
-            case 0xe0: return setBR(1, 4, B);
-            case 0xe1: return setBR(1, 4, C);
-            case 0xe2: return setBR(1, 4, D);
-            case 0xe3: return setBR(1, 4, E);
-            case 0xe4: return setBR(1, 4, H);
-            case 0xe5: return setBR(1, 4, L);
-            case 0xe6: return setBR(1, 4, HL);
-
-            case 0xef: return setBR(1, 5, A);
-            case 0xe8: return setBR(1, 5, B);
-            case 0xe9: return setBR(1, 5, C);
-            case 0xea: return setBR(1, 5, D);
-            case 0xeb: return setBR(1, 5, E);
-            case 0xec: return setBR(1, 5, H);
-            case 0xed: return setBR(1, 5, L);
-            case 0xee: return setBR(1, 5, HL);
-
-            case 0xf7: return setBR(1, 6, A);
-            case 0xf0: return setBR(1, 6, B);
-            case 0xf1: return setBR(1, 6, C);
-            case 0xf2: return setBR(1, 6, D);
-            case 0xf3: return setBR(1, 6, E);
-            case 0xf4: return setBR(1, 6, H);
-            case 0xf5: return setBR(1, 6, L);
-            case 0xf6: return setBR(1, 6, HL);
-
-            case 0xff: return setBR(1, 7, A);
-            case 0xf8: return setBR(1, 7, B);
-            case 0xf9: return setBR(1, 7, C);
-            case 0xfa: return setBR(1, 7, D);
-            case 0xfb: return setBR(1, 7, E);
-            case 0xfc: return setBR(1, 7, H);
-            case 0xfd: return setBR(1, 7, L);
-            case 0xfe: return setBR(1, 7, HL);
-            
-            case 0x87: return setBR(0, 0, A);
-            case 0x80: return setBR(0, 0, B);
-            case 0x81: return setBR(0, 0, C);
-            case 0x82: return setBR(0, 0, D);
-            case 0x83: return setBR(0, 0, E);
-            case 0x84: return setBR(0, 0, H);
-            case 0x85: return setBR(0, 0, L);
-            case 0x86: return setBR(0, 0, HL);
-            
-            case 0x8f: return setBR(0, 1, A);
-            case 0x88: return setBR(0, 1, B);
-            case 0x89: return setBR(0, 1, C);
-            case 0x8a: return setBR(0, 1, D);
-            case 0x8b: return setBR(0, 1, E);
-            case 0x8c: return setBR(0, 1, H);
-            case 0x8d: return setBR(0, 1, L);
-            case 0x8e: return setBR(0, 1, HL);
-
-            case 0x97: return setBR(0, 2, A);
-            case 0x90: return setBR(0, 2, B);
-            case 0x91: return setBR(0, 2, C);
-            case 0x92: return setBR(0, 2, D);
-            case 0x93: return setBR(0, 2, E);
-            case 0x94: return setBR(0, 2, H);
-            case 0x95: return setBR(0, 2, L);
-            case 0x96: return setBR(0, 2, HL);
-            
-            case 0x9f: return setBR(0, 3, A);
-            case 0x98: return setBR(0, 3, B);
-            case 0x99: return setBR(0, 3, C);
-            case 0x9a: return setBR(0, 3, D);
-            case 0x9b: return setBR(0, 3, E);
-            case 0x9c: return setBR(0, 3, H);
-            case 0x9d: return setBR(0, 3, L);
-            case 0x9e: return setBR(0, 3, HL);
-
-            case 0xa7: return setBR(0, 4, A);
-            case 0xa0: return setBR(0, 4, B);
-            case 0xa1: return setBR(0, 4, C);
-            case 0xa2: return setBR(0, 4, D);
-            case 0xa3: return setBR(0, 4, E);
-            case 0xa4: return setBR(0, 4, H);
-            case 0xa5: return setBR(0, 4, L);
-            case 0xa6: return setBR(0, 4, HL);
-            
-            case 0xaf: return setBR(0, 5, A);
-            case 0xa8: return setBR(0, 5, B);
-            case 0xa9: return setBR(0, 5, C);
-            case 0xaa: return setBR(0, 5, D);
-            case 0xab: return setBR(0, 5, E);
-            case 0xac: return setBR(0, 5, H);
-            case 0xad: return setBR(0, 5, L);
-            case 0xae: return setBR(0, 5, HL);
-
-            case 0xb7: return setBR(0, 6, A);
-            case 0xb0: return setBR(0, 6, B);
-            case 0xb1: return setBR(0, 6, C);
-            case 0xb2: return setBR(0, 6, D);
-            case 0xb3: return setBR(0, 6, E);
-            case 0xb4: return setBR(0, 6, H);
-            case 0xb5: return setBR(0, 6, L);
-            case 0xb6: return setBR(0, 6, HL);
-            
-            case 0xbf: return setBR(0, 7, A);
-            case 0xb8: return setBR(0, 7, B);
-            case 0xb9: return setBR(0, 7, C);
-            case 0xba: return setBR(0, 7, D);
-            case 0xbb: return setBR(0, 7, E);
-            case 0xbc: return setBR(0, 7, H);
-            case 0xbd: return setBR(0, 7, L);
-            case 0xbe: return setBR(0, 7, HL);
-            
-            default:
-                System.err.println("Unimplemented opcode: 0xcb" + 
-                        Integer.toHexString(opcode));
-                dumpRegisters(0);
-                System.exit(1);
+    /**
+     * jumps, calls, returns, rotates on A and cpu control
+     */
+    private void initControlOpcodes() {
+        opcodes[0x0] = n -> 4;  //NOP
+
+
+        //Jumps
+        opcodes[0xc3] = n -> jump(n);
+        // conditional jump
+        opcodes[0xc2] = n -> jumpC(0xc2, n);
+        opcodes[0xca] = n -> jumpC(0xca, n);
+        opcodes[0xd2] = n -> jumpC(0xd2, n);
+        opcodes[0xda] = n -> jumpC(0xda, n);
+        // JP (HL)
+        opcodes[0xe9] = n -> jumpHL();
+        //JR n
+        opcodes[0x18] = n -> jumpN(n);
+        //JR cc, n
+        opcodes[0x20] = n -> jumpCN(0x20, n);
+        opcodes[0x28] = n -> jumpCN(0x28, n);
+        opcodes[0x30] = n -> jumpCN(0x30, n);
+        opcodes[0x38] = n -> jumpCN(0x38, n);
+
+        opcodes[0x76] = n -> halt();
+        opcodes[0x10] = n -> stop();
+        opcodes[0xf3] = n -> disableInterrupts();
+        opcodes[0xfb] = n -> enableInterrupts();
+
+        //calls
+        opcodes[0xcd] = n -> call(n);
+        opcodes[0xc4] = n -> callC(0xc4, n);
+        opcodes[0xcc] = n -> callC(0xcc, n);
+        opcodes[0xd4] = n -> callC(0xd4, n);
+        opcodes[0xdc] = n -> callC(0xdc, n);
+
+        //restarts
+        opcodes[0xc7] = n -> restart(0x00);
+        opcodes[0xcf] = n -> restart(0x08);
+        opcodes[0xd7] = n -> restart(0x10);
+        opcodes[0xdf] = n -> restart(0x18);
+        opcodes[0xe7] = n -> restart(0x20);
+        opcodes[0xef] = n -> restart(0x28);
+        opcodes[0xf7] = n -> restart(0x30);
+        opcodes[0xff] = n -> restart(0x38);
+
+        //RETURNs
+        opcodes[0xc9] = n -> ret();
+        opcodes[0xc0] = n -> retC(0xc0);
+        opcodes[0xc8] = n -> retC(0xc8);
+        opcodes[0xd0] = n -> retC(0xd0);
+        opcodes[0xd8] = n -> retC(0xd8);
+        //RETI
+        opcodes[0xd9] = n -> retI();
+
+        //ROTATES AND SHIFTS
+        //RLCA
+        opcodes[0x07] = n -> rlcA();
+        //RLA
+        opcodes[0x17] = n -> rlA();
+        //RRCA
+        opcodes[0x0f] = n -> rrcA();
+        opcodes[0x1f] = n -> rrN(A, false);
+    }
+
+    /**
+     * 0xcb prefixed swaps, rotates and shifts
+     */
+    private void initShiftOpcodes() {
+        for (int r = 0; r < 8; ++r) {
+            final int reg = r;
+            opcodes[0x100 | 0x00 | r] = n -> rlcN(reg);
+            opcodes[0x100 | 0x08 | r] = n -> rrcN(reg);
+            opcodes[0x100 | 0x10 | r] = n -> rlN(reg);
+            opcodes[0x100 | 0x18 | r] = n -> rrN(reg, true);
+            opcodes[0x100 | 0x20 | r] = n -> slAN(reg);
+            opcodes[0x100 | 0x28 | r] = n -> srAL(reg, false);
+            opcodes[0x100 | 0x30 | r] = n -> swapN(reg);
+            opcodes[0x100 | 0x38 | r] = n -> srAL(reg, true);
         }
+    }
+
+    /**
+     * 0xcb prefixed BIT, SET and RES
+     */
+    private void initBitOpcodes() {
+        for (int b = 0; b < 8; ++b) {
+            for (int r = 0; r < 8; ++r) {
+                final int bit = b;
+                final int reg = r;
+                opcodes[0x100 | 0x40 | (b << 3) | r] = n -> bitBR(bit, reg);
+                opcodes[0x100 | 0x80 | (b << 3) | r] = n -> setBR(0, bit, reg);
+                opcodes[0x100 | 0xc0 | (b << 3) | r] = n -> setBR(1, bit, reg);
+            }
+        }
+    }
+
+
+    /**
+     * Fused pairs (superinstructions), in Decoder.FUSED_PAIRS order
+     *
+     * <p>
+     * The operand holds the first instruction's immediate byte in the
+     * low byte, the second's in the high byte. pc already points past
+     * both, which only the second instruction can tell. Cycles and
+     * flags come from the same methods as for the single instructions.
+     */
+    private void initFusedOpcodes() {
+        opcodes[Decoder.FUSED] = n -> {
+            decoder.fusedCounts[0]++;
+            return eightBitLDIA() + eightBitLdNA(DE);
+        };
+        opcodes[Decoder.FUSED + 1] = n -> {
+            decoder.fusedCounts[1]++;
+            return decN(B) + jumpCN(0x20, n >> 8);
+        };
+        opcodes[Decoder.FUSED + 2] = n -> {
+            decoder.fusedCounts[2]++;
+            return decN(C) + jumpCN(0x20, n >> 8);
+        };
+        opcodes[Decoder.FUSED + 3] = n -> {
+            decoder.fusedCounts[3]++;
+            return eightBitLdhA(false, n & 0xff) + cpN(n >> 8, true);
+        };
+    }
+
+
+    /**
+     * Default handler for opcodes missing from the dispatch table
+     *
+     * @param opcode that was not found
+     */
+    private int unimplementedOpcode(int opcode) {
+        System.err.println("Unimplemented opcode: 0x" + 
+                Integer.toHexString(opcode));
+        System.err.println("pc: 0x" + Integer.toHexString(pc));
+        System.exit(1); //TODO DONT
+        return 0;
+    }
+
+    /**
+     * Default handler for 0xcb opcodes missing from the dispatch table
+     *
+     * @param opcode that was not found (without the 0xcb prefix)
+     */
+    private int unimplementedExtendedOpcode(int opcode) {
+        System.err.println("Unimplemented opcode: 0xcb" + 
+                Integer.toHexString(opcode));
+        dumpRegisters(0);
+        System.exit(1);
         return 0;
     }
 
+
     /**
      * LD nn,n. Put value nn into n.
      * 
-     * nn = B,C,D,E,H,L
+     * nn = B,C,D,E,H,L,A,(HL)
      * n = 8 bit immediate value
      * 
      * @param reg (required) register to load to
+     * @param data (required) immediate value
      */ 
-    private int ld_NN_N(GBRegisters.Reg reg) {
-        int data = memory.readByte(pc);
-        pc++;
+    private int ld_NN_N(int reg, int data) {
+        if (reg == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
+            return 12;
+        }
         registers.setReg(reg, data);
         return 8;   
     }
@@ -918,13 +992,13 @@ public class CPU {
      * @param dest destination register
      * @param src  source register
      */ 
-    private int eightBitLdR1R2(GBRegisters.Reg dest, GBRegisters.Reg src) {
-        if (src == HL) {
-            int data = memory.readByte(registers.getReg(HL));
+    private int eightBitLdR1R2(int dest, int src) {
+        if (src == HL_ADDR) {
+            int data = memory.readByte(registers.getHL());
             registers.setReg(dest, data);
             return 8;
-        } else if ((dest == HL) || (dest == BC) || (dest == DE)) {
-            memory.writeByte(registers.getReg(dest), registers.getReg(src));
+        } else if (dest == HL_ADDR) {
+            memory.writeByte(registers.getHL(), registers.getReg(src));
             return 8;
         } else {
             registers.setReg(dest, registers.getReg(src));
@@ -933,15 +1007,15 @@ public class CPU {
     }
 
     /**
-     * Special function for opcode 0x36
-     * 
-     * LD (HL), n
-     */ 
-    private int eightBitLoadFromMem() {
-        int data = memory.readByte(pc);
-        pc++;
-        memory.writeByte(registers.getReg(GBRegisters.Reg.HL), data);
-        return 12;
+     * LD (BC),A and LD (DE),A
+     *
+     * Put A into memory at the address in the register pair
+     *
+     * @param dest register pair holding the address
+     */
+    private int eightBitLdNA(int dest) {
+        memory.writeByte(registers.getPair(dest), registers.getReg(A));
+        return 8;
     }
     
     
@@ -954,9 +1028,7 @@ public class CPU {
      * LSB is first
      * Special function for opcode 0xea
      */ 
-    private int eightBitLoadToMem() {
-        int address = readWordFromMem(pc);
-        pc += 2;
+    private int eightBitLoadToMem(int address) {
         memory.writeByte(address, registers.getReg(A));
         return 16;
     }
@@ -969,32 +1041,20 @@ public class CPU {
      * 
      * @param src value n 
      */ 
-    private int eightBitLdAN(GBRegisters.Reg src) {
-            int data = memory.readByte(registers.getReg(src));
+    private int eightBitLdAN(int src) {
+            int data = memory.readByte(registers.getPair(src));
             registers.setReg(A, data);
             return 8;
     }
 
     /**
-     * LD A,n (where n is located in rom, or an address in rom)
+     * LD A,(nn) (where nn is a two byte immediate address)
      * 
-     * For opcodes: 0xfa, 0x3e
-     * 
-     * @param isPointer If true, next two bytes are address in memory to load
-     *     from. If false, eight bit immediate value is loaded.
+     * For opcode: 0xfa
      */ 
-    private int eightBitALoadMem(boolean isPointer) {
-        if (isPointer) {
-            int address = readWordFromMem(pc);
-            pc += 2;
-            registers.setReg(A, memory.readByte(address));
-            return 16;   
-        } else {
-            int data = memory.readByte(pc);
-            pc++;
-            registers.setReg(A, data);
-            return 8;
-        }
+    private int eightBitALoadMem(int address) {
+        registers.setReg(A, memory.readByte(address));
+        return 16;   
     }
     
     
@@ -1041,9 +1101,9 @@ public class CPU {
      * 
      */ 
     private int eightBitLDAHl() {
-        int address = registers.getReg(GBRegisters.Reg.HL);
-        registers.setReg(GBRegisters.Reg.A, memory.readByte(address));
-        registers.setReg(GBRegisters.Reg.HL, address - 1);
+        int address = registers.getHL();
+        registers.setReg(A, memory.readByte(address));
+        registers.setHL(address - 1);
         return 8;
     }
     
@@ -1054,11 +1114,11 @@ public class CPU {
      * 
      */ 
     private int eightBitStoreHL() {
-        int address = registers.getReg(HL);
+        int address = registers.getHL();
         int data = registers.getReg(A);
         
         memory.writeByte(address, data);
-        registers.setReg(GBRegisters.Reg.HL, address - 1);
+        registers.setHL(address - 1);
         return 8;
     }
     
@@ -1068,19 +1128,19 @@ public class CPU {
      * 
      */ 
     private int eightBitLDIA() {
-        int address = registers.getReg(HL);
+        int address = registers.getHL();
         registers.setReg(A, memory.readByte(address));
-        registers.setReg(HL, address + 1);
+        registers.setHL(address + 1);
         return 8;
     }
     
 
     private int LDI_HL_A() {
-        int address = registers.getReg(HL);
+        int address = registers.getHL();
         int data = registers.getReg(A);
 
         memory.writeByte(address, data);
-        registers.setReg(HL, address + 1);
+        registers.setHL(address + 1);
         return 8;
     }
 
@@ -1093,11 +1153,9 @@ public class CPU {
      * LDH A,(n)  - Put memory address $FF00+n into A
      * 
      * @param writeToMem (required) if true LDH (n),A. if false LDH A,(n)
-     * 
+     * @param offset (required) immediate value n
      */ 
-    private int eightBitLdhA(boolean writeToMem) {
-        int offset = memory.readByte(pc);
-        pc++;
+    private int eightBitLdhA(boolean writeToMem, int offset) {
         if (writeToMem) {
             int data = registers.getReg(A);
             memory.writeByte(0xff00 + offset, data);
@@ -1117,10 +1175,8 @@ public class CPU {
      * nn - 16 Bit immediate value, n = BC, DE, HL
      * 
      */ 
-    private int ld_N_NN(GBRegisters.Reg reg) {
-        int data = readWordFromMem(pc);
-        pc += 2;
-        registers.setReg(reg, data);
+    private int ld_N_NN(int reg, int data) {
+        registers.setPair(reg, data);
         return 12;
     }
     
@@ -1130,9 +1186,8 @@ public class CPU {
      * value nn into SP
      * 
      */ 
-    private int ld_SP_NN() {
-        sp = readWordFromMem(pc);
-        pc += 2;
+    private int ld_SP_NN(int data) {
+        sp = data;
         return 12;
     }
     
@@ -1142,7 +1197,7 @@ public class CPU {
      * Put HL into SP
      */ 
     private int sixteenBitLdSpHl() {
-        sp = registers.getReg(GBRegisters.Reg.HL);
+        sp = registers.getHL();
         return 8;
     }
     
@@ -1159,20 +1214,14 @@ public class CPU {
      * C - set or reset according to operation
      * 
      */ 
-    private int sixteenBitLdHlSp() {
-        byte offset = (byte)memory.readByte(pc);
-        pc++;
+    private int sixteenBitLdHlSp(int n) {
+        byte offset = (byte)n;
 
-        registers.setReg(HL, offset + sp);
+        registers.setHL(offset + sp);
 
-        registers.resetAll();
-
-        if ((sp & 0xf)+ (offset & 0xf)  > 0xf) {
-            registers.setH();
-        }
-        if ((sp & 0xff) + (offset & 0xff) > 0xff) {
-            registers.setC();
-        }
+        //flags from the low byte add, Z reset
+        registers.setAddFlags(sp & 0xff, offset & 0xff, (sp & 0xff) + (offset & 0xff));
+        registers.resetZ();
         return 12;
     }
     
@@ -1181,9 +1230,7 @@ public class CPU {
      * Put SP at address n (2 byte immediate address)
      * stored little endian
      */ 
-    private int sixteenBitLdNnSp() {
-        int address = readWordFromMem(pc);
-        pc += 2;
+    private int sixteenBitLdNnSp(int address) {
 
         memory.writeByte(address, sp & 0xff);
         memory.writeByte(address + 1, ((sp & 0xff00) >> 8));
@@ -1194,10 +1241,10 @@ public class CPU {
     /**
      * Push Register Pair value to stack
      * 
-     * @param src (required) register pair to push to stack
+     * @param src (required) register pair to push to stack (BC,DE,HL,AF)
      */ 
-    private int pushNN(GBRegisters.Reg src) {
-        int reg = registers.getReg(src);
+    private int pushNN(int src) {
+        int reg = (src == AF) ? registers.getAF() : registers.getPair(src);
         writeWordToMem(reg);
         return 16;
     }
@@ -1206,13 +1253,17 @@ public class CPU {
     /**
      * pop value off stack to a register pair
      * 
-     * @param dest (required) register to store data in
+     * @param dest (required) register pair to store data in (BC,DE,HL,AF)
      */ 
-    private int popNN(GBRegisters.Reg dest) {
+    private int popNN(int dest) {
         //todo OAM?
         int data = readWordFromMem(sp);
         sp += 2;
-        registers.setReg(dest, data);
+        if (dest == AF) {
+            registers.setAF(data);
+        } else {
+            registers.setPair(dest, data);
+        }
         return 12;
     }
     
@@ -1230,20 +1281,19 @@ public class CPU {
      * 
      * @param src (source to add from)
      * @param addCarry true if adding carry
-     * @param readMem true if reading immediate value from memory 
-     *     (immediate value) if true, src ignored
+     * @param readMem true if src is an immediate value
+     *     rather than a register
      */ 
-    private int addAN(GBRegisters.Reg src, boolean addCarry, boolean readMem) {
+    private int addAN(int src, boolean addCarry, boolean readMem) {
         int cycles;
         int regA = registers.getReg(A);
         int toAdd;
         
         if (readMem) {
-            toAdd = memory.readByte(pc);
-            pc++;
+            toAdd = src;
             cycles = 8;
-        } else if (src == HL) {
-            toAdd = memory.readByte(registers.getReg(src));
+        } else if (src == HL_ADDR) {
+            toAdd = memory.readByte(registers.getHL());
             cycles = 8;
         } else {
             toAdd = registers.getReg(src);
@@ -1251,21 +1301,11 @@ public class CPU {
         }
 
         //if adding carry and carry is set add 1
-        int carryBit = (addCarry && isSet(registers.getReg(F), CARRY_F)) ? 1 : 0;
+        int carryBit = (addCarry && registers.isC()) ? 1 : 0;
+        int result = toAdd + regA + carryBit;
 
-        registers.setReg(A, (toAdd + regA + carryBit) & 0xff);
-        
-        //flags
-        registers.resetAll();
-        if (registers.getReg(A) == 0) {
-            registers.setZ();
-        }
-        if ((regA & 0xf) + (toAdd & 0xf) + carryBit > 0xf) {
-            registers.setH();
-        }
-        if (toAdd + regA + carryBit > 0xff) {
-            registers.setC();
-        }
+        registers.setReg(A, result & 0xff);
+        registers.setAddFlags(regA, toAdd, result);
         
         return cycles;
     }
@@ -1280,17 +1320,16 @@ public class CPU {
      * C - set if no borrow
      * 
      */ 
-    private int subAN(GBRegisters.Reg src, boolean addCarry, boolean readMem) {
+    private int subAN(int src, boolean addCarry, boolean readMem) {
         int cycles;
         int regA = registers.getReg(A);
         int toSub;
         
         if (readMem) {
-            toSub = memory.readByte(pc);
-            pc++;
+            toSub = src;
             cycles = 8;
-        } else if (src == HL) {
-            toSub = memory.readByte(registers.getReg(src));
+        } else if (src == HL_ADDR) {
+            toSub = memory.readByte(registers.getHL());
             cycles = 8;
         } else {
             toSub = registers.getReg(src);
@@ -1298,23 +1337,12 @@ public class CPU {
         }
 
         //if subtracting carry and carry is set
-        int carryBit = (addCarry && isSet(registers.getReg(F), CARRY_F)) ? 1 : 0;
+        int carryBit = (addCarry && registers.isC()) ? 1 : 0;
+        int result = regA - toSub - carryBit;
 
         //sub
-        registers.setReg(A, regA - toSub - carryBit);
-
-        //flags
-        registers.resetAll();
-        if (registers.getReg(A) == 0) {
-            registers.setZ();
-        }
-        registers.setN();
-        if ((regA & 0xf) < (toSub & 0xf) + carryBit) {
-            registers.setH();
-        }
-        if (regA < (toSub + carryBit)) {
-            registers.setC();
-        }
+        registers.setReg(A, result);
+        registers.setSubFlags(regA, toSub, result);
         return cycles;
     }
     
@@ -1328,19 +1356,18 @@ public class CPU {
      * C - Reset
      * 
      * @param src (required) N to and
-     * @param readMem (required) true if reading immediate value from
-     *     memory (if true, src is ignored)
+     * @param readMem (required) true if src is an immediate
+     *     value rather than a register
      */ 
-    private int andN(GBRegisters.Reg src, boolean readMem) {
+    private int andN(int src, boolean readMem) {
         int cycles;
         int data;
         
         if (readMem) {
-            data = memory.readByte(pc);
-            pc++;
+            data = src;
             cycles = 8;
-        } else if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        } else if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 8;
         } else {
             data = registers.getReg(src);
@@ -1349,12 +1376,7 @@ public class CPU {
         
         int regA = registers.getReg(A);
         registers.setReg(A, data & regA);
-        
-        registers.resetAll();
-        if (((data & regA) & 0xff) == 0) {
-            registers.setZ();
-        }    
-        registers.setH();
+        registers.setLogicFlags(data & regA, true);
         
         return cycles;
     }
@@ -1369,19 +1391,18 @@ public class CPU {
      * C - Reset
      * 
      * @param src (required) N to and
-     * @param readMem (required) true if reading immediate value from
-     *     memory (if true, src is ignored)
+     * @param readMem (required) true if src is an immediate
+     *     value rather than a register
      */ 
-    private int orN(GBRegisters.Reg src, boolean readMem) {
+    private int orN(int src, boolean readMem) {
         int cycles;
         int data;
         
         if (readMem) {
-            data = memory.readByte(pc);
-            pc++;
+            data = src;
             cycles = 8;
-        } else if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        } else if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 8;
         } else {
             data = registers.getReg(src);
@@ -1390,11 +1411,7 @@ public class CPU {
         
         int regA = registers.getReg(A);
         registers.setReg(A, data | regA);
-
-        registers.resetAll();
-        if (((data | regA) & 0xff) == 0) {
-            registers.setZ();
-        }    
+        registers.setLogicFlags(data | regA, false);
         
         return cycles;
     }
@@ -1408,20 +1425,19 @@ public class CPU {
      * Z - set if result is 0
      * N, H, C = Reset
      * @param src (required) src register
-     * @param readMem (required) true if reading immediate value from
-     *     memory (if true src ignored)
+     * @param readMem (required) true if src is an immediate
+     *     value rather than a register
      * @return clock cycles taken
      */ 
-    private int xorN(GBRegisters.Reg src, boolean readMem) {
+    private int xorN(int src, boolean readMem) {
         int cycles;
         int data;
         
         if (readMem) {
-            data = memory.readByte(pc);
-            pc++;
+            data = src;
             cycles = 8;
-        } else if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        } else if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 8;
         } else {
             data = registers.getReg(src);
@@ -1430,10 +1446,7 @@ public class CPU {
 
         int regA = registers.getReg(A);
         registers.setReg(A, data ^ regA);
-        registers.resetAll();
-        if (((data ^ regA) & 0xff) == 0) {
-            registers.setZ();
-        }    
+        registers.setLogicFlags(data ^ regA, false);
         
         return cycles;
     }
@@ -1451,20 +1464,19 @@ public class CPU {
      * C = set if no morrow (Set if A is less than n)
      * 
      * @param src (required) src register
-     * @param readMem (required) true if reading immediate value from
-     *     memory (if true src ignored)
+     * @param readMem (required) true if src is an immediate
+     *     value rather than a register
      * @return clock cycles taken
      */ 
-    private int cpN(GBRegisters.Reg src, boolean readMem) {
+    private int cpN(int src, boolean readMem) {
         int cycles;
         int data;
         
         if (readMem) {
-            data = memory.readByte(pc);
-            pc++;
+            data = src;
             cycles = 8;
-        } else if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        } else if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 8;//-4;
         } else {
             data = registers.getReg(src);
@@ -1472,18 +1484,7 @@ public class CPU {
         }
 
         int regA = registers.getReg(A);
-
-        registers.resetAll();
-        if (regA == data) {
-            registers.setZ();
-        }
-        registers.setN();
-        if ((regA & 0xf) < (data & 0xf)) {
-            registers.setH(); //no borrow from bit 4
-        }
-        if (regA < data) { //no borrow
-            registers.setC();
-        }
+        registers.setSubFlags(regA, data, regA - data);
         return cycles;
     }
     
@@ -1500,27 +1501,19 @@ public class CPU {
      * C - Not affected
      * @param src (required) register to increment
      */ 
-    private int incN(GBRegisters.Reg src) {
+    private int incN(int src) {
         int reg;
-        if (src == HL) {
-            reg = memory.readByte(registers.getReg(src));
-            memory.writeByte(registers.getReg(src), reg + 1);
+        if (src == HL_ADDR) {
+            reg = memory.readByte(registers.getHL());
+            memory.writeByte(registers.getHL(), reg + 1);
         } else {
             reg = registers.getReg(src);
             registers.setReg(src, reg + 1);
         }
- 
-        registers.resetZ();
-        if (((reg + 1) & 0xff) == 0) {
-            registers.setZ();
-        }
-        registers.resetN();
-        registers.resetH();
-        if ((reg & 0xf) == 0xf) {
-            registers.setH();
-        }
 
-        return (src == HL) ? 12 : 4;
+        registers.setIncDecFlags(reg, reg + 1, false);
+
+        return (src == HL_ADDR) ? 12 : 4;
     }
     
     /**
@@ -1535,29 +1528,21 @@ public class CPU {
      * C - Not affected
      * @param src (required) register to decrement
      */ 
-    private int decN(GBRegisters.Reg src) {
+    private int decN(int src) {
         int reg;
-        if (src == HL) {
-            reg = memory.readByte(registers.getReg(src));
+        if (src == HL_ADDR) {
+            reg = memory.readByte(registers.getHL());
             reg -= 1;
-            memory.writeByte(registers.getReg(src), reg & 0xff);
+            memory.writeByte(registers.getHL(), reg & 0xff);
         } else {
             reg = registers.getReg(src);
             reg -= 1;
             registers.setReg(src, reg & 0xff);
         }
-        
-        registers.resetZ();
-        if (reg == 0) {
-            registers.setZ();
-        }
-        registers.setN();
-        registers.resetH();
-        if (((reg + 1) & 0xf0) != (reg & 0xf0)) {
-            registers.setH();
-        }
 
-        return (src == HL) ? 12 : 4;
+        registers.setIncDecFlags(reg + 1, reg, true);
+
+        return (src == HL_ADDR) ? 12 : 4;
     }
     
     
@@ -1575,33 +1560,21 @@ public class CPU {
      * H - Set if carry from bit 11
      * C - Set if carry from bit 15
      * 
-     * @param src source register to add
-     * @param addSP boolean (if true, adds stackpointer instead of register
-     *     to HL, ignores src)
+     * @param src source register pair to add (BC,DE,HL,SP)
      * @return clock cycles taken
      */ 
-    private int sixteenBitAdd(GBRegisters.Reg src, boolean addSP) {
+    private int sixteenBitAdd(int src) {
         int toAdd;
-        int regVal = registers.getReg(HL);
+        int regVal = registers.getHL();
         
-        if (addSP) {
+        if (src == SP) {
             toAdd = sp;
         } else {
-            toAdd = registers.getReg(src);
+            toAdd = registers.getPair(src);
         }
         
-        registers.setReg(HL, regVal + toAdd);
-        
-        //flags
-        registers.resetN();
-        registers.resetH();
-        if ((regVal & 0xfff) + (toAdd & 0xfff) > 0xfff) {
-            registers.setH();
-        }
-        registers.resetC();
-        if ((regVal + toAdd) > 0xffff) {
-            registers.setC();
-        }
+        registers.setHL(regVal + toAdd);
+        registers.setAdd16Flags(regVal, toAdd, regVal + toAdd);
         return 8;
     }
     
@@ -1614,17 +1587,12 @@ public class CPU {
      * Z, N - Reset
      * H, C - Set/reset according to operation????
      */ 
-    private int addSPN() {
-        byte offset = (byte)memory.readByte(pc);
-        pc++;
+    private int addSPN(int n) {
+        byte offset = (byte)n;
         
-        registers.resetAll();
-        if ((sp & 0xf) + (offset & 0xf)  > 0xf) {
-            registers.setH();
-        }
-        if ((sp & 0xff) + (offset & 0xff) > 0xff) {
-            registers.setC();
-        }
+        //flags from the low byte add, Z reset
+        registers.setAddFlags(sp & 0xff, offset & 0xff, (sp & 0xff) + (offset & 0xff));
+        registers.resetZ();
 
         sp += offset;
         return 16;
@@ -1638,16 +1606,15 @@ public class CPU {
      * 
      * Affects NO FLAGS
      * 
-     * @param reg register to increment (ignored if incSP is true)
-     * @param incSP boolean if true, ignore reg and increment sp
+     * @param reg register pair to increment (BC,DE,HL,SP)
      */ 
-    private int incNN(GBRegisters.Reg reg, boolean incSP) {
-        if (incSP) {
+    private int incNN(int reg) {
+        if (reg == SP) {
             sp++;
             sp &= 0xffff;
         } else {
-            int value = registers.getReg(reg);
-            registers.setReg(reg, (value + 1) & 0xffff);
+            int value = registers.getPair(reg);
+            registers.setPair(reg, (value + 1) & 0xffff);
         }
         return 8;
     }
@@ -1659,15 +1626,14 @@ public class CPU {
      * 
      * no flags affected
      * 
-     * @param reg register to increment (ignored if incSP is true)
-     * @param decSP boolean if true, ignore reg and increment sp
+     * @param reg register pair to decrement (BC,DE,HL,SP)
      */
-    private int decNN(GBRegisters.Reg reg, boolean decSP) {
-        if (decSP) {
+    private int decNN(int reg) {
+        if (reg == SP) {
             sp--;
         } else {
-            int value = registers.getReg(reg);
-            registers.setReg(reg, value - 1);
+            int value = registers.getPair(reg);
+            registers.setPair(reg, value - 1);
         }    
         return 8;
     }
@@ -1683,11 +1649,11 @@ public class CPU {
      * 
      * @param reg (required) register to swap
      */ 
-    private int swapN(GBRegisters.Reg reg) {
+    private int swapN(int reg) {
         int data;
 
-        if (reg == HL) {
-            data = memory.readByte(registers.getReg(reg));
+        if (reg == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
         } else {
             data = registers.getReg(reg);
         }
@@ -1695,16 +1661,13 @@ public class CPU {
         int lowNib = data & 0xf;
         int highNib = (data & 0xf0) >> 4;
         data = highNib | (lowNib << 4);
-        if (reg == HL) {
-            memory.writeByte(registers.getReg(reg), data);
+        if (reg == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(reg, data);
         }
-        registers.resetAll();
-        if (data == 0) {
-            registers.setZ();
-        }
-        return (reg == HL) ? 16 : 8;
+        registers.setLogicFlags(data, false);
+        return (reg == HL_ADDR) ? 16 : 8;
    }
     
     
@@ -1721,23 +1684,22 @@ public class CPU {
      * https://github.com/Dooskington/GameLad
      */
     private int decAdjust() {
-        int flags = registers.getReg(F);
         int regA = registers.getReg(A);
 
 
-        if (!isSet(flags, SUBTRACT_F)) {
-            if (isSet(flags, HALFCARRY_F) || (regA & 0x0f) > 0x09) {
+        if (!registers.isN()) {
+            if (registers.isH() || (regA & 0x0f) > 0x09) {
                 regA += 0x06;
             }
-            if (isSet(flags, CARRY_F) || (regA > 0x9f)) {
+            if (registers.isC() || (regA > 0x9f)) {
                 regA += 0x60;
             }
 
         } else {
-            if (isSet(flags, HALFCARRY_F)) {
+            if (registers.isH()) {
                 regA = (regA - 0x06) & 0xff;
             }
-            if (isSet(flags, CARRY_F)) {
+            if (registers.isC()) {
                 regA -= 0x60;
             }
         }
@@ -1783,7 +1745,7 @@ public class CPU {
      * C - Complemented
      */ 
     private int ccf() {
-        if (isSet(registers.getReg(F), CARRY_F)) {
+        if (registers.isC()) {
             registers.resetC();
         } else {
             registers.setC();
@@ -1812,8 +1774,8 @@ public class CPU {
      * Jump to address
      * LSB first
      */ 
-    private int jump() {
-        pc = readWordFromMem(pc);
+    private int jump(int address) {
+        pc = address;
         return 16;
     }
     
@@ -1821,33 +1783,30 @@ public class CPU {
      * Conditional jump
      * 
      */ 
-    private int jumpC(int opcode) {
-        int flags = registers.getReg(F);
-
+    private int jumpC(int opcode, int address) {
         switch (opcode) {
             case 0xca:
-                if (isSet(flags, ZERO_F)) {
-                    return jump();
+                if (registers.isZ()) {
+                    return jump(address);
                 }
                 break;
             case 0xc2:
-                if (!isSet(flags, ZERO_F)) {
-                    return jump();
+                if (!registers.isZ()) {
+                    return jump(address);
                 }
                 break;
             case 0xda:
-                if (isSet(flags, CARRY_F)) {
-                    return jump();
+                if (registers.isC()) {
+                    return jump(address);
                 }
                 break;
             case 0xd2:
-                if (!isSet(flags, CARRY_F)) {
-                    return jump();
+                if (!registers.isC()) {
+                    return jump(address);
                 }
             default:
                 break;
         }
-        pc += 2;
         return 12;
     }
     
@@ -1857,7 +1816,7 @@ public class CPU {
      * Jump to address contained in HL
      */ 
     private int jumpHL() {
-        pc = registers.getReg(HL);
+        pc = registers.getHL();
         return 4;
     }
     
@@ -1867,9 +1826,8 @@ public class CPU {
      * add one byte immediate
      * n to current address and jump to it
      */ 
-    private int jumpN() {
-        byte offset = (byte)memory.readByte(pc);
-        pc++;
+    private int jumpN(int n) {
+        byte offset = (byte)n;
         pc += offset;
         return 12;
     }
@@ -1883,34 +1841,31 @@ public class CPU {
      * 
      * @param opcode (required) opcode for jump condition
      */ 
-    private int jumpCN(int opcode) {
-        int flags = registers.getReg(GBRegisters.Reg.F);
-
+    private int jumpCN(int opcode, int n) {
         switch (opcode) {
             case 0x28:
-                if (isSet(flags, ZERO_F)) {
-                    return jumpN();
+                if (registers.isZ()) {
+                    return jumpN(n);
                 }
                 break;
             case 0x20:
-                if (!isSet(flags, ZERO_F)) {
-                    return jumpN();
+                if (!registers.isZ()) {
+                    return jumpN(n);
                 }
                 break;
             case 0x38:
-                if (isSet(flags, CARRY_F)) {
-                    return jumpN();
+                if (registers.isC()) {
+                    return jumpN(n);
                 }
                 break;
             case 0x30:
-                if (!isSet(flags, CARRY_F)) {
-                    return jumpN();
+                if (!registers.isC()) {
+                    return jumpN(n);
                 }
                 break;
             default:
                 break;
         }
-        pc++;
         return 8;
     }
     
@@ -1922,9 +1877,7 @@ public class CPU {
      * nn (nn is 16 bit immediate value)
      * 
      */ 
-    private int call() {
-        int address = readWordFromMem(pc);
-        pc += 2;
+    private int call(int address) {
         pushWordToStack(pc);
         pc = address;
         return 24;
@@ -1938,34 +1891,31 @@ public class CPU {
      * C flag set/reset
      * @param opcode opcode to check for condition
      */ 
-    private int callC(int opcode) {
-        int flags = registers.getReg(GBRegisters.Reg.F);
-        
+    private int callC(int opcode, int address) {
         switch(opcode) {
             case 0xc4:
-                if (!isSet(flags, ZERO_F)) {
-                    return call();
+                if (!registers.isZ()) {
+                    return call(address);
                 }   
                 break;
             case 0xcc:
-                if (isSet(flags, ZERO_F)) {
-                    return call();
+                if (registers.isZ()) {
+                    return call(address);
                 }   
                 break;
             case 0xd4:
-                if (!isSet(flags, CARRY_F)) {
-                    return call();
+                if (!registers.isC()) {
+                    return call(address);
                 }   
                 break;
             case 0xdc:
-                if (isSet(flags, CARRY_F)) {
-                    return call();
+                if (registers.isC()) {
+                    return call(address);
                 }   
                 break;
             default:
                 break;
         }
-        pc += 2;
         return 12;
     }
     
@@ -2029,26 +1979,24 @@ public class CPU {
      * 
      */ 
     private int retC(int opcode) {
-        int flags = registers.getReg(F);
-        
         switch(opcode) {
             case 0xc0:
-                if (!isSet(flags, ZERO_F)) {
+                if (!registers.isZ()) {
                     return 4 + ret();
                 } 
                 break;
             case 0xc8:
-                if (isSet(flags, ZERO_F)) {
+                if (registers.isZ()) {
                     return 4 + ret();
                 }
                 break;
             case 0xd0:
-                if (!isSet(flags, CARRY_F)) {
+                if (!registers.isC()) {
                     return 4 + ret();
                 }   
                 break;
             case 0xd8:
-                if (isSet(flags, CARRY_F)) {
+                if (registers.isC()) {
                     return 4 + ret();
                 }   
                 break;
@@ -2071,7 +2019,7 @@ public class CPU {
      * 
      */ 
     private int rlcA() {
-        int reg = registers.getReg(GBRegisters.Reg.A);
+        int reg = registers.getReg(A);
         int msb = (reg & 0x80) >> 7;
         
         // rotate left
@@ -2079,10 +2027,8 @@ public class CPU {
         // set lsb to previous msb
         reg |= msb;
         
-        registers.resetAll();
-        if (msb == 0x1) {
-            registers.setC();
-        } 
+        //old bit 7 is now in bit 8
+        registers.setShiftFlags(1, reg); 
 
         registers.setReg(A, reg);
         return 4;   
@@ -2100,17 +2046,12 @@ public class CPU {
      */ 
     private int rlA() {
         int reg = registers.getReg(A);
-        int flags = registers.getReg(F);
-        
         // rotate left
         reg = reg << 1;
         // set lsb to FLAG C
-        reg |= (flags & 0x10) >> 4;
+        reg |= registers.isC() ? 1 : 0;
         
-        registers.resetAll();
-        if ((reg & 0x100) == 0x100) {
-            registers.setC();
-        } 
+        registers.setShiftFlags(1, reg); 
 
         registers.setReg(A, reg);
         return 4;   
@@ -2128,7 +2069,7 @@ public class CPU {
      * 
      */ 
     private int rrcA() {
-        int reg = registers.getReg(GBRegisters.Reg.A);
+        int reg = registers.getReg(A);
         int lsb = reg & 0x1;
         
         // rotate right
@@ -2136,10 +2077,7 @@ public class CPU {
         // set msb to previous lsb
         reg |= lsb << 7;
         
-        registers.resetAll();
-        if (lsb == 1) {
-            registers.setC();
-        } 
+        registers.setShiftFlags(1, lsb << 8); 
 
         registers.setReg(A, reg);
         return 4;   
@@ -2158,12 +2096,12 @@ public class CPU {
      * C - Contains old bit 7 data
      * 
      */ 
-    private int rlcN(GBRegisters.Reg src) {
+    private int rlcN(int src) {
         int data;
         int cycles;
         
-        if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(src);
@@ -2175,16 +2113,10 @@ public class CPU {
         data = data << 1;
         data |= msb;
         
-        registers.resetAll();
-        if (data == 0) {
-            registers.setZ();
-        }
-        if (msb == 1) {
-            registers.setC();
-        }
+        registers.setShiftFlags(data, msb << 8);
         
-        if (src == HL) {
-            memory.writeByte(registers.getReg(src), data);
+        if (src == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(src, data);
         }
@@ -2203,13 +2135,11 @@ public class CPU {
      * H - Reset
      * C - Contains old bit 7 data
      */ 
-    private int rlN(GBRegisters.Reg src) {
+    private int rlN(int src) {
         int data;
         int cycles;
-        int flags = registers.getReg(F);
-        
-        if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(src);
@@ -2217,20 +2147,14 @@ public class CPU {
         }
         
         int msb = ((data & 0x80) >> 7) & 0x1;
-        int carryIn = isSet(flags, CARRY_F) ? 1 : 0;
+        int carryIn = registers.isC() ? 1 : 0;
 
         data = (data << 1 | carryIn) & 0xff;
 
-        registers.resetAll();
-        if (data == 0) {
-            registers.setZ();
-        }
-        if (msb != 0) {
-            registers.setC();
-        }
+        registers.setShiftFlags(data, msb << 8);
         
-        if (src == HL) {
-            memory.writeByte(registers.getReg(src), data);
+        if (src == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(src, data);
         }
@@ -2249,12 +2173,12 @@ public class CPU {
      * C - Contains old bit 0 data
      * 
      */ 
-    private int rrcN(GBRegisters.Reg src) {
+    private int rrcN(int src) {
         int data;
         int cycles;
         
-        if (src == GBRegisters.Reg.HL) {
-            data = memory.readByte(registers.getReg(src));
+        if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(src);
@@ -2266,16 +2190,10 @@ public class CPU {
         data = data >> 1;
         data |= lsb << 7;
         
-        registers.resetAll();
-        if (data == 0) {
-            registers.setZ();
-        }
-        if (lsb == 1) {
-            registers.setC();
-        }
+        registers.setShiftFlags(data, lsb << 8);
         
-        if (src == GBRegisters.Reg.HL) {
-            memory.writeByte(registers.getReg(src), data);
+        if (src == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(src, data);
         }
@@ -2294,13 +2212,11 @@ public class CPU {
      * H - Reset
      * C - Contains old bit 0 data
      */ 
-    private int rrN(GBRegisters.Reg src, boolean setZeroFlag) {
+    private int rrN(int src, boolean setZeroFlag) {
         int data;
         int cycles;
-        int flags = registers.getReg(F);
-        
-        if (src == HL) {
-            data = memory.readByte(registers.getReg(src));
+        if (src == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(src);
@@ -2308,23 +2224,15 @@ public class CPU {
         }
         
         int lsb = data & 0x1;
-        int carryIn = isSet(flags, CARRY_F) ? 1 : 0;
+        int carryIn = registers.isC() ? 1 : 0;
 
         data = (data >> 1) | (carryIn << 7);
         data &= 0xff;
 
-        registers.resetAll();
-
-        if (setZeroFlag && data == 0) {
-            registers.setZ();
-        }
-
-        if (lsb != 0) {
-            registers.setC();
-        }
+        registers.setShiftFlags(setZeroFlag ? data : 1, lsb << 8);
         
-        if (src == HL) {
-            memory.writeByte(registers.getReg(src), data);
+        if (src == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(src, data);
         }
@@ -2339,12 +2247,12 @@ public class CPU {
      * H, N - reset
      * C - contains old bit 7 data
      */ 
-    private int slAN(GBRegisters.Reg reg) {
+    private int slAN(int reg) {
         int cycles;
         int data;
         
-        if (reg == GBRegisters.Reg.HL) {
-            data = memory.readByte(registers.getReg(reg));
+        if (reg == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(reg);
@@ -2353,17 +2261,10 @@ public class CPU {
 
         int msb = (data & 0x80) & 0xff;
         data = (data << 1) & 0xff;
+        registers.setShiftFlags(data, msb << 1);
 
-        registers.resetAll();
-        if (data == 0) {
-            registers.setZ();
-        }
-        if (msb != 0) {
-            registers.setC();
-        }
-
-        if (reg == GBRegisters.Reg.HL) {
-            memory.writeByte(registers.getReg(reg), data);
+        if (reg == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(reg, data);
         }        
@@ -2381,12 +2282,12 @@ public class CPU {
      * C - contains old bit 0 data
      * @param unsignedShift if true SRL, if false SRA
      */ 
-    private int srAL(GBRegisters.Reg reg, boolean unsignedShift) {
+    private int srAL(int reg, boolean unsignedShift) {
         int cycles;
         int data;
         
-        if (reg == HL) {
-            data = memory.readByte(registers.getReg(reg));
+        if (reg == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(reg);
@@ -2405,16 +2306,10 @@ public class CPU {
             data |= bit7;
         }
         
-        registers.resetAll();
-        if (data == 0) {
-            registers.setZ();
-        }
-        if (lsb == 1) {
-            registers.setC();
-        }
+        registers.setShiftFlags(data, lsb << 8);
 
-        if (reg == GBRegisters.Reg.HL) {
-            memory.writeByte(registers.getReg(reg), data);
+        if (reg == HL_ADDR) {
+            memory.writeByte(registers.getHL(), data);
         } else {
             registers.setReg(reg, data);
         }
@@ -2433,7 +2328,7 @@ public class CPU {
         System.out.println("C:   0x" + Integer.toHexString(registers.getReg(C)));
         System.out.println("D:   0x" + Integer.toHexString(registers.getReg(D)));
         System.out.println("E:   0x" + Integer.toHexString(registers.getReg(E)));
-        System.out.println("F:   0x" + Integer.toHexString(registers.getReg(F)));
+        System.out.println("F:   0x" + Integer.toHexString(registers.getF()));
         System.out.println("H:   0x" + Integer.toHexString(registers.getReg(H)));
         System.out.println("L:   0x" + Integer.toHexString(registers.getReg(L)));
         System.out.println("PC:  0x" + Integer.toHexString(pc));
@@ -2454,23 +2349,17 @@ public class CPU {
      * @param reg register to check
      * 
      */ 
-    private int bitBR(int bit, GBRegisters.Reg reg) {
+    private int bitBR(int bit, int reg) {
         int data;
         int cycles;
-        if (reg == HL) {
-            data = memory.readByte(registers.getReg(reg));
+        if (reg == HL_ADDR) {
+            data = memory.readByte(registers.getHL());
             cycles = 16;
         } else {
             data = registers.getReg(reg);
             cycles = 8;
         }
-        registers.resetZ();
-        if (!isSet(data, bit)) {
-            registers.setZ();
-        }
-        registers.setH();
-        registers.resetN();
-        
+        registers.setBitFlags(data & (1 << bit));
         return cycles;
     }
     
@@ -2494,11 +2383,11 @@ public class CPU {
      * @param bitNum bit to set
      * @param reg register to set
      */ 
-    private int setBR(int val, int bitNum, GBRegisters.Reg reg) {
-        if (reg == GBRegisters.Reg.HL) {
-            int data = memory.readByte(registers.getReg(reg));
+    private int setBR(int val, int bitNum, int reg) {
+        if (reg == HL_ADDR) {
+            int data = memory.readByte(registers.getHL());
             data = setBit(val, bitNum, data);
-            memory.writeByte(registers.getReg(reg), data);
+            memory.writeByte(registers.getHL(), data);
             return 16;
         } else {
             int data = registers.getReg(reg);
@@ -2521,45 +2410,153 @@ public class CPU {
     }
 
     /**
-     * updateDivideRegister
-     * 
-     * updates the divide register 
+     * Waits out a HALT with no interrupt pending
+     *
+     * <p>
+     * Nothing can wake the cpu before the next interrupt source is due
+     * (an lcd mode change or TIMA overflow, or a key press, which is
+     * seen at the limit), so instead of stepping 4 cycles at a time the
+     * clock jumps straight to the first halt step at or after it. The
+     * DIV increments on the way are accounted in bulk, landing on the
+     * same values and due times as stepping would, TIMA catches up
+     * when it is read.
+     *
+     * @param limit clock cycle to skip ahead to at most
+     * @return clock cycles skipped, a multiple of 4
+     */
+    private int skipHalt(long limit) {
+        long now = scheduler.now();
+        long wake = Math.min(limit, now + MAX_SKIP_CYCLES);
+        if (scheduler.isScheduled(Scheduler.LCD)) {
+            wake = Math.min(wake, scheduler.dueTime(Scheduler.LCD));
+        }
+        if (timerRunning) {
+            wake = Math.min(wake, scheduler.dueTime(Scheduler.TIMER));
+        }
+        int cycles = (int)Math.max(4, (wake - now + 3) & ~3L);
+        long end = now + cycles;
+
+        //DIV increments at the first halt step after its period,
+        //every 256 cycles
+        long due = now + ((scheduler.dueTime(Scheduler.DIVIDER) - now + 3) & ~3L);
+        if (due <= end) {
+            int count = (int)((end - due) / (DIVIDER_PERIOD + 1)) + 1;
+            for (int i = 0; i < count; ++i) {
+                memory.incrementDivider();
+            }
+            dividerStart = due + (long)(count - 1) * (DIVIDER_PERIOD + 1);
+            scheduler.schedule(Scheduler.DIVIDER, dividerStart + DIVIDER_PERIOD);
+        }
+        tick(cycles);
+        return cycles;
+    }
+
+    /**
+     * (re)starts the DIV and TIMA events
+     * after a reset or a loaded state
+     *
+     * @param divideCounter cycles since DIV last incremented
+     */
+    private void startTimers(int divideCounter) {
+        dividerStart = scheduler.now() - divideCounter;
+        scheduler.schedule(Scheduler.DIVIDER, dividerStart + DIVIDER_PERIOD);
+        timerRunning = false;
+        timerControlWritten(memory.peek(0xff07));
+    }
+
+    /**
+     * DIV event, increments the divide register
      * ASSUMES CLOCKSPEED OF 4194304
      * TODO
-     * @param cycles (clock cycles passed this instruction)
+     * @param due clock cycle the increment was due
      */ 
-    private void updateDivideRegister(int cycles) {
-        divideCounter += cycles;
-        
-        if (divideCounter >= 0xff) {
-            divideCounter = 0;
-            memory.incrementDivider();
-        }
-
+    private void dividerEvent(long due) {
+        //cycles past due are dropped
+        dividerStart = scheduler.now();
+        memory.incrementDivider();
+        scheduler.schedule(Scheduler.DIVIDER, dividerStart + DIVIDER_PERIOD);
     }
 
     /**
-     * updateTimers
-     * 
-     * updates the CPU timers in memory
-     * @param cycles number of cycles that have passed
+     * TIMA event, due at the increment that overflows the timer
+     *
+     * @param due clock cycle the overflow was due
      */ 
-    private void updateTimers(int cycles) {
-        //check the enable
-        if (!isSet(memory.readByte(0xff07), 2)) {
+    private void timerEvent(long due) {
+        updateTimer();
+        scheduleTimer();
+    }
+
+    /**
+     * Brings TIMA in memory up to the current clock cycle, once
+     * for every increment that has passed. An overflow reloads
+     * it from TMA and requests the timer interrupt
+     */
+    private void updateTimer() {
+        long now = scheduler.now();
+        if (!timerRunning || now < timerNext) {
             return;
         }
-        timerCounter -= cycles;
+        long increments = (now - timerNext) / timerPeriod + 1;
+        timerNext += increments * timerPeriod;
+        long count = memory.getTIMA() + increments;
+        while (count > 0xff) {
+            count = memory.peek(0xff06) + (count - 0x100);
+            requestInterrupt(0x2);
+        }
+        memory.setTIMA((int)count);
+    }
 
-        //update the counter in memory
-        while (timerCounter <= 0) {
-            timerCounter += getCountFrequency();
+    /**
+     * Schedules the TIMA event at the increment
+     * that overflows the current count
+     */
+    private void scheduleTimer() {
+        scheduler.schedule(Scheduler.TIMER,
+                timerNext + (long)(0xff - memory.getTIMA()) * timerPeriod);
+    }
 
-            memory.incrementTIMA();
-            if (memory.readByte(0xff05) == 0x0) {
-                memory.resetTIMA();
-                requestInterrupt(0x2);
-            }
+    /**
+     * reads TIMA (0xff05) as of the current clock cycle
+     */
+    private int readTimer() {
+        updateTimer();
+        return memory.getTIMA();
+    }
+
+    /**
+     * Writes TIMA (0xff05), the overflow moves with it
+     * but the next increment stays where it was
+     *
+     * @param data value written to TIMA
+     */
+    private void writeTimer(int data) {
+        updateTimer();
+        memory.setTIMA(data);
+        if (timerRunning) {
+            scheduleTimer();
+        }
+    }
+
+    /**
+     * Starts or stops the TIMA event after a write to TAC (0xff07)
+     *
+     * A new frequency only takes effect from the next increment
+     *
+     * @param control value written to TAC
+     */
+    private void timerControlWritten(int control) {
+        if (timerRunning) {
+            updateTimer();
+            timerCounter = (int)(timerNext - scheduler.now());
+        }
+        timerPeriod = getCountFrequency();
+        timerRunning = isSet(control, 2);
+        if (timerRunning) {
+            timerNext = scheduler.now() + timerCounter;
+            scheduleTimer();
+        } else {
+            scheduler.cancel(Scheduler.TIMER);
         }
     }
     
@@ -2570,7 +2567,7 @@ public class CPU {
      * and returns the appropriate clock cycle update 
      */ 
     private int getCountFrequency() {
-        int freq = memory.readByte(0xff07) & 0x3;
+        int freq = memory.peek(0xff07) & 0x3;
 
         switch (freq) {
             case 0: return 1024;
@@ -2598,28 +2595,22 @@ public class CPU {
      * @param id interrupt to request
      */ 
     public void requestInterrupt(int id) {
-        int flags = memory.readByte(0xff0f);
-        flags = setBit(1, id, flags);
-        memory.writeByte(0xff0f, flags);
+        memory.requestInterrupt(id);
+        blockCache.stopRunning();
     }
     
     /**
-     * Checks interrupts and services them if required
+     * Checks interrupts and services the one with the
+     * highest priority (lowest bit) if required
      */
     private void checkInterrupts() {
         if (interruptState != ENABLED) {
             return; //IME flag not set
         }
 
-        int interruptFlag = memory.readByte(0xff0f);
-        int interruptEnable = memory.readByte(0xffff);
-
-        if (interruptFlag > 0 && interruptEnable > 0) {
-            for (int i = 0; i < 5; ++i) {
-                if (isSet(interruptFlag, i) && isSet(interruptEnable, i)) {
-                    handleInterrupt(i);
-                }
-            }
+        int pending = memory.getPendingInterrupts();
+        if (pending != 0) {
+            handleInterrupt(Integer.numberOfTrailingZeros(pending));
         }
     }
 
@@ -2642,9 +2633,9 @@ public class CPU {
         interruptState = DISABLED;
 
         //reset the interrupt bit
-        int flags = memory.readByte(0xff0f);
+        int flags = memory.peek(0xff0f);
         flags = setBit(0, id, flags);
-        memory.writeByte(0xff0f, flags);
+        memory.poke(0xff0f, flags);
         pushWordToStack(pc);
         
         switch (id) {
@@ -2694,7 +2685,6 @@ public class CPU {
     private int stop() {
         System.out.println("STOPPED!!!!");
         isStopped = true;
-        pc++;
         return 4;
     }
 
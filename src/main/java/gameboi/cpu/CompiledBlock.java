@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.cpu;
+
+/**
+ * Base class of the classes generated by BlockCompiler
+ *
+ * A compiled block runs a straight line run of instructions
+ * (a basic block) without fetching or decoding the opcodes,
+ * each instruction is a direct call to its Opcode handler
+ *
+ * Generated subclasses live in their own class loader, so
+ * everything they use here has to be public or protected
+ *
+ * @author tomis007
+ */
+public abstract class CompiledBlock {
+    private final CPU cpu;
+
+    /**
+     * set when the block has to give control back after the
+     * current instruction (its code was overwritten, the
+     * bank it runs from was switched out, an event ran or
+     * IF/IE was written)
+     */
+    protected boolean stop;
+
+    //address of the first instruction and the byte after the last one
+    int start;
+    int end;
+
+    /**
+     * @param cpu to run the block on
+     */
+    protected CompiledBlock(CPU cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Runs the block until it exits
+     *
+     * @return clock cycles taken
+     */
+    public abstract int execute();
+
+    /**
+     * Moves pc past the next instruction
+     *
+     * @param address of the byte following the instruction
+     */
+    protected final void fetch(int address) {
+        cpu.setPC(address);
+    }
+
+    /**
+     * Advances the clock after an instruction, the block
+     * stops if a timer or gpu event ran so its interrupts
+     * are checked
+     *
+     * @param cycles taken by the instruction
+     */
+    protected final void tick(int cycles) {
+        if (cpu.tick(cycles)) {
+            stop = true;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.cpu;
+
+import main.java.gameboi.memory.GBMem;
+
+import java.util.Arrays;
+
+/**
+ * Instruction decoder with a cache of pre-decoded ROM instructions
+ *
+ * <p>
+ * A decoded instruction (micro-op) is packed into an int:
+ * <ul>
+ *   <li> bits 0-9   - handler index (opcode, 0x100 + opcode for 0xcb prefixed,
+ *                     FUSED + pair for fused pairs)</li>
+ *   <li> bits 10-12 - instruction length in bytes</li>
+ *   <li> bits 16-31 - immediate operand (byte or little endian word)</li>
+ * </ul>
+ *
+ * <p>
+ * ROM can't change, so instructions in 0x0000-0x7fff are decoded once
+ * into per bank tables (indexed by offset in the bank) and never
+ * invalidated. Code running from anywhere else goes through the plain
+ * decoder in CPU.
+ *
+ * <p>
+ * With fusion on, an instruction in the tables that is followed by the
+ * second half of one of FUSED_PAIRS is stored as one superinstruction:
+ * handler FUSED + pair index, the length of both and the first
+ * instruction's immediate byte in the low byte of the operand, the
+ * second's in the high byte. Jumps straight to the second instruction
+ * still find it on its own.
+ *
+ * @author tomis007
+ */
+final class Decoder {
+    //instruction length by opcode
+    private static final int[] LENGTH = new int[0x100];
+    //table entry for instructions that have to be decoded from memory
+    static final int UNCACHEABLE = -1;
+
+    //handler index of the first fused pair
+    static final int FUSED = 0x200;
+    //opcode pairs that run as one handler, FUSED + index
+    static final int[][] FUSED_PAIRS = {
+        {0x2a, 0x12},   //copy loops
+        {0x05, 0x20},   //counters
+        {0x0d, 0x20},
+        {0xf0, 0xfe},   //polls
+    };
+    static final String[] FUSED_NAMES = {
+        "LD A,(HL+) / LD (DE),A",
+        "DEC B / JR NZ,n",
+        "DEC C / JR NZ,n",
+        "LDH A,(n) / CP n",
+    };
+
+    static {
+        Arrays.fill(LENGTH, 1);
+        int[] immediate8 = {0x06, 0x0e, 0x16, 0x1e, 0x26, 0x2e, 0x36, 0x3e,
+            0x10, 0x18, 0x20, 0x28, 0x30, 0x38, 0xc6, 0xce, 0xd6, 0xde,
+            0xe6, 0xee, 0xf6, 0xfe, 0xe0, 0xf0, 0xe8, 0xf8, 0xcb};
+        for (int op : immediate8) {
+            LENGTH[op] = 2;
+        }
+        int[] immediate16 = {0x01, 0x11, 0x21, 0x31, 0x08, 0xc2, 0xc3, 0xca,
+            0xd2, 0xda, 0xc4, 0xcc, 0xcd, 0xd4, 0xdc, 0xea, 0xfa};
+        for (int op : immediate16) {
+            LENGTH[op] = 3;
+        }
+    }
+
+    private final GBMem memory;
+    //0x0000-0x3fff
+    private int[] bank0;
+    //0x4000-0x7fff by rom bank, allocated on first use
+    private final int[][] banks;
+    private boolean fusion;
+    //times each fused pair ran, counted by its handler
+    final long[] fusedCounts;
+
+    /**
+     * @param memory to decode instructions from
+     */
+    Decoder(GBMem memory) {
+        this.memory = memory;
+        banks = new int[0x200][];
+        fusedCounts = new long[FUSED_PAIRS.length];
+        fusion = true;
+        reset();
+    }
+
+    /**
+     * Length of an instruction
+     *
+     * @param opcode first byte of the instruction
+     * @return length in bytes
+     */
+    static int instructionLength(int opcode) {
+        return LENGTH[opcode];
+    }
+
+    /**
+     * @param op packed micro-op
+     * @return handler index
+     */
+    static int handler(int op) {
+        return op & 0x3ff;
+    }
+
+    /**
+     * @param op packed micro-op
+     * @return instruction length
+     */
+    static int length(int op) {
+        return (op >> 10) & 0x7;
+    }
+
+    /**
+     * @param op packed micro-op
+     * @return immediate operand
+     */
+    static int operand(int op) {
+        return op >>> 16;
+    }
+
+    /**
+     * Pre-decoded instruction at address in the currently mapped rom bank
+     *
+     * @param address of the instruction, 0x0000-0x7fff
+     * @return packed micro-op, 0 if it has to be decoded from memory
+     */
+    int cached(int address) {
+        int[] table;
+        int index;
+        int limit;
+        if (address < 0x4000) {
+            table = bank0;
+            index = address;
+            limit = 0x4000;
+        } else {
+            int bank = memory.getRomBank() & 0x1ff;
+            if (banks[bank] == null) {
+                banks[bank] = new int[0x4000];
+            }
+            table = banks[bank];
+            index = address - 0x4000;
+            limit = 0x8000;
+        }
+        int op = table[index];
+        if (op == 0) {
+            op = decode(address, limit);
+            if (fusion && op != UNCACHEABLE) {
+                op = fuse(op, address, limit);
+            }
+            table[index] = op;
+        }
+        return (op == UNCACHEABLE) ? 0 : op;
+    }
+
+    /**
+     * Decodes the instruction at address from memory
+     *
+     * @param address of the instruction
+     * @param limit end of the memory region, the instruction has to fit below it
+     * @return packed micro-op, UNCACHEABLE if the instruction doesn't fit or
+     *     reads an invalid address
+     */
+    int decode(int address, int limit) {
+        int opcode = memory.peek(address);
+        if (opcode < 0 || address + LENGTH[opcode] > limit) {
+            return UNCACHEABLE;
+        }
+        int length = LENGTH[opcode];
+        int handler = opcode;
+        int operand = 0;
+        if (opcode == 0xcb) {
+            int extended = memory.peek(address + 1);
+            if (extended < 0) {
+                return UNCACHEABLE;
+            }
+            handler = 0x100 | extended;
+        } else if (length > 1) {
+            operand = memory.peek(address + 1);
+            if (operand < 0) {
+                return UNCACHEABLE;
+            }
+            if (length == 3) {
+                int high = memory.peek(address + 2);
+                if (high < 0) {
+                    return UNCACHEABLE;
+                }
+                operand |= high << 8;
+            }
+        }
+        return handler | (length << 10) | (operand << 16);
+    }
+
+    /**
+     * Fuses op with the instruction following it, if they are one of
+     * FUSED_PAIRS (neither half has a 16 bit immediate)
+     *
+     * @return fused micro-op, or op
+     */
+    private int fuse(int op, int address, int limit) {
+        for (int i = 0; i < FUSED_PAIRS.length; ++i) {
+            if (handler(op) != FUSED_PAIRS[i][0]) {
+                continue;
+            }
+            int next = decode(address + length(op), limit);
+            if (next != UNCACHEABLE && handler(next) == FUSED_PAIRS[i][1]) {
+                int length = length(op) + length(next);
+                int operand = operand(op) | (operand(next) << 8);
+                return (FUSED + i) | (length << 10) | (operand << 16);
+            }
+        }
+        return op;
+    }
+
+    /**
+     * Turns superinstructions on or off, drops the decoded instructions
+     *
+     * @param enabled true to fuse FUSED_PAIRS
+     */
+    void setFusion(boolean enabled) {
+        fusion = enabled;
+        reset();
+    }
+
+    /**
+     * Drops every pre-decoded instruction and the fused
+     * pair counts (new rom loaded)
+     */
+    void reset() {
+        Arrays.fill(fusedCounts, 0);
+        bank0 = new int[0x4000];
+        for (int i = 0; i < banks.length; ++i) {
+            banks[i] = null;
+        }
+    }
+}
@@ -27,23 +27,49 @@ package main.java.gameboi.cpu;
  * Represents the GBRegisters, allows easy access/modifications.
  * 
  * <p>
- * get/set for each of the following A,B,C,D,E,F,H,L,AF,BC,DE,HL
- * also set/unset for the flags in F
+ * The eight bit registers are kept in an int array indexed the same way
+ * the opcodes encode them (B,C,D,E,H,L,(HL),A = 0-7), so the cpu can pass
+ * opcode bit fields straight through. Register pairs BC, DE, HL are
+ * indexed as in the 16 bit opcodes (0-2), AF is handled separately.
+ * Also set/unset for the flags in F
+ *
+ * <p>
+ * The flags are evaluated lazily. ALU operations record their operands
+ * and unmasked result, and Z/N/H/C are only worked out when F or one
+ * of the flags is read (conditional jumps, PUSH AF, DAA, saving):
+ * <ul>
+ *   <li> Z - set if the low 8 bits of zeroResult are 0</li>
+ *   <li> N - subtract</li>
+ *   <li> H - set if bit 4 of halfCarryBits is set (a ^ b ^ result
+ *            for an add/subtract is the carry/borrow into each bit)</li>
+ *   <li> C - set if bit 8 of carryBits is set (unmasked 8 bit result)</li>
+ * </ul>
  *
  * NOTE: setting f masks input value with &f0
  * @author tomis007
  */
 public class GBRegisters {
-    private int a;
-    private int b;
-    private int c;
-    private int d;
-    private int e;
-    private int f;
-    private int h;
-    private int l;
-    
-    public enum Reg {A, B, C, D, E, F, H, L, AF, BC, DE, HL};
+    //eight bit register indexes (6 is (HL) in opcodes, not a register)
+    public static final int B = 0;
+    public static final int C = 1;
+    public static final int D = 2;
+    public static final int E = 3;
+    public static final int H = 4;
+    public static final int L = 5;
+    public static final int A = 7;
+
+    //register pair indexes
+    public static final int BC = 0;
+    public static final int DE = 1;
+    public static final int HL = 2;
+
+    private final int[] regs;
+
+    //lazy flag state
+    private int zeroResult;
+    private boolean subtract;
+    private int halfCarryBits;
+    private int carryBits;
     
     
     /**
@@ -53,6 +79,8 @@ public class GBRegisters {
      * 
      */ 
     public GBRegisters() {
+        regs = new int[8];
+        resetAll();
        /* a = 0x11;
         f = 0xb0;
         b = 0x0;
@@ -64,338 +92,318 @@ public class GBRegisters {
     }
     
     /**
-     * Set a value in a register
+     * Set a value in an eight bit register
      * 
-     * Value is masked to 8bits (16 if one of the register combinations)
-     * For register pairs, LSB is put into second register in pair
+     * Value is masked to 8bits
      * 
-     * @param register (required) register to set
+     * @param register (required) register index to set (not F)
      * @param data (required) data to place in register
      */ 
-    public void setReg(Reg register, int data) {
-        switch(register) {
-            case A: this.setA(data);
-                        break;
-            case B: this.setB(data);
-                        break;
-            case C: this.setC(data);
-                        break;
-            case D: this.setD(data);
-                        break;
-            case E: this.setE(data);
-                        break;
-            case F: this.setF(data);
-                        break;
-            case H: this.setH(data);
-                        break;
-            case L: this.setL(data);
-                        break;
-            case AF: this.setAF(data);
-                        break;
-            case BC: this.setBC(data);
-                        break;
-            case DE: this.setDE(data);
-                        break;
-            case HL: this.setHL(data);
-                        break;
-            default: System.err.println("Invalid attempt to set Register!");
-                     break;
-        }
+    public void setReg(int register, int data) {
+        regs[register] = data & 0xff;
     }
     
     
-    
-    
     /**
-     * Get a value in a register
+     * Get a value in an eight bit register
      * 
      * 
-     * @param register (required) register to get value from
+     * @param register (required) register index to get value from (not F)
      * @return value in register (integer)
      */ 
-    public int getReg(Reg register) {
-        switch(register) {
-            case A: return this.getA();
-            case B: return this.getB();
-            case C: return this.getC();
-            case D: return this.getD();
-            case E: return this.getE();
-            case F: return this.getF();
-            case H: return this.getH();
-            case L: return this.getL();
-            case AF: return this.getAF();
-            case BC: return this.getBC();
-            case DE: return this.getDE();
-            case HL: return this.getHL();
-            default: System.err.println("Invalid attempt to set Register!");
-                     break;
-        }
-        return -1;
+    public int getReg(int register) {
+        return regs[register];
     }
-    
-    
-    //register FLAG functions
+
     /**
-     * Set Z FLAG
-     */ 
-    public void setZ() {
-        f |= 0x80;
+     * Set a value in a register pair
+     *
+     * Value is masked to 16 bits, LSB is put into
+     * second register in pair
+     *
+     * @param pair (required) BC, DE or HL
+     * @param data (required) data to place in the pair
+     */
+    public void setPair(int pair, int data) {
+        regs[pair << 1] = (data & 0xff00) >> 8;
+        regs[(pair << 1) + 1] = data & 0xff;
     }
 
     /**
-     * Reset Z Flag
-     */ 
-    public void resetZ() {
-        f &= 0x70;
+     * Get the value of a register pair
+     *
+     * @param pair (required) BC, DE or HL
+     * @return value in register pair
+     */
+    public int getPair(int pair) {
+        return (regs[pair << 1] << 8) | regs[(pair << 1) + 1];
     }
-    
+
     /**
-     * Set H FLAG
-     * 
-     */ 
-    public void setH() {
-        f |= 0x20;
+     * @return value in register HL
+     */
+    public int getHL() {
+        return (regs[H] << 8) | regs[L];
     }
 
     /**
-     * Reset H FLag
-     */ 
-    public void resetH() {
-        f &= 0xd0;
+     * Set value for register HL.
+     *
+     * @param num (required) number to set regHL to (masked to 16 bits)
+     */
+    public void setHL(int num) {
+        regs[H] = (num & 0xff00) >> 8;
+        regs[L] = num & 0xff;
     }
-    
+
     /**
-     * Set C Flag
-     */ 
-    public void setC() {
-        f |= 0x10;
+     * Builds register F from the lazy flag state
+     *
+     * @return value in register F
+     */
+    public int getF() {
+        int f = 0;
+        if ((zeroResult & 0xff) == 0) {
+            f |= 0x80;
+        }
+        if (subtract) {
+            f |= 0x40;
+        }
+        if ((halfCarryBits & 0x10) != 0) {
+            f |= 0x20;
+        }
+        if ((carryBits & 0x100) != 0) {
+            f |= 0x10;
+        }
+        return f;
     }
 
     /**
-     * Reset C Flag
-     */ 
-    public void resetC() {
-        f &= 0xe0;
+     * Set value for register F.
+     *
+     * @param num (required) number to set regF to (masked to 8 bits)
+     */
+    public void setF(int num) {
+        zeroResult = ((num & 0x80) != 0) ? 0 : 1;
+        subtract = (num & 0x40) != 0;
+        halfCarryBits = (num & 0x20) >> 1;
+        carryBits = (num & 0x10) << 4;
     }
-    
+
     /**
-     * Set N FLAG
-     */ 
-    public void setN() {
-        f |= 0x40;
+     * @return value in register AF
+     */
+    public int getAF() {
+        return (regs[A] << 8) | getF();
     }
-    
+
     /**
-     * Reset N Flag
-     */ 
-    public void resetN() {
-        f &= 0xb0;
+     * Set value for register AF.
+     *
+     * @param num (required) number to set regAF to (masked to 16 bits)
+     */
+    public void setAF(int num) {
+        regs[A] = (num & 0xff00) >> 8;
+        setF(num);
     }
-    
-    /**
-     * Reset all Flags
-     * 
-     */ 
-    public void resetAll() {
-        f = 0x0;
+
+
+    //lazy flag recording, called by the ALU operations
+    /**
+     * 8 bit add (ADD, ADC, LDHL SP,n / ADD SP,n low byte)
+     * Z, H, C from the operation, N reset
+     *
+     * @param a first operand
+     * @param b second operand
+     * @param result unmasked a + b (+ carry)
+     */
+    public void setAddFlags(int a, int b, int result) {
+        zeroResult = result;
+        subtract = false;
+        halfCarryBits = a ^ b ^ result;
+        carryBits = result;
     }
-    
 
     /**
-     * @return value in register A
-     */ 
-    private int getA() {
-        return a;
+     * 8 bit subtract (SUB, SBC, CP)
+     * Z, H, C from the operation, N set
+     *
+     * @param a first operand
+     * @param b second operand
+     * @param result unmasked a - b (- carry)
+     */
+    public void setSubFlags(int a, int b, int result) {
+        zeroResult = result;
+        subtract = true;
+        halfCarryBits = a ^ b ^ result;
+        carryBits = result;
     }
-    
+
     /**
-     * Set value for register A.
-     * 
-     * @param num (required) number to set regA to (masked to 8 bits)
-     */ 
-    private void setA(int num) {
-        a = num & 0xff;
+     * INC n/DEC n, C not affected
+     *
+     * @param value before the increment/decrement
+     * @param result unmasked value + 1 or value - 1
+     * @param decrement true for DEC (sets N)
+     */
+    public void setIncDecFlags(int value, int result, boolean decrement) {
+        zeroResult = result;
+        subtract = decrement;
+        halfCarryBits = value ^ 1 ^ result;
     }
-    
+
     /**
-     * @return value in register B
-     */ 
-    private int getB() {
-        return b;
+     * ADD HL,n
+     * Z not affected, N reset, H from bit 11, C from bit 15
+     *
+     * @param a first operand
+     * @param b second operand
+     * @param result unmasked a + b
+     */
+    public void setAdd16Flags(int a, int b, int result) {
+        subtract = false;
+        halfCarryBits = (a ^ b ^ result) >> 8;
+        carryBits = (result > 0xffff) ? 0x100 : 0;
     }
-    
+
     /**
-     * Set value for register B.
-     * 
-     * @param num (required) number to set regB to (masked to 8 bits)
-     */ 
-    private void setB(int num) {
-        b = num & 0xff;
+     * AND, OR, XOR, SWAP
+     * Z from result, N and C reset
+     *
+     * @param result of the operation
+     * @param halfCarry true to set H (AND)
+     */
+    public void setLogicFlags(int result, boolean halfCarry) {
+        zeroResult = result;
+        subtract = false;
+        halfCarryBits = halfCarry ? 0x10 : 0;
+        carryBits = 0;
     }
 
     /**
-     * @return value in register C
-     */ 
-    private int getC() {
-        return c;
+     * rotates and shifts
+     * Z from result, N and H reset, C from bit 8 of carry
+     *
+     * @param result of the operation (0 for Z set)
+     * @param carry bits with the carry out in bit 8
+     */
+    public void setShiftFlags(int result, int carry) {
+        zeroResult = result;
+        subtract = false;
+        halfCarryBits = 0;
+        carryBits = carry;
     }
-        
+
     /**
-     * Set value for register C.
-     * 
-     * @param num (required) number to set regC to (masked to 8 bits)
-     */ 
-    private void setC(int num) {
-        c = num & 0xff;
+     * BIT b,r
+     * Z set if tested bit is 0, N reset, H set, C not affected
+     *
+     * @param result the tested bit masked out of the value
+     */
+    public void setBitFlags(int result) {
+        zeroResult = result;
+        subtract = false;
+        halfCarryBits = 0x10;
     }
-    
+
+
+    //flag reads
     /**
-     * @return value in register D
-     */ 
-    private int getD() {
-        return d;
+     * @return true if Z flag is set
+     */
+    public boolean isZ() {
+        return (zeroResult & 0xff) == 0;
     }
-    
+
     /**
-     * Set value for register D.
-     * 
-     * @param num (required) number to set regD to (masked to 8 bits)
-     */ 
-    private void setD(int num) {
-        d = num & 0xff;
+     * @return true if N flag is set
+     */
+    public boolean isN() {
+        return subtract;
     }
-    
+
     /**
-     * @return value in register E
-     */ 
-    private int getE() {
-        return e;
+     * @return true if H flag is set
+     */
+    public boolean isH() {
+        return (halfCarryBits & 0x10) != 0;
     }
-    
+
     /**
-     * Set value for register E.
-     * 
-     * @param num (required) number to set regE to (masked to 8 bits)
-     */ 
-    private void setE(int num) {
-        e = num & 0xff;
+     * @return true if C flag is set
+     */
+    public boolean isC() {
+        return (carryBits & 0x100) != 0;
     }
     
-    /**
-     * @return value in register F
-     */ 
-    private int getF() {
-        return f;
-    }
-        
-    /**
-     * Set value for register F.
-     * 
-     * @param num (required) number to set regF to (masked to 8 bits)
-     */ 
-    private void setF(int num) {
-        f = num & 0xf0;
-    }
     
+    //register FLAG functions
     /**
-     * @return value in register H
+     * Set Z FLAG
      */ 
-    private int getH() {
-        return h;
+    public void setZ() {
+        zeroResult = 0;
     }
-    
+
     /**
-     * Set value for register H.
-     * 
-     * @param num (required) number to set regH to (masked to 8 bits)
+     * Reset Z Flag
      */ 
-    private void setH(int num) {
-        h = num & 0xff;
+    public void resetZ() {
+        zeroResult = 1;
     }
     
     /**
-     * Set value for register L.
+     * Set H FLAG
      * 
-     * @param num (required) number to set regL to (masked to 8 bits)
-     */ 
-    private void setL(int num) {
-        l = num & 0xff;
-    }
-
-
-    /**
-     * @return value in register L
      */ 
-    private int getL() {
-        return l;
+    public void setH() {
+        halfCarryBits = 0x10;
     }
 
     /**
-     * @return value in register AF
+     * Reset H FLag
      */ 
-    private int getAF() {
-        return (a << 8) | f;
+    public void resetH() {
+        halfCarryBits = 0;
     }
     
     /**
-     * Set value for register AF.
-     * 
-     * @param num (required) number to set regAF to (masked to 16 bits)
+     * Set C Flag
      */ 
-    private void setAF(int num) {
-        a = (num & 0xff00) >> 8;
-        f = num & 0xf0;
+    public void setC() {
+        carryBits = 0x100;
     }
-        
+
     /**
-     * @return value in register BC
+     * Reset C Flag
      */ 
-    private int getBC() {
-        return (b << 8) | c;
+    public void resetC() {
+        carryBits = 0;
     }
     
     /**
-     * Set value for register BC.
-     * 
-     * @param num (required) number to set regBC to (masked to 16 bits)
-     */ 
-    private void setBC(int num) {
-        b = (num & 0xff00) >> 8;
-        c = num & 0xff;
-    }
-
-    /**
-     * @return value in register DE
+     * Set N FLAG
      */ 
-    private int getDE() {
-        return (d << 8) | e;
+    public void setN() {
+        subtract = true;
     }
     
     /**
-     * Set value for register DE.
-     * 
-     * @param num (required) number to set regDE to (masked to 16 bits)
+     * Reset N Flag
      */ 
-    private void setDE(int num) {
-        d = (num & 0xff00) >> 8;
-        e = num & 0xff;
-    }
-
-    /**
-     * @return value in register HL
-     */     
-    private int getHL() {
-        return (h << 8) | l;
+    public void resetN() {
+        subtract = false;
     }
     
     /**
-     * Set value for register HL.
+     * Reset all Flags
      * 
-     * @param num (required) number to set regHL to (masked to 16 bits)
      */ 
-    private void setHL(int num) {
-        h = (num & 0xff00) >> 8;
-        l = num & 0xff;
+    public void resetAll() {
+        zeroResult = 1;
+        subtract = false;
+        halfCarryBits = 0;
+        carryBits = 0;
     }
         
 }
@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.cpu;
+
+import main.java.gameboi.memory.GBMem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds idle loops, short loops in ROM that poll memory (usually LY,
+ * STAT or IF) until the gpu, a timer or an interrupt changes it
+ *
+ * <p>
+ * A loop head qualifies if it starts a straight line of at most
+ * MAX_LOOP_INSTRUCTIONS instructions that only read memory and only
+ * change A and F (loads into A, 8 bit ALU, BIT, rotates of A), the
+ * last of which jumps back to the head. Such a loop can't change
+ * memory, so once an iteration leaves A and F as they were the cpu
+ * is stuck in it until an event changes one of the values it reads,
+ * and the cpu can skip ahead (see CPU.runIdleLoop).
+ *
+ * <p>
+ * Which heads qualify is decided once per rom bank, like the
+ * pre-decoded instructions. Skipping can be turned off (for roms
+ * that misbehave with it) and counts the cycles it saved.
+ *
+ * @author tomis007
+ */
+final class IdleLoops {
+    //longest loop body
+    static final int MAX_LOOP_INSTRUCTIONS = 8;
+
+    //memory read by an instruction
+    static final int READ_NONE = 0;
+    static final int READ_HIGH = 1;     //0xff00 + immediate
+    static final int READ_ABSOLUTE = 2; //immediate address
+    static final int READ_C = 3;        //0xff00 + C
+    static final int READ_BC = 4;
+    static final int READ_DE = 5;
+    static final int READ_HL = 6;
+    //instructions that can't be part of an idle loop, heads that aren't one
+    private static final int NOT_IDLE = -1;
+
+    //READ_* by handler index, NOT_IDLE if not allowed in a loop body
+    private static final int[] READS = new int[0x200];
+
+    static {
+        Arrays.fill(READS, NOT_IDLE);
+        //NOP, rotates of A, DAA, CPL, SCF, CCF, INC A, DEC A, LD A,n
+        int[] simple = {0x00, 0x07, 0x0f, 0x17, 0x1f, 0x27, 0x2f, 0x37,
+            0x3f, 0x3c, 0x3d, 0x3e};
+        for (int op : simple) {
+            READS[op] = READ_NONE;
+        }
+        READS[0x0a] = READ_BC;
+        READS[0x1a] = READ_DE;
+        READS[0xf0] = READ_HIGH;
+        READS[0xf2] = READ_C;
+        READS[0xfa] = READ_ABSOLUTE;
+        //LD A,r
+        for (int r = 0; r < 8; ++r) {
+            READS[0x78 | r] = (r == 6) ? READ_HL : READ_NONE;
+        }
+        //8 bit ALU on A, register, (HL) and immediate
+        for (int op = 0x80; op < 0xc0; ++op) {
+            READS[op] = ((op & 7) == 6) ? READ_HL : READ_NONE;
+        }
+        for (int op = 0xc6; op < 0x100; op += 8) {
+            READS[op] = READ_NONE;
+        }
+        //0xcb prefixed: anything on A, BIT on any register
+        for (int op = 0; op < 0x100; ++op) {
+            if ((op & 7) == 7) {
+                READS[0x100 | op] = READ_NONE;
+            }
+        }
+        for (int op = 0x40; op < 0x80; ++op) {
+            READS[0x100 | op] = ((op & 7) == 6) ? READ_HL : READ_NONE;
+        }
+    }
+
+    /**
+     * An idle loop, plus room for the cpu to record an iteration
+     */
+    static final class Loop {
+        //decoded instructions, the last one jumps back to the head
+        final int[] ops;
+        //address following each instruction
+        final int[] next;
+        //READ_* for each instruction
+        final int[] reads;
+        //cycles taken by and AF after each instruction of an iteration
+        final int[] cycles;
+        final int[] af;
+        //memory the loop reads and the values it saw
+        final int[] addresses;
+        final int[] values;
+
+        Loop(int[] ops, int[] next, int[] reads) {
+            this.ops = ops;
+            this.next = next;
+            this.reads = reads;
+            cycles = new int[ops.length];
+            af = new int[ops.length];
+            addresses = new int[ops.length];
+            values = new int[ops.length];
+        }
+
+        /**
+         * Address instruction i reads, the loop can't change BC, DE or HL
+         *
+         * @return address, -1 if the instruction doesn't read memory
+         */
+        int readAddress(int i, int bc, int de, int hl) {
+            int operand = Decoder.operand(ops[i]);
+            switch (reads[i]) {
+                case READ_HIGH: return 0xff00 + operand;
+                case READ_ABSOLUTE: return operand;
+                case READ_C: return 0xff00 + (bc & 0xff);
+                case READ_BC: return bc;
+                case READ_DE: return de;
+                case READ_HL: return hl;
+                default: return -1;
+            }
+        }
+    }
+
+    private final GBMem memory;
+    private final Decoder decoder;
+    private boolean enabled;
+    private long skippedCycles;
+    private long skips;
+
+    //by head address: 0 if not looked at yet, NOT_IDLE, or index + 1 into loops
+    private int[] bank0;
+    //0x4000-0x7fff by rom bank, allocated on first use
+    private final int[][] banks;
+    private final List<Loop> loops;
+
+    /**
+     * @param memory for the rom bank
+     * @param decoder to decode loop bodies with
+     */
+    IdleLoops(GBMem memory, Decoder decoder) {
+        this.memory = memory;
+        this.decoder = decoder;
+        banks = new int[0x200][];
+        loops = new ArrayList<>();
+        enabled = true;
+        reset();
+    }
+
+    /**
+     * @param enabled true to skip idle loops
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Counts a skip
+     *
+     * @param cycles clock cycles skipped, 0 if the loop ended right away
+     */
+    void skipped(int cycles) {
+        if (cycles > 0) {
+            skippedCycles += cycles;
+            skips++;
+        }
+    }
+
+    /**
+     * @return clock cycles skipped since the last reset
+     */
+    long getSkippedCycles() {
+        return skippedCycles;
+    }
+
+    /**
+     * @return number of skips since the last reset
+     */
+    long getSkips() {
+        return skips;
+    }
+
+    /**
+     * Idle loop starting at head, in the currently mapped rom bank
+     *
+     * @param head address a backward jump went to
+     * @return the loop, null if there is no idle loop at head
+     */
+    Loop find(int head) {
+        if (head < 0 || head >= 0x8000) {
+            return null;
+        }
+        int[] table;
+        int index;
+        int limit;
+        if (head < 0x4000) {
+            table = bank0;
+            index = head;
+            limit = 0x4000;
+        } else {
+            int bank = memory.getRomBank() & 0x1ff;
+            if (banks[bank] == null) {
+                banks[bank] = new int[0x4000];
+            }
+            table = banks[bank];
+            index = head - 0x4000;
+            limit = 0x8000;
+        }
+        int entry = table[index];
+        if (entry == 0) {
+            Loop loop = analyze(head, limit);
+            if (loop == null) {
+                entry = NOT_IDLE;
+            } else {
+                loops.add(loop);
+                entry = loops.size();
+            }
+            table[index] = entry;
+        }
+        return (entry == NOT_IDLE) ? null : loops.get(entry - 1);
+    }
+
+    /**
+     * decodes the loop at head, null if it isn't an idle loop
+     */
+    private Loop analyze(int head, int limit) {
+        int[] ops = new int[MAX_LOOP_INSTRUCTIONS];
+        int[] next = new int[MAX_LOOP_INSTRUCTIONS];
+        int[] reads = new int[MAX_LOOP_INSTRUCTIONS];
+        int address = head;
+        for (int count = 0; count < MAX_LOOP_INSTRUCTIONS; ++count) {
+            int op = decoder.decode(address, limit);
+            if (op == Decoder.UNCACHEABLE) {
+                return null;
+            }
+            int handler = Decoder.handler(op);
+            address += Decoder.length(op);
+            ops[count] = op;
+            next[count] = address;
+            if (READS[handler] != NOT_IDLE) {
+                reads[count] = READS[handler];
+                continue;
+            }
+            //has to be a jump back to the head
+            int target = jumpTarget(handler, Decoder.operand(op), address);
+            if (target != head) {
+                return null;
+            }
+            return new Loop(Arrays.copyOf(ops, count + 1),
+                    Arrays.copyOf(next, count + 1), Arrays.copyOf(reads, count + 1));
+        }
+        return null;
+    }
+
+    /**
+     * target of a JR or JP (conditional or not), -1 for anything else
+     */
+    private static int jumpTarget(int handler, int operand, int next) {
+        switch (handler) {
+            case 0x18: case 0x20: case 0x28: case 0x30: case 0x38:
+                return (next + (byte) operand) & 0xffff;
+            case 0xc3: case 0xc2: case 0xca: case 0xd2: case 0xda:
+                return operand;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Forgets every loop and the counters (new rom loaded)
+     */
+    void reset() {
+        bank0 = new int[0x4000];
+        for (int i = 0; i < banks.length; ++i) {
+            banks[i] = null;
+        }
+        loops.clear();
+        skippedCycles = 0;
+        skips = 0;
+    }
+}
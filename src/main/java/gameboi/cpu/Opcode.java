@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.cpu;
+
+/**
+ * A single entry in the CPU opcode dispatch table
+ *
+ * Handlers should stay small (a call into one of the CPU
+ * instruction helpers) so the JIT can inline them
+ *
+ * Public only because generated block classes (see BlockCompiler)
+ * are defined by their own class loader and call handlers through
+ * this interface
+ *
+ * @author tomis007
+ */
+@FunctionalInterface
+public interface Opcode {
+
+    /**
+     * runs the instruction, pc already points past it
+     *
+     * @param operand immediate byte or (little endian) word of the
+     *     instruction, 0 if it has none
+     * @return clock cycles taken to execute
+     */
+    int execute(int operand);
+}
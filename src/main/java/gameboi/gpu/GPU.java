@@ -27,10 +27,13 @@ package main.java.gameboi.gpu;
 import main.java.gameboi.cpu.CPU;
 import main.java.gameboi.joypad.gameboyKeyListener;
 import main.java.gameboi.memory.GBMem;
+import main.java.gameboi.memory.TileCache;
+import main.java.gameboi.scheduler.Scheduler;
 
 import java.awt.image.BufferedImage;
 import javax.swing.*;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 
 /**
  * GPU for gameboy
@@ -48,19 +51,38 @@ import java.nio.ByteBuffer;
  */
 public class GPU {
     private final GBMem memory;
-    private ByteBuffer buffer;
+    //decoded tiles, and the color numbers they are read from
+    private final TileCache tiles;
+    private final byte[] tilePixels;
+    //screen, ARGB pixels row by row
+    private final int[] frame;
+    //read only view of frame handed out by getFrameBuffer()
+    private final IntBuffer frameView;
+    //ARGB of each color number: dmg palettes (BGP, OBP0, OBP1),
+    //gbc background and sprite palettes, 4 colors per palette
+    private final int[] dmgColors;
+    private final int[] bgColors;
+    private final int[] spriteColors;
+    //palette registers written since the tables were built
+    private boolean palettesChanged;
     private final CPU cpu;
+    private final Scheduler scheduler;
     /**
      * keeps clock timing relative to cpu
      * 456 clock cycles to draw each scanline
      */
     private int modeClock;
+    //clock cycle the current mode started at, while the lcd is on
+    //modeClock is brought up to date from it when the LCD event runs
+    private long modeStart;
     private boolean prev_enabled;
     private boolean gbcMode;
 
     private int currentMode;
 
     private static int BYTE_SAVE_LENGTH = 3;
+    //mode, mode clock and start, flags
+    public static final int SNAPSHOT_SIZE = 4 + 4 + 8 + 1;
 
     /**
      * GPU MODE
@@ -75,6 +97,16 @@ public class GPU {
     private static final int HORIZ_BLANK = 0;
     private static final int VERT_BLANK = 1;
 
+    public static final int SCREEN_WIDTH = 160;
+    public static final int SCREEN_HEIGHT = 144;
+    //index in frame of the first pixel of each row
+    private static final int[] ROW_OFFSETS = new int[SCREEN_HEIGHT];
+    static {
+        for (int row = 0; row < SCREEN_HEIGHT; ++row) {
+            ROW_OFFSETS[row] = row * SCREEN_WIDTH;
+        }
+    }
+
 
     /*
      * lcdc register information
@@ -95,6 +127,15 @@ public class GPU {
     private static final int SPRITE_ENABLE = 1;
     private static final int BACKGROUND_ENABLE = 0;
 
+    //dmg palettes (bg, sprite 0, sprite 1) and the gbc palette data ports
+    private static final int BGP = 0xff47;
+    private static final int OBP0 = 0xff48;
+    private static final int OBP1 = 0xff49;
+    private static final int BG_PALETTE_DATA = 0xff69;
+    private static final int SPRITE_PALETTE_DATA = 0xff6b;
+    //ARGB of the four dmg shades
+    private static final int[] SHADES = {0xffffffff, 0xffcccccc, 0xff777777, 0xff000000};
+
     private static final int LCDC_STAT = 0xff41;
     private static final int SC_Y = 0xff42;
     private static final int SC_X = 0xff43;
@@ -113,18 +154,34 @@ public class GPU {
 
     public GPU(GBMem memory, CPU cpu) {
         this.memory = memory;
+        this.tiles = memory.getTileCache();
+        this.tilePixels = tiles.getPixels();
         this.cpu = cpu;
+        this.scheduler = cpu.getScheduler();
         modeClock = 456;
-        buffer = ByteBuffer.allocate(69120);
+        frame = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+        frameView = IntBuffer.wrap(frame).asReadOnlyBuffer();
+        dmgColors = new int[3 * 4];
+        bgColors = new int[8 * 4];
+        spriteColors = new int[8 * 4];
+        palettesChanged = true;
         prev_enabled = true;
         currentMode = OAM_MODE;
         this.memory.setScanLine(0);
         this.gbcMode = false;
+        modeStart = scheduler.now() - modeClock;
+        scheduler.setEvent(Scheduler.LCD, this::lcdEvent);
+        scheduleModeChange();
+        memory.watchRegister(LCDC_CONTROL, (address, data) -> lcdControlWritten(data));
+        for (int palette : new int[]{BGP, OBP0, OBP1, BG_PALETTE_DATA, SPRITE_PALETTE_DATA}) {
+            memory.watchRegister(palette, (address, data) -> palettesChanged = true);
+        }
     }
 
     /**
-     * Updates the GPU graphics, draws each scanline
-     * after appropriate clock cycles have occurred
+     * LCD event, updates the GPU graphics and draws each scanline.
+     * Runs when the current mode is due to end and after the lcd
+     * is switched on or off
      *
      *
      * NOTE: operation when lcd is disabled probably isn't accurate,o
@@ -135,19 +192,25 @@ public class GPU {
      * for information on timing
      *
      *
-     * @param cycles - clock cycles progressed since last update
+     * @param due - clock cycle the event was scheduled for
      */ 
-    public void updateGraphics(int cycles) {
-        if (lcdEnabled() && prev_enabled) {
+    private void lcdEvent(long due) {
+        if (lcdEnabled()) {
+            if (!prev_enabled) {
+                //start in HBLAnk, counting from the write that enabled it
+                set_mode(HORIZ_BLANK, 0);
+                modeStart = due;
+                prev_enabled = true;
+            }
             // dispatch mode
-            dispatchMode(cycles);
-        } else if (lcdEnabled() && !prev_enabled) {
-            //start in HBLAnk
-            set_mode(HORIZ_BLANK, 0);
-            dispatchMode(cycles);
-            prev_enabled = true;
+            dispatchMode();
+            scheduleModeChange();
         } else {
-            //disabled set to VBlank
+            //disabled set to VBlank, nothing to do until it's enabled
+            if (prev_enabled) {
+                //clock stops where it was before the lcd was switched off
+                modeClock = (int)(due - modeStart);
+            }
             if (currentMode != VERT_BLANK) {
                 set_mode(VERT_BLANK, 0);
                 memory.setScanLine(0);
@@ -156,6 +219,43 @@ public class GPU {
         }
     }
 
+    /**
+     * Schedules the LCD event for when the current mode ends
+     */
+    private void scheduleModeChange() {
+        int length;
+        switch (currentMode) {
+            case HORIZ_BLANK:
+                length = 204;
+                break;
+            case VERT_BLANK:
+                length = (memory.getScanLine() == 153) ? 64 : 456;
+                break;
+            case OAM_MODE:
+                length = 80;
+                break;
+            case LCD_TRANS:
+                length = 174;
+                break;
+            default:
+                scheduler.cancel(Scheduler.LCD);
+                return;
+        }
+        scheduler.schedule(Scheduler.LCD, modeStart + length);
+    }
+
+    /**
+     * Runs the LCD event at the end of the current instruction
+     * if the lcd is switched on or off
+     *
+     * @param control value written to the lcdc register
+     */
+    private void lcdControlWritten(int control) {
+        if (isSet(control, LCDC_DISPLAY_ENABLE) != prev_enabled) {
+            scheduler.schedule(Scheduler.LCD, scheduler.now());
+        }
+    }
+
 
     /**
      * Save the state of the gpu to a byte array
@@ -163,9 +263,10 @@ public class GPU {
      */
     public byte[] saveState() {
         byte[] buf = new byte[BYTE_SAVE_LENGTH];
+        int clock = prev_enabled ? (int)(scheduler.now() - modeStart) : modeClock;
         buf[0] = (byte)currentMode;
-        buf[1] = (byte)(modeClock & 0xff);
-        buf[2] = (byte)((modeClock >> 8) & 0xff);
+        buf[1] = (byte)(clock & 0xff);
+        buf[2] = (byte)((clock >> 8) & 0xff);
 
         return buf;
     }
@@ -181,6 +282,10 @@ public class GPU {
         modeClock = Byte.toUnsignedInt(buf[1]);
         modeClock |= (Byte.toUnsignedInt(buf[2]) << 8);
         gbcMode = memory.isGBCRom();
+        palettesChanged = true;
+        //carry on from the loaded mode at the end of the current instruction
+        modeStart = scheduler.now() - modeClock;
+        scheduler.schedule(Scheduler.LCD, scheduler.now());
     }
 
 
@@ -189,7 +294,37 @@ public class GPU {
     }
 
     /**
-     * copies the screen data into buffer
+     * Writes the lcd timing state to snapshot (the screen
+     * isn't saved, it is redrawn by the next frame)
+     *
+     * @param snapshot to write SNAPSHOT_SIZE bytes to at its position
+     */
+    public void saveSnapshot(ByteBuffer snapshot) {
+        snapshot.putInt(currentMode);
+        snapshot.putInt(modeClock);
+        snapshot.putLong(modeStart);
+        snapshot.put((byte)((prev_enabled ? 1 : 0) | (gbcMode ? 2 : 0)));
+    }
+
+    /**
+     * Restores the state written by saveSnapshot(), the LCD
+     * event comes back with the cpu's scheduler
+     *
+     * @param snapshot to read SNAPSHOT_SIZE bytes from at its position
+     */
+    public void loadSnapshot(ByteBuffer snapshot) {
+        currentMode = snapshot.getInt();
+        modeClock = snapshot.getInt();
+        modeStart = snapshot.getLong();
+        int flags = snapshot.get();
+        prev_enabled = (flags & 1) != 0;
+        gbcMode = (flags & 2) != 0;
+        palettesChanged = true;
+    }
+
+    /**
+     * copies the screen data into buffer, three bytes
+     * (r, g, b) per pixel
      * maps as follows:
      *
      * 0xffffffff - 0
@@ -203,12 +338,25 @@ public class GPU {
      */
     public void drawBuffer(ByteBuffer buffer) {
         buffer.position(0);
-        this.buffer.position(0);
-        for (int i = 0; i < 69120; ++i) {
-            buffer.put(this.buffer.get(i));
+        for (int pixel : frame) {
+            buffer.put((byte)(pixel >> 16));
+            buffer.put((byte)(pixel >> 8));
+            buffer.put((byte)pixel);
         }
     }
 
+    /**
+     * The screen as ARGB pixels, SCREEN_WIDTH per row, to be
+     * copied in bulk (get(int[])), for instance into the
+     * DataBufferInt of a TYPE_INT_ARGB BufferedImage. It is
+     * drawn into as scanlines are rendered
+     *
+     * @return read only view of the screen
+     */
+    public IntBuffer getFrameBuffer() {
+        return frameView.duplicate();
+    }
+
     
     /**
      * Returns the status of the lcd as indicated by the 
@@ -217,7 +365,7 @@ public class GPU {
      * @return true if bit 7 of lcdc is 1, false if 0
      */ 
     private boolean lcdEnabled() {
-        return isSet(memory.readByte(LCDC_CONTROL), LCDC_DISPLAY_ENABLE);
+        return isSet(memory.peek(LCDC_CONTROL), LCDC_DISPLAY_ENABLE);
     }
 
 
@@ -228,7 +376,10 @@ public class GPU {
      * repaints the lcdscreen as well
      */
     private void renderScan(int currentScanLine) {
-        int lcdc = memory.readByte(LCDC_CONTROL);
+        if (palettesChanged) {
+            updatePalettes();
+        }
+        int lcdc = memory.peek(LCDC_CONTROL);
         if (isSet(lcdc, BACKGROUND_ENABLE))
             drawBackground(currentScanLine);
         if (isSet(lcdc, WINDOW_DISPLAY_ENABLE))
@@ -247,9 +398,9 @@ public class GPU {
         //time to increment scanline
         memory.incScanLine();
         //check for LYC interrupt
-        if (memory.readByte(LYC) == memory.getScanLine()) {
+        if (memory.peek(LYC) == memory.getScanLine()) {
             memory.setLCDCoincidence(1);
-            if ((memory.readByte(LCDC_STAT) & 0x40) != 0) {
+            if ((memory.peek(LCDC_STAT) & 0x40) != 0) {
                 cpu.requestInterrupt(1);
             }
         } else {
@@ -282,6 +433,7 @@ public class GPU {
 
     public void setGBCMode(boolean mode) {
         this.gbcMode = mode;
+        palettesChanged = true;
     }
 
     /**
@@ -303,10 +455,9 @@ public class GPU {
 
     /**
      * Updates the current lcd mode
-     * @param cycles that have progressed
      */
-    private void dispatchMode(int cycles) {
-        modeClock += cycles;
+    private void dispatchMode() {
+        modeClock = (int)(scheduler.now() - modeStart);
         switch (currentMode) {
             case HORIZ_BLANK:
                 horiz_blank();
@@ -332,8 +483,9 @@ public class GPU {
     private void set_mode(int mode, int cycles) {
         boolean req_int = false;
         modeClock = cycles;
+        modeStart = scheduler.now() - cycles;
         currentMode = mode;
-        int flag = memory.readByte(LCDC_STAT);
+        int flag = memory.peek(LCDC_STAT);
         flag &= 0xfc;
 
         switch (mode) {
@@ -355,7 +507,7 @@ public class GPU {
             default:
                 break;
         }
-        memory.writeByte(LCDC_STAT, flag);
+        memory.poke(LCDC_STAT, flag);
         if (req_int) {
             cpu.requestInterrupt(1);
         }
@@ -370,10 +522,10 @@ public class GPU {
      * @param scanLine to draw background for
      */
     private void drawBackground(int scanLine) {
-        int lcdc = memory.readByte(LCDC_CONTROL);
+        int lcdc = memory.peek(LCDC_CONTROL);
         int tileMapAddress = isSet(lcdc, 3) ? 0x9c00 : 0x9800;
-        int scY = memory.readByte(SC_Y);
-        int scX = memory.readByte(SC_X);
+        int scY = memory.peek(SC_Y);
+        int scX = memory.peek(SC_X);
         int tileDataAddress = isSet(lcdc, 4) ? 0x8000 : 0x9000;
         boolean signedIndex = !isSet(lcdc, 4);
 
@@ -446,11 +598,11 @@ public class GPU {
      */
     private void drawTile(int tileAddress, int line, int xPos, int yPos, int pixStart, int pixEnd, int bgTileInfo) {
         int paletteAddress = 0xff47;
-        int wX = memory.readByte(W_X) - 7;
-        int wY = memory.readByte(W_Y);
-        boolean windowDrawn = isSet(memory.readByte(LCDC_CONTROL), WINDOW_DISPLAY_ENABLE);
-        int pixByteA = memory.readByte(tileAddress + (2 * line));
-        int pixByteB = memory.readByte(tileAddress + (2 * line) + 1);
+        int wX = memory.peek(W_X) - 7;
+        int wY = memory.peek(W_Y);
+        boolean windowDrawn = isSet(memory.peek(LCDC_CONTROL), WINDOW_DISPLAY_ENABLE);
+        int bankNum = 0;
+        boolean horizFlip = false;
 
         if (gbcMode) {
             //set correct GBC tile info
@@ -459,20 +611,15 @@ public class GPU {
                 line = 7 - line;
             }
             paletteAddress = bgTileInfo & 0x7;
-            int bankNum = isSet(bgTileInfo, 3) ? 1 : 0;
-            pixByteA = memory.readVram(tileAddress + (2 * line), bankNum);
-            pixByteB = memory.readVram(tileAddress + (2 * line) + 1, bankNum);
+            bankNum = isSet(bgTileInfo, 3) ? 1 : 0;
+            horizFlip = isSet(bgTileInfo, 5);
         }
+        int pixels = tiles.line(bankNum, tileAddress + (2 * line), horizFlip);
 
         //draw each pixel in the line
         for (int pixel = pixStart; pixel <= pixEnd; ++pixel) {
-            int pix = pixel;
-            // Horizontal flip
-            if (gbcMode && isSet(bgTileInfo, 5)) {
-                pix = 7 - pix;
-            }
-            int colorNum = getPixelColorNum(pixByteA, pixByteB, pix);
-            int xCoord = (xPos + pix - pixStart) % 160;
+            int colorNum = tilePixels[pixels + pixel];
+            int xCoord = (xPos + pixel - pixStart) % 160;
 
             if (wY <= yPos && xCoord >= wX && windowDrawn) {
                 break; //window will be drawn at this position
@@ -492,10 +639,7 @@ public class GPU {
      * @param color of pixel to draw
      */
     private void drawToBuffer(int col, int row, int color) {
-        int index = (3 * col) + (row * 160 * 3);
-        buffer.put(index, (byte)((color & 0xff0000) >> 16));
-        buffer.put(index + 1, (byte)((color & 0xff00) >> 8));
-        buffer.put(index + 2, (byte)(color & 0xff));
+        frame[ROW_OFFSETS[row] + col] = color;
     }
 
 
@@ -507,13 +651,7 @@ public class GPU {
      * @return RGB value of the color
      */
     private int bufferToColor(int col, int row) {
-        int color = 0;
-        int index = (3 * col) + (row * 160 * 3);
-
-        color |= Byte.toUnsignedInt(buffer.get(index)) << 16;
-        color |= Byte.toUnsignedInt(buffer.get(index + 1)) << 8;
-        color |= Byte.toUnsignedInt(buffer.get(index + 2));
-        return color;
+        return frame[ROW_OFFSETS[row] + col] & 0xffffff;
     }
 
 
@@ -528,21 +666,23 @@ public class GPU {
      */
     private void drawWindowTile(int tileAddress, int line, int xPos, int yPos, int bgTileInfo) {
         int paletteAddress = 0xff47;
-
-        int pixByteA = memory.readByte(tileAddress + (2 * line));
-        int pixByteB = memory.readByte(tileAddress + (2 * line) + 1);
+        int bankNum = 0;
+        boolean horizFlip = false;
 
         if (gbcMode) {
             //set correct GBC tile info
+            if (isSet(bgTileInfo, 6)) {
+                line = 7 - line;
+            }
             paletteAddress = bgTileInfo & 0x7;
-            int bankNum = isSet(bgTileInfo, 3) ? 1 : 0;
-            pixByteA = memory.readVram(tileAddress + (2 * line), bankNum);
-            pixByteB = memory.readVram(tileAddress + (2 * line) + 1, bankNum);
+            bankNum = isSet(bgTileInfo, 3) ? 1 : 0;
+            horizFlip = isSet(bgTileInfo, 5);
         }
+        int pixels = tiles.line(bankNum, tileAddress + (2 * line), horizFlip);
 
         //draw each pixel in the line
         for (int pixel = 0; pixel <= 7; ++pixel) {
-            int colorNum = getPixelColorNum(pixByteA, pixByteB, pixel);
+            int colorNum = tilePixels[pixels + pixel];
             int xCoord = (xPos + pixel);
             if (xCoord < 160 && yPos < 144 && xCoord >= 0 && yPos >= 0) {
                 //TODO is this bg palette?
@@ -559,9 +699,9 @@ public class GPU {
      * as specified by wX and wY registers
      */
     private void drawWindow(int scanLine) {
-        int lcdc = memory.readByte(LCDC_CONTROL);
-        int wX = memory.readByte(W_X);
-        int wY = memory.readByte(W_Y);
+        int lcdc = memory.peek(LCDC_CONTROL);
+        int wX = memory.peek(W_X);
+        int wY = memory.peek(W_Y);
         int tileMapAddress = isSet(lcdc, 6) ? 0x9c00 : 0x9800;
         int tileDataAddress = isSet(lcdc, 4) ? 0x8000 : 0x9000;
         boolean signedIndex = !isSet(lcdc, 4);
@@ -598,7 +738,7 @@ public class GPU {
      *     todo SCANLINE LIMIT of 10 SPRITES
      */
     private void drawSprites(int scanline) {
-        int lcdc = memory.readByte(LCDC_CONTROL);
+        int lcdc = memory.peek(LCDC_CONTROL);
         int height = isSet(lcdc, SPRITE_HEIGHT) ? 16 : 8;
 
         //TODO for GBC mainly the same
@@ -606,10 +746,10 @@ public class GPU {
 
         for (int i = 0; i < 40; ++i){
             int offset = (39 - i) * 4;
-            int y = memory.readByte(0xfe00 + offset);
-            int x = memory.readByte(0xfe00 + offset + 1);
-            int tileNum = memory.readByte(0xfe00 + offset + 2);
-            int flags = memory.readByte(0xfe00 + offset + 3);
+            int y = memory.peek(0xfe00 + offset);
+            int x = memory.peek(0xfe00 + offset + 1);
+            int tileNum = memory.peek(0xfe00 + offset + 2);
+            int flags = memory.peek(0xfe00 + offset + 3);
             if (height == 16) {
                 tileNum &= 0xfe;
             }
@@ -645,19 +785,16 @@ public class GPU {
         } else {
             offset = 2 * (sprite_line - 1);
         }
-        int pixDataA = memory.readByte(address + offset);
-        int pixDataB = memory.readByte(address + offset + 1);
+        int bankNum = 0;
 
         if (gbcMode) {
             paletteAddress = flags & 0x7;
-            int bankNum = isSet(flags, 3) ? 1 : 0;
-            pixDataA = memory.readVram(address + offset, bankNum);
-            pixDataB = memory.readVram(address + offset + 1, bankNum);
+            bankNum = isSet(flags, 3) ? 1 : 0;
         }
+        int pixels = tiles.line(bankNum, address + offset, horizFlip);
 
         for (int pix = 0; pix < 8; ++pix) {
-            int col_index = horizFlip ? 7 - pix : pix;
-            int color_num = getPixelColorNum(pixDataA, pixDataB, col_index);
+            int color_num = tilePixels[pixels + pix];
             int color = getColor(color_num, paletteAddress, false);
             if ((x + pix < 160) && (x + pix >= 0) && color_num != 0) {
                 if (hasPriority) {
@@ -671,28 +808,6 @@ public class GPU {
         }
     }
 
-    /**
-     * Returns the colorNumber specified by the two
-     * bytes of pixel data of pixIndex pixel
-     *
-     *
-     * NOTE: if pixel data is 0xf0 and 0xf0
-     * pixel 7 will be [0,0] and pixel 0 will be [1,1]
-     *
-     *
-     * @param pixDataA first byte of data
-     * @param pixDataB second byte of data
-     * @param pixIndex index of pixel to check (0 - 7)
-     * @return colorNum (0 - 3) of appropriate pixel
-     */
-    private int getPixelColorNum(int pixDataA, int pixDataB, int pixIndex) {
-        int colorNum = isSet(pixDataB, 7 - pixIndex) ? 1 : 0;
-        colorNum = (colorNum << 1) | (isSet(pixDataA, 7 - pixIndex) ? 1 : 0);
-
-        return colorNum;
-    }
-
-
     /**
      * isSet
      * 
@@ -708,47 +823,39 @@ public class GPU {
 
     /**
      * Translates the pixColor (0 - 3) to actual
-     * color RGB int (four byte value)
+     * color ARGB int (four byte value)
      *
      * @param pixNum from tile/sprite to translate
-     * @param palAddress to interpret the pix number
-     * @return a RGB value representing the actual color
+     * @param palAddress to interpret the pix number (0xff47-0xff49),
+     *     palette number (0 - 7) for gbc
+     * @return an ARGB value representing the actual color
      */
     private int getColor(int pixNum, int palAddress, boolean backGround) {
         if (gbcMode && backGround) {
-            return memory.getGBCBGPaletteColor(palAddress, pixNum);
+            return bgColors[(palAddress * 4) + pixNum];
         } else if (gbcMode) {
-            return memory.getGBCSpritePaletteColor(palAddress, pixNum);
+            return spriteColors[(palAddress * 4) + pixNum];
         }
+        return dmgColors[((palAddress - BGP) * 4) + pixNum];
+    }
 
-        int palette = memory.readByte(palAddress);
-        int colSelect;
-        int color;
-        switch(pixNum) {
-            case 0: colSelect = (palette & 0x3);
-                    break;
-            case 1: colSelect = (palette >> 2) & 0x3;
-                    break;
-            case 2: colSelect = (palette >> 4) & 0x3;
-                    break;       
-            case 3: colSelect = (palette >> 6) & 0x3;
-                    break;
-            default:
-                    colSelect = 0;
-                    break;
+    /**
+     * Builds the color tables getColor() reads from the
+     * palette registers, after they were written
+     */
+    private void updatePalettes() {
+        for (int palette = 0; palette < 3; ++palette) {
+            int shades = memory.peek(BGP + palette);
+            for (int pixNum = 0; pixNum < 4; ++pixNum) {
+                dmgColors[(palette * 4) + pixNum] = SHADES[(shades >> (2 * pixNum)) & 0x3];
+            }
         }
-        switch (colSelect & 0x3) {
-            case 0: color = 0xffffff;
-                    break;
-            case 1: color = 0xcccccc;
-                    break;
-            case 2: color = 0x777777;
-                    break;
-            case 3: color = 0x000000;
-                    break;
-            default: color = 0xffffff;
+        for (int palette = 0; palette < 8; ++palette) {
+            for (int pixNum = 0; pixNum < 4; ++pixNum) {
+                bgColors[(palette * 4) + pixNum] = 0xff000000 | memory.getGBCBGPaletteColor(palette, pixNum);
+                spriteColors[(palette * 4) + pixNum] = 0xff000000 | memory.getGBCSpritePaletteColor(palette, pixNum);
+            }
         }
-        return color;
+        palettesChanged = false;
     }
-
-}
\ No newline at end of file
+}
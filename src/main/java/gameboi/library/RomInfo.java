@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.library;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cartridge header information of a rom file
+ *
+ * Everything comes from the 0x100-0x14f header except the
+ * CRC32 and the global checksum check, which need the whole
+ * file. Kept in the library index so neither has to be read
+ * again while the file doesn't change
+ *
+ * @author tomis007
+ */
+public final class RomInfo {
+    //header area read from every rom
+    static final int HEADER_START = 0x100;
+    static final int HEADER_END = 0x150;
+
+    private final String fileName;
+    private final long size;
+    private final long lastModified;
+    private final String title;
+    private final int cgbFlag;
+    private final int cartridgeType;
+    private final int romSizeCode;
+    private final int ramSizeCode;
+    private final int headerChecksum;
+    private final int globalChecksum;
+    private final boolean headerValid;
+    private final boolean globalChecksumValid;
+    private final int crc32;
+
+    private RomInfo(String fileName, long size, long lastModified, String title,
+                    int cgbFlag, int cartridgeType, int romSizeCode, int ramSizeCode,
+                    int headerChecksum, int globalChecksum, boolean headerValid,
+                    boolean globalChecksumValid, int crc32) {
+        this.fileName = fileName;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.title = title;
+        this.cgbFlag = cgbFlag;
+        this.cartridgeType = cartridgeType;
+        this.romSizeCode = romSizeCode;
+        this.ramSizeCode = ramSizeCode;
+        this.headerChecksum = headerChecksum;
+        this.globalChecksum = globalChecksum;
+        this.headerValid = headerValid;
+        this.globalChecksumValid = globalChecksumValid;
+        this.crc32 = crc32;
+    }
+
+    /**
+     * Parses the header of a rom
+     *
+     * @param fileName of the rom in the library
+     * @param size of the file
+     * @param lastModified of the file in ms
+     * @param header bytes 0x100-0x14f of the rom at positions 0-0x4f
+     * @param globalSum sum of every byte of the rom except the
+     *     global checksum itself, 16 bits
+     * @param crc32 of the whole file
+     * @return info of the rom
+     */
+    static RomInfo parse(String fileName, long size, long lastModified, ByteBuffer header,
+                         int globalSum, int crc32) {
+        int cgbFlag = header.get(0x143 - HEADER_START) & 0xff;
+        //the last title bytes are the manufacturer code and cgb flag on newer carts
+        int titleEnd = ((cgbFlag & 0x80) != 0) ? 0x13f : 0x144;
+        StringBuilder title = new StringBuilder();
+        for (int i = 0x134; i < titleEnd; ++i) {
+            int c = header.get(i - HEADER_START) & 0xff;
+            if (c == 0) {
+                break;
+            }
+            title.append((c >= 0x20 && c < 0x7f) ? (char)c : '?');
+        }
+        int check = 0;
+        for (int i = 0x134; i <= 0x14c; ++i) {
+            check = check - (header.get(i - HEADER_START) & 0xff) - 1;
+        }
+        int headerChecksum = header.get(0x14d - HEADER_START) & 0xff;
+        int globalChecksum = header.getShort(0x14e - HEADER_START) & 0xffff;
+        return new RomInfo(fileName, size, lastModified, title.toString().trim(),
+                cgbFlag, header.get(0x147 - HEADER_START) & 0xff,
+                header.get(0x148 - HEADER_START) & 0xff, header.get(0x149 - HEADER_START) & 0xff,
+                headerChecksum, globalChecksum, (check & 0xff) == headerChecksum,
+                globalSum == globalChecksum, crc32);
+    }
+
+    /**
+     * @param in index to read an entry written by write() from
+     * @return the entry
+     * @throws IOException if the index can't be read
+     */
+    static RomInfo read(DataInput in) throws IOException {
+        String fileName = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        byte[] title = new byte[in.readUnsignedByte()];
+        in.readFully(title);
+        int cgbFlag = in.readUnsignedByte();
+        int cartridgeType = in.readUnsignedByte();
+        int romSizeCode = in.readUnsignedByte();
+        int ramSizeCode = in.readUnsignedByte();
+        int headerChecksum = in.readUnsignedByte();
+        int globalChecksum = in.readUnsignedShort();
+        int flags = in.readUnsignedByte();
+        int crc32 = in.readInt();
+        return new RomInfo(fileName, size, lastModified,
+                new String(title, StandardCharsets.US_ASCII), cgbFlag, cartridgeType,
+                romSizeCode, ramSizeCode, headerChecksum, globalChecksum,
+                (flags & 1) != 0, (flags & 2) != 0, crc32);
+    }
+
+    /**
+     * @param out index to append this entry to
+     * @throws IOException if the index can't be written
+     */
+    void write(DataOutput out) throws IOException {
+        byte[] titleBytes = title.getBytes(StandardCharsets.US_ASCII);
+        out.writeUTF(fileName);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeByte(titleBytes.length);
+        out.write(titleBytes);
+        out.writeByte(cgbFlag);
+        out.writeByte(cartridgeType);
+        out.writeByte(romSizeCode);
+        out.writeByte(ramSizeCode);
+        out.writeByte(headerChecksum);
+        out.writeShort(globalChecksum);
+        out.writeByte((headerValid ? 1 : 0) | (globalChecksumValid ? 2 : 0));
+        out.writeInt(crc32);
+    }
+
+    /**
+     * @param size of the file now
+     * @param lastModified of the file now in ms
+     * @return true if this entry was made from the file as it is
+     */
+    boolean isCurrent(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+
+    /**
+     * @return name of the rom file in the library directory
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return modification time of the file when indexed, in ms
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return game title from the header
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return header byte 0x143, 0x80 or 0xc0 for gameboy color games
+     */
+    public int getCgbFlag() {
+        return cgbFlag;
+    }
+
+    /**
+     * @return true if the game uses gameboy color features
+     */
+    public boolean isGBCRom() {
+        return (cgbFlag & 0x80) != 0;
+    }
+
+    /**
+     * @return header byte 0x147, the memory bank controller
+     */
+    public int getCartridgeType() {
+        return cartridgeType;
+    }
+
+    /**
+     * @return header byte 0x148, rom size is 0x8000 << code
+     */
+    public int getRomSizeCode() {
+        return romSizeCode;
+    }
+
+    /**
+     * @return header byte 0x149, external ram size
+     */
+    public int getRamSizeCode() {
+        return ramSizeCode;
+    }
+
+    /**
+     * @return header checksum (0x14d)
+     */
+    public int getHeaderChecksum() {
+        return headerChecksum;
+    }
+
+    /**
+     * @return global checksum (0x14e-0x14f)
+     */
+    public int getGlobalChecksum() {
+        return globalChecksum;
+    }
+
+    /**
+     * @return true if the header checksum matches the header,
+     *     real hardware won't boot the rom otherwise
+     */
+    public boolean isHeaderValid() {
+        return headerValid;
+    }
+
+    /**
+     * @return true if the global checksum matches the rom,
+     *     not checked by real hardware
+     */
+    public boolean isGlobalChecksumValid() {
+        return globalChecksumValid;
+    }
+
+    /**
+     * @return CRC32 of the whole file
+     */
+    public int getCrc32() {
+        return crc32;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s \"%s\" type %02x rom %02x ram %02x crc %08x%s",
+                fileName, title, cartridgeType, romSizeCode, ramSizeCode, crc32,
+                headerValid ? "" : " (bad header checksum)");
+    }
+}
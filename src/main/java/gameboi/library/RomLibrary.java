@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * Catalogue of the roms in a directory
+ *
+ * <p>
+ * What is known about each rom (RomInfo) is kept in an index file
+ * next to the roms. scan() only looks at the size and modification
+ * time of files already in the index; new and changed files are
+ * read in parallel on the common fork-join pool, their header
+ * through a FileChannel read of 0x100-0x14f and the rest through
+ * a read only mapping for the CRC32 and global checksum. The
+ * index is rewritten when anything changed.
+ *
+ * @author tomis007
+ */
+public final class RomLibrary {
+    private static final int INDEX_MAGIC = 0x47424958; //GBIX
+    private static final int INDEX_VERSION = 1;
+    //files scanned by one fork-join task
+    private static final int FILES_PER_TASK = 16;
+
+    private final Path directory;
+    private final Path indexFile;
+    private final String[] extensions;
+    //by file name, as of the last scan
+    private Map<String, RomInfo> roms;
+
+    /**
+     * Loads the index, if there is one. Nothing is scanned
+     * until scan() is called
+     *
+     * @param directory holding the roms
+     * @param indexFile to keep the catalogue in
+     * @param extensions of the files that are roms (".gb")
+     */
+    public RomLibrary(Path directory, Path indexFile, String... extensions) {
+        this.directory = directory;
+        this.indexFile = indexFile;
+        this.extensions = extensions.clone();
+        roms = readIndex();
+    }
+
+    /**
+     * Brings the catalogue up to date with the directory,
+     * reading only files that are new or changed since
+     * the last scan
+     *
+     * @return info of every rom, by file name
+     */
+    public synchronized List<RomInfo> scan() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory)) {
+            for (Path file : dir) {
+                if (isRom(file.getFileName().toString())) {
+                    files.add(file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error listing roms in " + directory + ": " + e.getMessage());
+            return getRoms();
+        }
+
+        Scan scan = new Scan(files.toArray(new Path[0]), roms, 0, files.size());
+        ForkJoinPool.commonPool().invoke(scan);
+        Map<String, RomInfo> scanned = new HashMap<>();
+        boolean changed = false;
+        for (int i = 0; i < scan.found.length; ++i) {
+            RomInfo info = scan.found[i];
+            if (info != null) {
+                scanned.put(info.getFileName(), info);
+                changed |= info != roms.get(info.getFileName());
+            }
+        }
+        changed |= scanned.size() != roms.size();
+        roms = scanned;
+        if (changed) {
+            writeIndex();
+        }
+        return getRoms();
+    }
+
+    /**
+     * @return info of every rom as of the last scan (or the
+     *     index if there wasn't one), by file name
+     */
+    public synchronized List<RomInfo> getRoms() {
+        List<RomInfo> list = new ArrayList<>(roms.values());
+        list.sort(Comparator.comparing(RomInfo::getFileName));
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param fileName of a rom in the directory
+     * @return its info as of the last scan, null if it isn't known
+     */
+    public synchronized RomInfo getRom(String fileName) {
+        return roms.get(fileName);
+    }
+
+    private boolean isRom(String fileName) {
+        for (String extension : extensions) {
+            if (fileName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans files[from, to) into found, splitting
+     * into parallel tasks while there are many
+     */
+    private static final class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path[] files;
+        private final Map<String, RomInfo> known;
+        private final RomInfo[] found;
+        private final int from;
+        private final int to;
+
+        Scan(Path[] files, Map<String, RomInfo> known, int from, int to) {
+            this(files, known, new RomInfo[files.length], from, to);
+        }
+
+        private Scan(Path[] files, Map<String, RomInfo> known, RomInfo[] found, int from, int to) {
+            this.files = files;
+            this.known = known;
+            this.found = found;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Scan(files, known, found, from, middle),
+                        new Scan(files, known, found, middle, to));
+                return;
+            }
+            for (int i = from; i < to; ++i) {
+                found[i] = scanFile(files[i], known);
+            }
+        }
+    }
+
+    /**
+     * @param file rom file
+     * @param known entries from the last scan
+     * @return the known entry if the file hasn't changed, else
+     *     a new one, null if the file isn't a readable rom
+     */
+    private static RomInfo scanFile(Path file, Map<String, RomInfo> known) {
+        String name = file.getFileName().toString();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            RomInfo info = known.get(name);
+            if (info != null && info.isCurrent(size, lastModified)) {
+                return info;
+            }
+            if (!attributes.isRegularFile() || size < RomInfo.HEADER_END) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(RomInfo.HEADER_END - RomInfo.HEADER_START);
+                while (header.hasRemaining()) {
+                    if (channel.read(header, RomInfo.HEADER_START + header.position()) < 0) {
+                        return null;
+                    }
+                }
+                MappedByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                CRC32 crc = new CRC32();
+                crc.update(contents.duplicate());
+                int sum = 0;
+                for (int i = 0; i < size; ++i) {
+                    sum += contents.get(i) & 0xff;
+                }
+                sum -= (contents.get(0x14e) & 0xff) + (contents.get(0x14f) & 0xff);
+                return RomInfo.parse(name, size, lastModified, header, sum & 0xffff,
+                        (int)crc.getValue());
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Error reading rom " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return entries in the index file, empty if there
+     *     isn't one or it can't be read
+     */
+    private Map<String, RomInfo> readIndex() {
+        Map<String, RomInfo> index = new HashMap<>();
+        if (!Files.exists(indexFile)) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                RomInfo info = RomInfo.read(in);
+                index.put(info.getFileName(), info);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading rom index " + indexFile + ": " + e.getMessage());
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * replaces the index file with the current entries
+     */
+    private void writeIndex() {
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(roms.size());
+                for (RomInfo info : roms.values()) {
+                    info.write(out);
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing rom index " + indexFile + ": " + e.getMessage());
+        }
+    }
+}
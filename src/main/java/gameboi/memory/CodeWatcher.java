@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory;
+
+/**
+ * Notified by GBMem about writes that can change executable code
+ *
+ * Used by the cpu block compiler to throw away compiled code when
+ * the bytes it was built from change, or when a different bank is
+ * switched into the address range it is running from
+ *
+ * @author tomis007
+ */
+public interface CodeWatcher {
+
+    /**
+     * A byte was written to a page marked with
+     * GBMem.watchCode(), or a bank switching register
+     * (MBC control range 0x0000-0x7fff, WRAM bank 0xff70)
+     * was written
+     *
+     * @param address that was written to
+     */
+    void codeWritten(int address);
+
+    /**
+     * The whole memory contents were replaced
+     * (new rom or a loaded save state)
+     */
+    void memoryReset();
+
+    /**
+     * The contents of ram that had code in it were replaced
+     * (a snapshot was loaded), rom and the banks are the same
+     */
+    void ramReplaced();
+}
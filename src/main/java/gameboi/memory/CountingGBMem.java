@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory;
+
+import java.util.Arrays;
+
+/**
+ * GBMem that counts every access going through readByte/writeByte,
+ * by region and by bank (or register for I/O), along with bank
+ * switches and DMA traffic
+ *
+ * Opt-in: GameBoi creates one instead of a plain GBMem when asked
+ * to count, so an emulator that doesn't count never loads this
+ * class and pays nothing for it. Only the rom's accesses through
+ * readByte/writeByte are counted: instruction fetches served from
+ * the cpu's pre-decoded rom and the emulator's own accesses (the gpu
+ * drawing and updating STAT, decoding, idle loop checks, timer and
+ * interrupt bookkeeping), which go through peek/poke, aren't
+ *
+ * @author tomis007
+ */
+public class CountingGBMem extends GBMem {
+    //counter index of each region, banked regions take one per bank
+    private static final int ROM0 = 0;
+    private static final int ROMX = ROM0 + 1;
+    private static final int VRAM = ROMX + 0x200;
+    private static final int SRAM = VRAM + 2;
+    //0xa000-0xbfff while it isn't plain ram (mbc registers, rtc, disabled)
+    private static final int SRAM_OTHER = SRAM + 0x10;
+    private static final int WRAM = SRAM_OTHER + 1;
+    private static final int ECHO = WRAM + 8;
+    private static final int OAM = ECHO + 1;
+    private static final int UNUSABLE = OAM + 1;
+    private static final int IO = UNUSABLE + 1;
+    private static final int HRAM = IO + 0x80;
+    private static final int IE = HRAM + 1;
+    private static final int REGIONS = IE + 1;
+
+    private final long[] reads;
+    private final long[] writes;
+
+    //bank switches, indexed by the kind of bank
+    private static final int ROM_BANK = 0;
+    private static final int RAM_BANK = 1;
+    private static final int WRAM_BANK = 2;
+    private static final int VRAM_BANK = 3;
+    private static final String[] BANK_NAMES = {"rom", "cart ram", "wram", "vram"};
+    private final long[] bankSwitches;
+
+    private long oamDmaBytes;
+    private long hdmaBytes;
+
+    public CountingGBMem() {
+        reads = new long[REGIONS];
+        writes = new long[REGIONS];
+        bankSwitches = new long[BANK_NAMES.length];
+    }
+
+    @Override
+    public int readByte(int address) {
+        reads[region(address)]++;
+        return super.readByte(address);
+    }
+
+    @Override
+    public void writeByte(int address, int data) {
+        writes[region(address)]++;
+        if (address < 0x8000) {
+            int romBank = getRomBank();
+            int ramBank = getCartRamBank();
+            super.writeByte(address, data);
+            if (getRomBank() != romBank) {
+                bankSwitches[ROM_BANK]++;
+            }
+            if (getCartRamBank() != ramBank) {
+                bankSwitches[RAM_BANK]++;
+            }
+        } else if (address == 0xff70) {
+            int bank = getWorkRamBank();
+            super.writeByte(address, data);
+            if (getWorkRamBank() != bank) {
+                bankSwitches[WRAM_BANK]++;
+            }
+        } else if (address == 0xff4f) {
+            int bank = getVideoRamBank();
+            super.writeByte(address, data);
+            if (getVideoRamBank() != bank) {
+                bankSwitches[VRAM_BANK]++;
+            }
+        } else {
+            super.writeByte(address, data);
+        }
+    }
+
+    @Override
+    protected void dmaTransferred(int dst, int length) {
+        if (dst == 0xfe00) {
+            oamDmaBytes += length;
+        } else {
+            hdmaBytes += length;
+        }
+    }
+
+    /**
+     * Counter an access to address goes to, by what
+     * is mapped there right now
+     *
+     * @param address accessed
+     * @return index into reads/writes
+     */
+    private int region(int address) {
+        if (address < 0x4000) {
+            return ROM0;
+        } else if (address < 0x8000) {
+            return ROMX + (getRomBank() & 0x1ff);
+        } else if (address < 0xa000) {
+            return VRAM + getVideoRamBank();
+        } else if (address < 0xc000) {
+            int bank = getCartRamBank();
+            return (bank < 0) ? SRAM_OTHER : SRAM + (bank & 0xf);
+        } else if (address < 0xd000) {
+            return WRAM;
+        } else if (address < 0xe000) {
+            return WRAM + getWorkRamBank();
+        } else if (address < 0xfe00) {
+            return ECHO;
+        } else if (address < 0xfea0) {
+            return OAM;
+        } else if (address < 0xff00) {
+            return UNUSABLE;
+        } else if (address < 0xff80) {
+            return IO + address - 0xff00;
+        } else if (address < 0xffff) {
+            return HRAM;
+        } else {
+            //0xffff and anything out of range
+            return IE;
+        }
+    }
+
+    /**
+     * @param region counter index
+     * @return name of the region (and bank or register)
+     */
+    private static String regionName(int region) {
+        if (region == ROM0) {
+            return "rom0";
+        } else if (region < VRAM) {
+            return "romx bank " + (region - ROMX);
+        } else if (region < SRAM) {
+            return "vram bank " + (region - VRAM);
+        } else if (region < SRAM_OTHER) {
+            return "sram bank " + (region - SRAM);
+        } else if (region == SRAM_OTHER) {
+            return "sram registers";
+        } else if (region == WRAM) {
+            return "wram 0xc000";
+        } else if (region < ECHO) {
+            return "wram bank " + (region - WRAM);
+        } else if (region == ECHO) {
+            return "echo";
+        } else if (region == OAM) {
+            return "oam";
+        } else if (region == UNUSABLE) {
+            return "unusable";
+        } else if (region < HRAM) {
+            return "io 0x" + Integer.toHexString(0xff00 + region - IO);
+        } else if (region == HRAM) {
+            return "hram";
+        } else {
+            return "ie";
+        }
+    }
+
+    /**
+     * Counts since the last reset, one line per region that was
+     * accessed (reads, writes), then the bank switches and DMA bytes
+     *
+     * @return the report
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        long totalReads = 0;
+        long totalWrites = 0;
+        for (int region = 0; region < REGIONS; ++region) {
+            totalReads += reads[region];
+            totalWrites += writes[region];
+            if (reads[region] != 0 || writes[region] != 0) {
+                report.append(String.format("%-16s %12d reads %12d writes%n",
+                        regionName(region), reads[region], writes[region]));
+            }
+        }
+        report.append(String.format("%-16s %12d reads %12d writes%n", "total", totalReads, totalWrites));
+        for (int kind = 0; kind < BANK_NAMES.length; ++kind) {
+            report.append(String.format("%s bank switches: %d%n", BANK_NAMES[kind], bankSwitches[kind]));
+        }
+        report.append(String.format("oam dma bytes: %d%n", oamDmaBytes));
+        report.append(String.format("hdma bytes: %d%n", hdmaBytes));
+        return report.toString();
+    }
+
+    /**
+     * Zeroes every counter, call after each getReport()
+     * for per frame or per second numbers
+     */
+    public void resetCounts() {
+        Arrays.fill(reads, 0);
+        Arrays.fill(writes, 0);
+        Arrays.fill(bankSwitches, 0);
+        oamDmaBytes = 0;
+        hdmaBytes = 0;
+    }
+}
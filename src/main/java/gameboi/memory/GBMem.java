@@ -24,8 +24,11 @@
 package main.java.gameboi.memory;
 
 
+import main.java.gameboi.memory.cartridge.UnsupportedCartridgeException;
+
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.nio.file.Files;
+import java.util.function.LongSupplier;
 import java.io.IOException;
 
 /**
@@ -48,30 +51,45 @@ import java.io.IOException;
  *   <li> FF80-FFFE - Zero-Page RAM</li>
  *   <li> FFFF      - Interrupt Enable Register</li>
  * </ul>
+ * <p>
+ * Reads and writes go through a page table (one entry per 256 bytes)
+ * to the array backing the page. Pages that need more than an array
+ * access (I/O registers, OAM, MBC registers, disabled cartridge RAM,
+ * RAM holding compiled code, writes to tile data for the TileCache)
+ * have no entry and take the slow path.
+ * The entries are remapped on bank switches.
  * 
  * @author tomis007
  */
 public class GBMem {
     private MemBanks memBank;
-    private int[] vRam;
-    private int[] vRam1;
-    private int[] wRam;
-    private int[] wRamBanks;
+    //emulated clock cycles, for cartridge real time clocks
+    private LongSupplier clock = () -> 0;
+    //vram, wram, OAM, I/O, HRAM and gbc palettes, one after another
+    //at the offsets below so a snapshot is a single copy
+    private final byte[] ram;
+    private static final int VRAM = 0x0000;
+    private static final int VRAM1 = 0x2000;
+    private static final int WRAM = 0x4000;
+    private static final int WRAM_BANKS = 0x6000;
+    private static final int OAM = 0xe000;
+    private static final int IO = 0xe0a0;
+    private static final int HRAM = 0xe120;
+    private static final int BG_PALETTES = 0xe1a0;
+    private static final int SPRITE_PALETTES = 0xe1e0;
+    private static final int RAM_SIZE = 0xe220;
     private int wRamIndex;
-    private int[] OAMTable;
-    private int[] IOPorts;
-    private int[] HRam;
     private int bankNum;
+    //IF & IE & 0x1f, updated on writes to either and interrupt requests
+    private int pendingInterrupts;
 
     //gbc color register
     private boolean autoInc;
     private int bgColorIndex;
-    private int[] bgPalettes;
 
     //gbc sprite reg
     private boolean autoSpriteInc;
     private int spriteIndex;
-    private int[] spritePalettes;
 
     //if current ROM is gbc
     private boolean gbcMode;
@@ -81,10 +99,47 @@ public class GBMem {
     private int dmaSrc;
     private int dmaDst;
 
+    //pages (address >> 8) holding compiled code
+    private final boolean[] codePages;
+    private CodeWatcher codeWatcher;
+
+    //watchers for writes to I/O registers and IE, indexed by address - 0xff00
+    private final RegisterWatcher[] registerWatchers;
+
+    //handlers for the I/O page 0xff00-0xff7f, indexed by address - 0xff00
+    private final RegisterReader[] registerReaders;
+    private final RegisterWriter[] registerWriters;
+
+    //page tables indexed by address >> 8: array backing the page (null
+    //for the slow path) and what to add to an address for its index
+    private final byte[][] readPages;
+    private final int[] readBases;
+    private final byte[][] writePages;
+    private final int[] writeBases;
+
+    //decoded tiles, told about every write to tile data
+    private final TileCache tileCache;
+
     //saving byte size info
     private static final int RAM_SAVE_LEN = MemBanks.getByteSaveSize();
     private static final int GBC_SAVE_LEN = 0xa089;
     private static final int BYTE_SAVE_LENGTH = 0x41a1 + RAM_SAVE_LEN + GBC_SAVE_LEN;
+    //registers written ahead of ram in a snapshot
+    private static final int SNAPSHOT_HEADER_LEN = 8 * 4 + 1;
+
+    //RGB of every gbc color (15 bit, 0bbbbbgggggrrrrr), color corrected
+    private static final int[] GBC_COLORS = new int[0x8000];
+    static {
+        for (int palette = 0; palette < GBC_COLORS.length; ++palette) {
+            int r = palette & 0x1f;
+            int g = (palette & 0x3e0) >> 5;
+            int b = (palette & 0x7c00) >> 10;
+            int color = ((r * 13 + g * 2 + b) >> 1);
+            color |= ((g * 3 + b) << 1) << 8;
+            color |= ((r * 3 + g * 2 + b * 11) >> 1) << 16;
+            GBC_COLORS[palette] = color;
+        }
+    }
 
     /**
      * KEY 7 - SELECT
@@ -106,14 +161,9 @@ public class GBMem {
      *
      */
     public GBMem() {
-        vRam = new int[0x2000];
-        vRam1 = new int[0x2000];
-        wRamBanks = new int[0x8000];
+        ram = new byte[RAM_SIZE];
+        tileCache = new TileCache(ram, VRAM, VRAM1);
         wRamIndex = 1;
-        wRam = new int[0x2000];
-        OAMTable = new int[0xa0];
-        IOPorts = new int[0x80];
-        HRam = new int[0x80];
         joyPadState = 0xff; //no keys pressed
         memBank = null;
         gbcMode = false; //defaults to false
@@ -121,12 +171,10 @@ public class GBMem {
 
         //color registers
         bgColorIndex = 0;
-        bgPalettes = new int[0x40];
         autoInc = false;
 
         //sprite palette registers
         spriteIndex = 0;
-        spritePalettes = new int[0x40];
         autoSpriteInc = false;
 
         hBlankDMAInProgress = false;
@@ -134,26 +182,40 @@ public class GBMem {
         dmaSrc = 0;
         dmaDst = 0;
 
+        codePages = new boolean[0x100];
+        codeWatcher = null;
+        registerWatchers = new RegisterWatcher[0x100];
+        registerReaders = new RegisterReader[0x80];
+        registerWriters = new RegisterWriter[0x80];
+        initRegisterHandlers();
+
+        readPages = new byte[0x100][];
+        readBases = new int[0x100];
+        writePages = new byte[0x100][];
+        writeBases = new int[0x100];
+        mapVideoRam();
+        mapWorkRam();
+
         //gb 'bios' leaves in this state
-        IOPorts[0x10] = 0x80;
-        IOPorts[0x11] = 0xbf;
-        IOPorts[0x12] = 0xf3;
-        IOPorts[0x14] = 0xbf;
-        IOPorts[0x16] = 0x3f;
-        IOPorts[0x19] = 0xbf;
-        IOPorts[0x1a] = 0x7f;
-        IOPorts[0x1b] = 0xff;
-        IOPorts[0x1c] = 0x9f;
-        IOPorts[0x1e] = 0xbf;
-        IOPorts[0x20] = 0xff;
-        IOPorts[0x23] = 0xbf;
-        IOPorts[0x24] = 0x77;
-        IOPorts[0x25] = 0xf3;
-        IOPorts[0x26] = 0xf1;
-        IOPorts[0x40] = 0x91;
-        IOPorts[0x47] = 0xfc;
-        IOPorts[0x48] = 0xff;
-        IOPorts[0x49] = 0xff;
+        ram[IO + 0x10] = (byte)0x80;
+        ram[IO + 0x11] = (byte)0xbf;
+        ram[IO + 0x12] = (byte)0xf3;
+        ram[IO + 0x14] = (byte)0xbf;
+        ram[IO + 0x16] = (byte)0x3f;
+        ram[IO + 0x19] = (byte)0xbf;
+        ram[IO + 0x1a] = (byte)0x7f;
+        ram[IO + 0x1b] = (byte)0xff;
+        ram[IO + 0x1c] = (byte)0x9f;
+        ram[IO + 0x1e] = (byte)0xbf;
+        ram[IO + 0x20] = (byte)0xff;
+        ram[IO + 0x23] = (byte)0xbf;
+        ram[IO + 0x24] = (byte)0x77;
+        ram[IO + 0x25] = (byte)0xf3;
+        ram[IO + 0x26] = (byte)0xf1;
+        ram[IO + 0x40] = (byte)0x91;
+        ram[IO + 0x47] = (byte)0xfc;
+        ram[IO + 0x48] = (byte)0xff;
+        ram[IO + 0x49] = (byte)0xff;
     }
 
 
@@ -166,11 +228,11 @@ public class GBMem {
      */
     public byte[] saveState() {
         byte[] save = new byte[BYTE_SAVE_LENGTH];
-        MemCopyUtil.copyArray(vRam, 0, save, 0, 0x2000);
-        MemCopyUtil.copyArray(wRam, 0, save, 0x2000, 0x2000);
-        MemCopyUtil.copyArray(OAMTable, 0, save, 0x4000, 0xa0);
-        MemCopyUtil.copyArray(IOPorts, 0, save, 0x40a0, 0x80);
-        MemCopyUtil.copyArray(HRam, 0, save, 0x4120, 0x80);
+        System.arraycopy(ram, VRAM, save, 0, 0x2000);
+        System.arraycopy(ram, WRAM, save, 0x2000, 0x2000);
+        System.arraycopy(ram, OAM, save, 0x4000, 0xa0);
+        System.arraycopy(ram, IO, save, 0x40a0, 0x80);
+        System.arraycopy(ram, HRAM, save, 0x4120, 0x80);
         System.arraycopy(memBank.saveState(), 0, save, 0x41a0, RAM_SAVE_LEN);
         saveGBCState(save, 0x41a0 + RAM_SAVE_LEN);
         save[BYTE_SAVE_LENGTH - 1] = (byte)(joyPadState & 0xff);
@@ -185,10 +247,10 @@ public class GBMem {
      */
     private void saveGBCState(byte[] save, int start) {
         System.err.println("Saving state");
-        MemCopyUtil.copyArray(vRam1, 0, save, start, 0x2000);
-        MemCopyUtil.copyArray(wRamBanks, 0, save, start + 0x2000, 0x8000);
-        MemCopyUtil.copyArray(bgPalettes, 0, save, start + 0xa000, 0x40);
-        MemCopyUtil.copyArray(spritePalettes, 0, save, start + 0xa040, 0x40);
+        System.arraycopy(ram, VRAM1, save, start, 0x2000);
+        System.arraycopy(ram, WRAM_BANKS, save, start + 0x2000, 0x8000);
+        System.arraycopy(ram, BG_PALETTES, save, start + 0xa000, 0x40);
+        System.arraycopy(ram, SPRITE_PALETTES, save, start + 0xa040, 0x40);
         save[start + 0xa080] = (byte)bgColorIndex;
         save[start + 0xa080 + 1] = (byte)(autoInc ? 1 : 0);
         save[start + 0xa080 + 2] = (byte)spriteIndex;
@@ -208,10 +270,10 @@ public class GBMem {
      */
     private void loadGBCState(byte[] save, int start) {
         System.err.println("loading state");
-        MemCopyUtil.copyArray(vRam1, 0, save, start, 0x2000);
-        MemCopyUtil.copyArray(wRamBanks, 0, save, start + 0x2000, 0x8000);
-        MemCopyUtil.copyArray(bgPalettes, 0, save, start + 0xa000, 0x40);
-        MemCopyUtil.copyArray(spritePalettes, 0, save, start + 0xa040, 0x40);
+        System.arraycopy(save, start, ram, VRAM1, 0x2000);
+        System.arraycopy(save, start + 0x2000, ram, WRAM_BANKS, 0x8000);
+        System.arraycopy(save, start + 0xa000, ram, BG_PALETTES, 0x40);
+        System.arraycopy(save, start + 0xa040, ram, SPRITE_PALETTES, 0x40);
         bgColorIndex = Byte.toUnsignedInt(save[start + 0xa080]);
         autoInc  = Byte.toUnsignedInt(save[start + 0xa080 + 1]) == 1;
         spriteIndex = Byte.toUnsignedInt(save[start + 0xa080 + 2]);
@@ -228,19 +290,80 @@ public class GBMem {
      *
      */
     public void loadState(byte[] save) {
-        MemCopyUtil.copyArray(save, 0, vRam, 0, 0x2000);
-        MemCopyUtil.copyArray(save, 0x2000, wRam, 0, 0x2000);
-        MemCopyUtil.copyArray(save, 0x4000, OAMTable, 0, 0xa0);
-        MemCopyUtil.copyArray(save, 0x40a0, IOPorts, 0, 0x80);
-        MemCopyUtil.copyArray(save, 0x4120, HRam, 0, 0x80);
-        byte[] ram = new byte[RAM_SAVE_LEN];
-        System.arraycopy(save, 0x41a0, ram, 0, RAM_SAVE_LEN);
-        memBank.loadState(ram);
+        System.arraycopy(save, 0, ram, VRAM, 0x2000);
+        System.arraycopy(save, 0x2000, ram, WRAM, 0x2000);
+        System.arraycopy(save, 0x4000, ram, OAM, 0xa0);
+        System.arraycopy(save, 0x40a0, ram, IO, 0x80);
+        System.arraycopy(save, 0x4120, ram, HRAM, 0x80);
+        byte[] cartState = new byte[RAM_SAVE_LEN];
+        System.arraycopy(save, 0x41a0, cartState, 0, RAM_SAVE_LEN);
+        memBank.loadState(cartState);
         loadGBCState(save, 0x41a0 + RAM_SAVE_LEN);
         joyPadState = Byte.toUnsignedInt(save[BYTE_SAVE_LENGTH - 1]);
+        updatePendingInterrupts();
+        mapCartridge();
+        tileCache.invalidate();
+        resetCodeWatch();
     }
 
 
+    /**
+     * @return bytes saveSnapshot() writes for the loaded rom
+     */
+    public int snapshotSize() {
+        return SNAPSHOT_HEADER_LEN + RAM_SIZE + memBank.snapshotSize();
+    }
+
+    /**
+     * Writes the complete memory state to snapshot: the banking,
+     * palette and dma registers, then all of ram in one copy,
+     * then the cartridge's registers and ram
+     *
+     * @param snapshot to write snapshotSize() bytes to at its position
+     */
+    public void saveSnapshot(ByteBuffer snapshot) {
+        snapshot.putInt(wRamIndex);
+        snapshot.putInt(bankNum);
+        snapshot.putInt(bgColorIndex);
+        snapshot.putInt(spriteIndex);
+        snapshot.putInt(dmaTransferLength);
+        snapshot.putInt(dmaSrc);
+        snapshot.putInt(dmaDst);
+        snapshot.putInt(joyPadState);
+        snapshot.put((byte)((autoInc ? 1 : 0) | (autoSpriteInc ? 2 : 0)
+                | (hBlankDMAInProgress ? 4 : 0) | (gbcMode ? 8 : 0)));
+        snapshot.put(ram);
+        memBank.saveSnapshot(snapshot);
+    }
+
+    /**
+     * Restores the state written by saveSnapshot() for the same rom
+     *
+     * @param snapshot to read snapshotSize() bytes from at its position
+     */
+    public void loadSnapshot(ByteBuffer snapshot) {
+        wRamIndex = snapshot.getInt();
+        bankNum = snapshot.getInt();
+        bgColorIndex = snapshot.getInt();
+        spriteIndex = snapshot.getInt();
+        dmaTransferLength = snapshot.getInt();
+        dmaSrc = snapshot.getInt();
+        dmaDst = snapshot.getInt();
+        joyPadState = snapshot.getInt();
+        int flags = snapshot.get();
+        autoInc = (flags & 1) != 0;
+        autoSpriteInc = (flags & 2) != 0;
+        hBlankDMAInProgress = (flags & 4) != 0;
+        gbcMode = (flags & 8) != 0;
+        snapshot.get(ram);
+        memBank.loadSnapshot(snapshot);
+        updatePendingInterrupts();
+        mapCartridge();
+        mapVideoRam();
+        tileCache.invalidate();
+        ramReplaced();
+    }
+
     /**
      * The length of the save byte state array
      * @return
@@ -254,26 +377,75 @@ public class GBMem {
      *
      * Initialize a rom into memory
      *
+     * The rom image is shared with other instances
+     * running the same rom (see RomCache)
      *
      * @param path of rom to load
+     * @throws UnsupportedCartridgeException if the rom's memory bank
+     *     controller isn't supported, the loaded rom is kept
      */
-    public void loadRom(Path path) {
+    public void loadRom(Path path) throws UnsupportedCartridgeException {
         try {
-            byte[] rom = Files.readAllBytes(path);
-            int[] cartridge = new int[rom.length];
+            byte[] rom = RomCache.load(path);
+            MemBanks banks = new MemBanks(rom);
 
-            for (int i = 0; i < rom.length; ++i) {
-                cartridge[i] = Byte.toUnsignedInt(rom[i]);
+            gbcMode = (rom[0x143] != 0x0);
+            if (memBank != null) {
+                memBank.closeBattery();
             }
-
-            gbcMode = (cartridge[0x143] != 0x0);
-            memBank = new MemBanks(cartridge);
+            memBank = banks;
+            memBank.setClock(clock);
+            mapCartridge();
+            resetCodeWatch();
         } catch (IOException e) {
             System.err.println("Error Loading rom: " + e.getMessage());
             System.exit(1); // TODO probably not
         }
     }
 
+    /**
+     * Keeps the cartridge's battery backed ram in a save file,
+     * loading the ram from it. Without battery ram nothing happens
+     *
+     * @param file .sav file for the loaded rom
+     */
+    public void attachBatteryFile(Path file) {
+        try {
+            memBank.attachBattery(file);
+        } catch (IOException e) {
+            System.err.println("Error opening battery save: " + file + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues a write of battery backed ram to its save
+     * file in the background, if there is one
+     */
+    public void flushBatteryRam() {
+        memBank.flushBattery();
+    }
+
+    /**
+     * Sets what cartridge real time clocks count, the clock
+     * cycles run by the cpu
+     *
+     * @param cycles emulated clock cycles since power on
+     */
+    public void setClock(LongSupplier cycles) {
+        clock = cycles;
+        if (memBank != null) {
+            memBank.setClock(cycles);
+        }
+    }
+
+    /**
+     * Catches a cartridge real time clock up with the wall clock
+     * time passed since the loaded state was saved
+     */
+    public void resumeClock() {
+        memBank.resumeClock();
+    }
+
     /**
      * Read a 'byte' from memory.
      *
@@ -289,45 +461,63 @@ public class GBMem {
      * @see GBMem
      */
     public int readByte(int address) {
-        if (address == 0xff00) {
-            return translateJoyPad();
+        return peek(address);
+    }
+
+    /**
+     * Reads a byte like readByte, for the emulator's own accesses
+     * (gpu, decoding, idle loop checks). Subclasses can't hook it,
+     * so these reads aren't counted as the rom's traffic
+     *
+     * @param address to read from
+     * @return byte at address
+     */
+    public final int peek(int address) {
+        byte[] page = (address >>> 16 == 0) ? readPages[address >> 8] : null;
+        if (page != null) {
+            return Byte.toUnsignedInt(page[address + readBases[address >> 8]]);
+        }
+        return readUnmapped(address);
+    }
+
+    /**
+     * Reads a byte from a page without a page table entry
+     *
+     * @param address to read from
+     * @return byte at address
+     */
+    private int readUnmapped(int address) {
+        if (address >>> 7 == 0x1fe) {
+            return registerReaders[address - 0xff00].readRegister(address);
         } else if (address < 0x8000) {
             return memBank.readByte(address);
         } else if (address < 0xa000) {
             if (bankNum == 0)
-                return vRam[address - 0x8000];
+                return Byte.toUnsignedInt(ram[VRAM + address - 0x8000]);
             else
-                return vRam1[address - 0x8000];
+                return Byte.toUnsignedInt(ram[VRAM1 + address - 0x8000]);
         } else if (address < 0xc000) {
             return memBank.readByte(address);
         } else if (address < 0xe000) {
             if (gbcMode) {
                 if (address < 0xd000) {
-                    return wRamBanks[address & 0x0fff];
+                    return Byte.toUnsignedInt(ram[WRAM_BANKS + (address & 0x0fff)]);
                 } else {
-                    return wRamBanks[(address & 0x0fff) + (0x1000 * wRamIndex)];
+                    return Byte.toUnsignedInt(ram[WRAM_BANKS + (address & 0x0fff) + (0x1000 * wRamIndex)]);
                 }
             } else {
-                return wRam[address - 0xc000];
+                return Byte.toUnsignedInt(ram[WRAM + address - 0xc000]);
             }
         } else if (address < 0xfe00) {
             //TODO fix for GBC?
-            return wRam[address - 0xe000];
+            return Byte.toUnsignedInt(ram[WRAM + address - 0xe000]);
         } else if (address < 0xfea0) {
-            return OAMTable[address - 0xfe00];
+            return Byte.toUnsignedInt(ram[OAM + address - 0xfe00]);
         } else if (address < 0xff00) {
             System.err.println("Tried to read from invalid address: " + Integer.toHexString(address));
             return -1; // can't use this area
-        } else if (address < 0xff80){
-            if (address == 0xff69) {
-                return bgPalettes[bgColorIndex];
-            } else if (address == 0xff6b) {
-                return spritePalettes[spriteIndex];
-            } else {
-                return IOPorts[address - 0xff00];
-            }
         } else if (address < 0x10000){
-            return HRam[address - 0xff80];
+            return Byte.toUnsignedInt(ram[HRAM + address - 0xff80]);
         } else {
             System.err.println("Reading from invalid address: " + Integer.toHexString(address));
             return -1; //oops something went wrong
@@ -339,9 +529,9 @@ public class GBMem {
         bank &= 1;
         if (address >= 0x8000 && address < 0xc000) {
             if (bank == 1) {
-                return vRam1[address - 0x8000];
+                return Byte.toUnsignedInt(ram[VRAM1 + address - 0x8000]);
             } else {
-                return vRam[address - 0x8000];
+                return Byte.toUnsignedInt(ram[VRAM + address - 0x8000]);
             }
         }
         else {
@@ -351,9 +541,10 @@ public class GBMem {
     }
 
     public void writeVram0(int address, int data) {
-        if (address >= 0x8000 && address < 0xc000)
-            vRam[address - 0x8000] = data & 0xff;
-        else {
+        if (address >= 0x8000 && address < 0xc000) {
+            ram[VRAM + address - 0x8000] = (byte)data;
+            tileCache.written(VRAM + address - 0x8000);
+        } else {
             System.err.println("invalid vram0 write");
             System.err.println(Integer.toHexString(address));
         }
@@ -370,39 +561,315 @@ public class GBMem {
      * @see GBMem
      */ 
     public void writeByte(int address, int data) {
+        poke(address, data);
+    }
+
+    /**
+     * Writes a byte like writeByte, for the emulator's own
+     * accesses. Subclasses can't hook it, see peek
+     *
+     * @param address to write to
+     * @param data to write
+     */
+    public final void poke(int address, int data) {
+        byte[] page = (address >>> 16 == 0) ? writePages[address >> 8] : null;
+        if (page != null) {
+            page[address + writeBases[address >> 8]] = (byte)data;
+        } else {
+            writeUnmapped(address, data);
+        }
+    }
+
+    /**
+     * Writes a byte to a page without a page table entry
+     *
+     * @param address to write to
+     * @param data to write
+     */
+    private void writeUnmapped(int address, int data) {
         //only store a byte in memory
         data &= 0xff;
 
-        if (address < 0x8000) {
+        if (address >>> 7 == 0x1fe) {
+            handleIOWriting(address, data);
+        } else if (address < 0x8000) {
             memBank.writeByte(address, data);
+            mapCartridge();
+            if (codeWatcher != null) {
+                codeWatcher.codeWritten(address); //possible bank switch
+            }
         } else if (address < 0xa000){
-            if (bankNum == 0)
-                vRam[address - 0x8000] = data;
-            else
-                vRam1[address - 0x8000] = data;
+            int index = videoRamIndex(address);
+            ram[index] = (byte)data;
+            tileCache.written(index);
         } else if (address < 0xc000) {
             memBank.writeByte(address, data);
         } else if (address < 0xe000) {
             if (gbcMode) {
                 if (address < 0xd000) {
-                    wRamBanks[address & 0x0fff] = data;
+                    ram[WRAM_BANKS + (address & 0x0fff)] = (byte)data;
                 } else {
-                    wRamBanks[(address & 0x0fff) + (0x1000 * wRamIndex)] = data;
+                    ram[WRAM_BANKS + (address & 0x0fff) + (0x1000 * wRamIndex)] = (byte)data;
                 }
             } else {
-                wRam[address - 0xc000] = data;
+                ram[WRAM + address - 0xc000] = (byte)data;
+            }
+            if (codePages[address >> 8]) {
+                codeWatcher.codeWritten(address);
             }
         } else if (address < 0xfe00) {
-            wRam[address - 0xe000] = data; //ECHO
+            ram[WRAM + address - 0xe000] = (byte)data; //ECHO
+            if (codePages[(address - 0x2000) >> 8]) {
+                codeWatcher.codeWritten(address - 0x2000);
+            }
         } else if (address < 0xfea0) {
-            OAMTable[address - 0xfe00] = data;
+            ram[OAM + address - 0xfe00] = (byte)data;
         } else if (address < 0xff00) {
             //cant do anything here
-        } else if (address < 0xff80) {
-            handleIOWriting(address, data);
         } else if (address < 0x10000) {
-            HRam[address - 0xff80] = data;
+            ram[HRAM + address - 0xff80] = (byte)data;
+            if (codePages[address >> 8]) {
+                codeWatcher.codeWritten(address);
+            }
+            if (address == 0xffff) {
+                updatePendingInterrupts();
+                if (registerWatchers[0xff] != null) {
+                    registerWatchers[0xff].registerWritten(address, data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets an interrupt's bit in IF (0xff0f)
+     *
+     * @param id interrupt (bit number) to request
+     */
+    public void requestInterrupt(int id) {
+        ram[IO + 0x0f] |= 1 << id;
+        updatePendingInterrupts();
+    }
+
+    /**
+     * Interrupts that are both requested and enabled, bit 0 (V-Blank)
+     * has the highest priority. Kept up to date on writes to IF and IE
+     * instead of reading both registers every instruction
+     *
+     * @return IF & IE & 0x1f
+     */
+    public int getPendingInterrupts() {
+        return pendingInterrupts;
+    }
+
+    private void updatePendingInterrupts() {
+        pendingInterrupts = ram[IO + 0x0f] & ram[HRAM + 0x7f] & 0x1f;
+    }
+
+    /**
+     * Sets the watcher notified about writes to code pages
+     * and bank switches
+     *
+     * @param watcher to notify, null for none
+     */
+    public void setCodeWatcher(CodeWatcher watcher) {
+        codeWatcher = watcher;
+    }
+
+    /**
+     * Sets the watcher notified after every write to an I/O register
+     *
+     * @param address of the register (0xff00-0xff7f, or 0xffff for IE)
+     * @param watcher to notify, null for none
+     */
+    public void watchRegister(int address, RegisterWatcher watcher) {
+        registerWatchers[address - 0xff00] = watcher;
+    }
+
+    /**
+     * Marks the pages covering start to end (exclusive) as
+     * holding compiled code, writes to them are reported
+     * to the CodeWatcher
+     *
+     * Only meaningful for the RAM areas (0xc000-0xdfff, 0xff80-0xfffe),
+     * the watcher always hears about writes to the ROM area
+     *
+     * @param start first address of the code
+     * @param end address after the last byte of code
+     */
+    public void watchCode(int start, int end) {
+        if (codeWatcher == null) {
+            return;
+        }
+        for (int page = start >> 8; page <= (end - 1) >> 8; ++page) {
+            codePages[page] = true;
+        }
+        mapWorkRam();
+    }
+
+    /**
+     * clears all code pages and tells the watcher
+     * that memory was replaced
+     */
+    private void resetCodeWatch() {
+        for (int i = 0; i < codePages.length; ++i) {
+            codePages[i] = false;
+        }
+        mapWorkRam();
+        if (codeWatcher != null) {
+            codeWatcher.memoryReset();
+        }
+    }
+
+    /**
+     * clears the code pages after ram was replaced, and
+     * tells the watcher if there was code in them (rom
+     * code stays valid)
+     */
+    private void ramReplaced() {
+        boolean hadCode = false;
+        for (int i = 0; i < codePages.length; ++i) {
+            hadCode |= codePages[i];
+            codePages[i] = false;
         }
+        mapWorkRam();
+        if (hadCode) {
+            codeWatcher.ramReplaced();
+        }
+    }
+
+    /**
+     * Points count page table entries from first at array, starting
+     * at index start. Pages the array doesn't cover completely get no
+     * entry (the slow path deals with them as before)
+     *
+     * @param pages table to fill
+     * @param bases index bases of the table
+     * @param first page number
+     * @param count of pages
+     * @param array backing the pages, null for none
+     * @param start index in array of the first page's first byte
+     */
+    private static void mapPages(byte[][] pages, int[] bases, int first, int count,
+                                 byte[] array, int start) {
+        for (int i = 0; i < count; ++i) {
+            int index = start + (i << 8);
+            if (array != null && index >= 0 && index + 0x100 <= array.length) {
+                pages[first + i] = array;
+                bases[first + i] = start - (first << 8);
+            } else {
+                pages[first + i] = null;
+            }
+        }
+    }
+
+    /**
+     * maps the rom banks (read only) and the external ram
+     * for the current cartridge state, after loading and
+     * after every write to the MBC registers
+     */
+    private void mapCartridge() {
+        byte[] rom = memBank.getRom();
+        mapPages(readPages, readBases, 0x00, 0x40, rom, 0);
+        mapPages(readPages, readBases, 0x40, 0x40, rom, memBank.getRomBank() * 0x4000);
+        byte[] cartRam = memBank.getRam();
+        mapPages(readPages, readBases, 0xa0, 0x20, cartRam, memBank.getRamOffset());
+        mapPages(writePages, writeBases, 0xa0, 0x20, cartRam, memBank.getRamOffset());
+    }
+
+    /**
+     * maps the vram bank selected by 0xff4f. Tile data
+     * (0x8000-0x97ff) is only mapped for reading, writes
+     * take the slow path so the tile cache hears about them
+     */
+    private void mapVideoRam() {
+        int bank = (bankNum == 0) ? VRAM : VRAM1;
+        mapPages(readPages, readBases, 0x80, 0x20, ram, bank);
+        mapPages(writePages, writeBases, 0x80, 0x18, null, 0);
+        mapPages(writePages, writeBases, 0x98, 0x08, ram, bank + 0x1800);
+    }
+
+    /**
+     * @param address in 0x8000-0x9fff
+     * @return index in ram of the address in the current vram bank
+     */
+    private int videoRamIndex(int address) {
+        return ((bankNum == 0) ? VRAM : VRAM1) + address - 0x8000;
+    }
+
+    /**
+     * Decoded tiles of both vram banks, kept up
+     * to date with writes to tile data
+     *
+     * @return tile cache of this memory
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * maps wram, the bank selected by 0xff70 for gbc, and its
+     * echo. Pages holding compiled code are left to the slow
+     * path so the watcher hears about writes to them
+     */
+    private void mapWorkRam() {
+        mapWorkRam(readPages, readBases);
+        mapWorkRam(writePages, writeBases);
+        for (int page = 0xc0; page < 0xe0; ++page) {
+            if (codePages[page]) {
+                writePages[page] = null;
+                if (page + 0x20 < 0xfe) {
+                    writePages[page + 0x20] = null;
+                }
+            }
+        }
+    }
+
+    private void mapWorkRam(byte[][] pages, int[] bases) {
+        if (gbcMode) {
+            mapPages(pages, bases, 0xc0, 0x10, ram, WRAM_BANKS);
+            mapPages(pages, bases, 0xd0, 0x10, ram, WRAM_BANKS + 0x1000 * wRamIndex);
+        } else {
+            mapPages(pages, bases, 0xc0, 0x20, ram, WRAM);
+        }
+        //TODO fix echo for GBC?
+        mapPages(pages, bases, 0xe0, 0x1e, ram, WRAM);
+    }
+
+    /**
+     * ROM bank mapped at 0x4000-0x7fff
+     *
+     * @return current switchable rom bank number
+     */
+    public int getRomBank() {
+        return memBank.getRomBank();
+    }
+
+    /**
+     * WRAM bank mapped at 0xd000-0xdfff
+     *
+     * @return current wram bank (always 1 if not gbc)
+     */
+    public int getWorkRamBank() {
+        return gbcMode ? wRamIndex : 1;
+    }
+
+    /**
+     * VRAM bank mapped at 0x8000-0x9fff
+     *
+     * @return current vram bank (0 or 1)
+     */
+    public int getVideoRamBank() {
+        return bankNum;
+    }
+
+    /**
+     * Cartridge RAM bank mapped at 0xa000-0xbfff
+     *
+     * @return current ram bank, -1 if 0xa000-0xbfff is not plain
+     *     ram right now (no ram, disabled, rtc register)
+     */
+    public int getCartRamBank() {
+        return (memBank.getRam() == null) ? -1 : memBank.getRamOffset() / 0x2000;
     }
 
     /**
@@ -411,15 +878,15 @@ public class GBMem {
      * @return memory[0xff44]
      */ 
     public int getScanLine() {
-        return IOPorts[0x44];
+        return Byte.toUnsignedInt(ram[IO + 0x44]);
     }
 
 
     /**
      * handleIOWriting
      *
-     * Writes a byte to the IO PORTs in memory
-     * Handles the reset cases for the registers stored here
+     * Writes a byte to the IO PORTs in memory through the
+     * register's writer, then notifies its watcher
      *
      * @param address to write to (an IO port address)
      * @param data to write
@@ -428,46 +895,103 @@ public class GBMem {
         int newAddress = address - 0xff00;
         data &= 0xff;
 
-        if (address == 0xff04) {
-            IOPorts[newAddress] = 0; //reset DIV register
-        } else if (address == 0xff44) {
-            IOPorts[newAddress] = 0; //reset LCDC y-Coordinate
-        } else if (address == 0xff46) {
-            DMATransfer(data);
-        } else if (address == 0xff40) {
-            IOPorts[newAddress] = data;
-        } else if (address == 0xff4d) {
-            System.err.println("GBC DOUBLE SPEED MODE");
-        } else if (address == 0xff4f) {
-            IOPorts[newAddress] = data & 0x1;
-            bankNum = data & 0x1;
-        } else if (address == 0xff68) {
-            // color 'register'
-            autoInc = (data & 0x80) != 0x0;
-            bgColorIndex = data & 0x3f;
-            IOPorts[newAddress] = data;
-        } else if (address == 0xff69) {
-            bgPalettes[bgColorIndex] = data;
-            bgColorIndex += autoInc ? 1 : 0;
-            bgColorIndex &= 0x3f;
-        } else if (address == 0xff6a) {
-            autoSpriteInc = (data & 0x80) != 0x0;
-            spriteIndex = data & 0x3f;
-            IOPorts[newAddress] = data;
-        } else if (address == 0xff6b) {
-            spritePalettes[spriteIndex] = data;
-            spriteIndex += autoSpriteInc ? 1 : 0;
-        } else if (address == 0xff55) {
-            //IOPorts[newAddress] = data;
-            gbcDMATransfer(data);
-        } else if (address == 0xff70) {
-            System.err.println("changing wramindex: " + Integer.toString(data));
-            wRamIndex = data & 0x7;
-            if (wRamIndex == 0) {
-                wRamIndex = 1;
-            }
-        } else {
-            IOPorts[newAddress] = data;
+        registerWriters[newAddress].writeRegister(address, data);
+        if (registerWatchers[newAddress] != null) {
+            registerWatchers[newAddress].registerWritten(address, data);
+        }
+    }
+
+    /**
+     * Sets the handlers for an I/O register, so a unit that
+     * emulates its own registers (sound, serial) can plug in.
+     * Watchers of the register are still notified on writes
+     *
+     * @param address of the register (0xff00-0xff7f)
+     * @param reader to read the register with, null for plain storage
+     * @param writer to write the register with, null for plain storage
+     */
+    public void setRegisterHandlers(int address, RegisterReader reader, RegisterWriter writer) {
+        registerReaders[address - 0xff00] = (reader != null) ? reader : this::readRegister;
+        registerWriters[address - 0xff00] = (writer != null) ? writer : this::writeRegister;
+    }
+
+    /**
+     * Plain storage for every I/O register, then the
+     * handlers for the registers with side effects
+     */
+    private void initRegisterHandlers() {
+        for (int address = 0xff00; address < 0xff80; ++address) {
+            setRegisterHandlers(address, null, null);
+        }
+        setRegisterHandlers(0xff00, address -> translateJoyPad(), null);
+        setRegisterHandlers(0xff04, null, (address, data) -> ram[IO + 0x04] = 0); //reset DIV
+        setRegisterHandlers(0xff0f, null, this::writeInterruptFlags);
+        setRegisterHandlers(0xff44, null, (address, data) -> ram[IO + 0x44] = 0); //reset LY
+        setRegisterHandlers(0xff46, null, (address, data) -> DMATransfer(data));
+        setRegisterHandlers(0xff4d, null, (address, data) -> System.err.println("GBC DOUBLE SPEED MODE"));
+        setRegisterHandlers(0xff4f, null, this::writeVramBank);
+        setRegisterHandlers(0xff55, null, (address, data) -> gbcDMATransfer(data));
+        setRegisterHandlers(0xff68, null, this::writeBgPaletteIndex);
+        setRegisterHandlers(0xff69, address -> Byte.toUnsignedInt(ram[BG_PALETTES + bgColorIndex]),
+                this::writeBgPaletteData);
+        setRegisterHandlers(0xff6a, null, this::writeSpritePaletteIndex);
+        setRegisterHandlers(0xff6b, address -> Byte.toUnsignedInt(ram[SPRITE_PALETTES + spriteIndex]),
+                this::writeSpritePaletteData);
+        setRegisterHandlers(0xff70, null, this::writeWorkRamBank);
+    }
+
+    private int readRegister(int address) {
+        return Byte.toUnsignedInt(ram[IO + address - 0xff00]);
+    }
+
+    private void writeRegister(int address, int data) {
+        ram[IO + address - 0xff00] = (byte)data;
+    }
+
+    private void writeInterruptFlags(int address, int data) {
+        ram[IO + 0x0f] = (byte)data;
+        updatePendingInterrupts();
+    }
+
+    private void writeVramBank(int address, int data) {
+        ram[IO + 0x4f] = (byte)(data & 0x1);
+        bankNum = data & 0x1;
+        mapVideoRam();
+    }
+
+    private void writeBgPaletteIndex(int address, int data) {
+        // color 'register'
+        autoInc = (data & 0x80) != 0x0;
+        bgColorIndex = data & 0x3f;
+        ram[IO + 0x68] = (byte)data;
+    }
+
+    private void writeBgPaletteData(int address, int data) {
+        ram[BG_PALETTES + bgColorIndex] = (byte)data;
+        bgColorIndex += autoInc ? 1 : 0;
+        bgColorIndex &= 0x3f;
+    }
+
+    private void writeSpritePaletteIndex(int address, int data) {
+        autoSpriteInc = (data & 0x80) != 0x0;
+        spriteIndex = data & 0x3f;
+        ram[IO + 0x6a] = (byte)data;
+    }
+
+    private void writeSpritePaletteData(int address, int data) {
+        ram[SPRITE_PALETTES + spriteIndex] = (byte)data;
+        spriteIndex += autoSpriteInc ? 1 : 0;
+    }
+
+    private void writeWorkRamBank(int address, int data) {
+        System.err.println("changing wramindex: " + Integer.toString(data));
+        wRamIndex = data & 0x7;
+        if (wRamIndex == 0) {
+            wRamIndex = 1;
+        }
+        mapWorkRam();
+        if (codeWatcher != null) {
+            codeWatcher.codeWritten(address);
         }
     }
 
@@ -481,8 +1005,67 @@ public class GBMem {
     private void DMATransfer(int data) {
         int address = data * 0x100;
 
-        for (int i = 0; i < 0xa0; ++i) {
-            OAMTable[i] = readByte(address + i);
+        dmaTransferred(0xfe00, 0xa0);
+        byte[] page = readPages[data];
+        if (page != null) {
+            System.arraycopy(page, address + readBases[data], ram, OAM, 0xa0);
+        } else {
+            for (int i = 0; i < 0xa0; ++i) {
+                ram[OAM + i] = (byte)readByte(address + i);
+            }
+        }
+    }
+
+    /**
+     * Called for every DMA transfer before it copies, does nothing
+     * here. Lets an instrumented memory (CountingGBMem) see the bytes
+     * DMA moves without going through readByte/writeByte
+     *
+     * @param dst address the transfer copies to
+     * @param length bytes it copies
+     */
+    protected void dmaTransferred(int dst, int length) {
+    }
+
+    /**
+     * Copies length bytes from src to dst, with the same result
+     * as writeByte(dst + i, readByte(src + i)) for each i in order.
+     * Runs of bytes where both ends have a page table entry are
+     * moved with one array copy, the rest go byte by byte
+     *
+     * @param src address to copy from
+     * @param dst address to copy to
+     * @param length bytes to copy
+     */
+    private void copyMemory(int src, int dst, int length) {
+        dmaTransferred(dst, length);
+        while (length > 0) {
+            byte[] from = (src >>> 16 == 0) ? readPages[src >> 8] : null;
+            byte[] to = (dst >>> 16 == 0) ? writePages[dst >> 8] : null;
+            //tile data is copied here and the tile cache told
+            boolean tiles = (to == null && dst >= 0x8000 && dst < 0x9800);
+            if (tiles) {
+                to = ram;
+            }
+            if (from == null || to == null) {
+                writeByte(dst++, readByte(src++));
+                length--;
+                continue;
+            }
+            int fromIndex = src + readBases[src >> 8];
+            int toIndex = tiles ? videoRamIndex(dst) : dst + writeBases[dst >> 8];
+            int chunk = Math.min(length, Math.min(0x100 - (src & 0xff), 0x100 - (dst & 0xff)));
+            if (from == to && toIndex > fromIndex) {
+                //overlapping forward copy repeats the bytes in between
+                chunk = Math.min(chunk, toIndex - fromIndex);
+            }
+            System.arraycopy(from, fromIndex, to, toIndex, chunk);
+            if (tiles) {
+                tileCache.written(toIndex, chunk);
+            }
+            src += chunk;
+            dst += chunk;
+            length -= chunk;
         }
     }
 
@@ -492,17 +1075,16 @@ public class GBMem {
      * @param initial
      */
     private void gbcDMATransfer(int initial) {
-        System.err.println("DMA TRANSFER");
         boolean generalPurpose = !isSet(initial, 7);
         dmaTransferLength = initial & 0x7f;
-        int src = IOPorts[0x51] << 8 | (IOPorts[0x52] & 0xf0);
-        int dst = (IOPorts[0x53] & 0x1f) << 8 | (IOPorts[0x54] & 0xf0);
+        int src = Byte.toUnsignedInt(ram[IO + 0x51]) << 8 | (ram[IO + 0x52] & 0xf0);
+        int dst = (ram[IO + 0x53] & 0x1f) << 8 | (ram[IO + 0x54] & 0xf0);
         dst |= 0x8000;
 
         //first check to see if stopping DMA transfer in progress
         if (hBlankDMAInProgress) {
             if (!isSet(initial, 7)) {
-                IOPorts[0x55] = 0xff;
+                ram[IO + 0x55] = (byte)0xff;
                 hBlankDMAInProgress = false;
             }
         }
@@ -510,15 +1092,13 @@ public class GBMem {
         if (generalPurpose) {
             //transfer data
             dmaTransferLength = 0x10 + (dmaTransferLength * 0x10);
-            for (int i = 0; i < dmaTransferLength; ++i) {
-                writeByte(dst + i, readByte(src + i));
-            }
-            IOPorts[0x55] = 0xff;
+            copyMemory(src, dst, dmaTransferLength);
+            ram[IO + 0x55] = (byte)0xff;
         } else {
             hBlankDMAInProgress = true;
             dmaSrc = src;
             dmaDst = dst;
-            IOPorts[0x55] = dmaTransferLength;
+            ram[IO + 0x55] = (byte)dmaTransferLength;
         }
     }
     
@@ -527,23 +1107,21 @@ public class GBMem {
      * @param num new scanline value
      */ 
     public void setScanLine(int num) {
-        IOPorts[0x44] = num;
+        ram[IO + 0x44] = (byte)num;
         checkDMA();
     }
 
     private void checkDMA() {
-        if (hBlankDMAInProgress && IOPorts[0x44] < 144) {
-            for (int i = 0; i < 0x10; ++i) {
-                writeByte(dmaDst + i, readByte(dmaSrc + i));
-            }
+        if (hBlankDMAInProgress && Byte.toUnsignedInt(ram[IO + 0x44]) < 144) {
+            copyMemory(dmaSrc, dmaDst, 0x10);
             dmaDst += 0x10;
             dmaSrc += 0x10;
             dmaTransferLength -= 0x1;
-            IOPorts[0x55] = dmaTransferLength;
+            ram[IO + 0x55] = (byte)dmaTransferLength;
             //Done with the transfer
             if (dmaTransferLength <= 0) {
                 hBlankDMAInProgress = false;
-                IOPorts[0x55] = 0xff;
+                ram[IO + 0x55] = (byte)0xff;
             }
         }
     }
@@ -554,7 +1132,7 @@ public class GBMem {
      * Should be in H-Blank when called
      */ 
     public void incScanLine() {
-        IOPorts[0x44]++;
+        ram[IO + 0x44]++;
         checkDMA();
     }
 
@@ -562,7 +1140,7 @@ public class GBMem {
      * increments the divide counter at 0xff04
      */
     public void incrementDivider() {
-        IOPorts[0x04] = (IOPorts[0x04] + 1) & 0xff;
+        ram[IO + 0x04]++;
     }
 
     /**
@@ -571,8 +1149,8 @@ public class GBMem {
      */
     public void setLCDCoincidence(int bit) {
         bit &= 1;
-        IOPorts[0x41] &= ~4 & 0xff;
-        IOPorts[0x41] |= bit << 2;
+        ram[IO + 0x41] &= ~4;
+        ram[IO + 0x41] |= bit << 2;
 
     }
 
@@ -582,50 +1160,36 @@ public class GBMem {
             System.err.println(pal);
             System.err.println("invalid bg num");
         }
-        int color = 0;
         int index = (pal * 8) + (num * 2);
-        int palette = bgPalettes[index] | bgPalettes[index + 1] << 8;
-        int r = palette & 0x1f;
-        int g = (palette & 0x3e0) >> 5;
-        int b = (palette & 0x7c00) >> 10;
-        color = ((r * 13 + g * 2 + b) >> 1);
-        color |= ((g * 3 + b) << 1) << 8;
-        color |= ((r * 3 + g * 2 + b * 11) >> 1) << 16;
-
-        return color;
+        int palette = Byte.toUnsignedInt(ram[BG_PALETTES + index]) | ram[BG_PALETTES + index + 1] << 8;
+        return GBC_COLORS[palette & 0x7fff];
     }
 
     public int getGBCSpritePaletteColor(int pal, int num) {
         if (pal < 0 || pal > 7) {
             System.err.println("invalid palette num");
         }
-        int color = 0;
-        int palette = spritePalettes[(pal * 8) + (num * 2)] | spritePalettes[(pal * 8) + (num * 2) + 1] << 8;
-        int r = palette & 0x1f;
-        int g = (palette & 0x3e0) >> 5;
-        int b = (palette & 0x7c00) >> 10;
-        color = ((r * 13 + g * 2 + b) >> 1);
-        color |= ((g * 3 + b) << 1) << 8;
-        color |= ((r * 3 + g * 2 + b * 11) >> 1) << 16;
-
-        return color;
+        int palette = Byte.toUnsignedInt(ram[SPRITE_PALETTES + (pal * 8) + (num * 2)])
+                | ram[SPRITE_PALETTES + (pal * 8) + (num * 2) + 1] << 8;
+        return GBC_COLORS[palette & 0x7fff];
     }
 
 
     /**
+     * TIMA (0xff05) as stored, the cpu brings it
+     * up to date when the register is read
      *
-     * increment the TIMA counter
+     * @return value of the timer counter
      */
-    public void incrementTIMA() {
-        IOPorts[0x05] = (IOPorts[0x05] + 1) & 0xff;
+    public int getTIMA() {
+        return Byte.toUnsignedInt(ram[IO + 0x05]);
     }
 
     /**
-     *
-     * reset the TIMA clock to TMA
+     * @param value to store in TIMA (0xff05)
      */
-    public void resetTIMA() {
-        IOPorts[0x05] = IOPorts[0x06];
+    public void setTIMA(int value) {
+        ram[IO + 0x05] = (byte)value;
     }
 
 
@@ -662,7 +1226,7 @@ public class GBMem {
      * KEY 0 - RIGHT
      */
     private int translateJoyPad() {
-        int requests = IOPorts[0];
+        int requests = ram[IO + 0];
         int joypad = 0xff;
 
         if (!isSet(requests, 4)) {
@@ -25,22 +25,30 @@ package main.java.gameboi.memory;
 
 import main.java.gameboi.memory.cartridge.MBC0;
 import main.java.gameboi.memory.cartridge.MBC1;
+import main.java.gameboi.memory.cartridge.MBC2;
 import main.java.gameboi.memory.cartridge.MBC3;
+import main.java.gameboi.memory.cartridge.MBC5;
 import main.java.gameboi.memory.cartridge.MemoryBank;
+import main.java.gameboi.memory.cartridge.UnsupportedCartridgeException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
 
 /**
  * External ROM/RAM banks for gameboy memory
  * 
  * Simulates the external ROM bank attached in the original gameboy cartridges
  * 
- * TODO: ADD MBC2/MBC4/MBC5
+ * Supports no MBC, MBC1, MBC2, MBC3 and MBC5 cartridges
  * 
  * @author tomis007
  */
 public class MemBanks {
     private MemoryBank memBank;
-    //largest of supported membanks, and additional info
-    private static final int BYTE_SAVE_SIZE = 0x8010;
+    //largest of supported membanks (MBC5 with 128KB ram), and additional info
+    private static final int BYTE_SAVE_SIZE = 0x20010;
     
     /**
      * Constructor for RomMemBank
@@ -50,11 +58,13 @@ public class MemBanks {
      * 
      * @param romCartridge (required) the rom cartridge to create the rom 
      *     bank from
-     * 
+     * @throws UnsupportedCartridgeException if the cartridge type
+     *     isn't supported
      */ 
-    public MemBanks(int[] romCartridge) {
-        System.out.println(Integer.toHexString(romCartridge[0x147]));
-        switch(romCartridge[0x147]) {
+    public MemBanks(byte[] romCartridge) {
+        int type = Byte.toUnsignedInt(romCartridge[0x147]);
+        System.out.println(Integer.toHexString(type));
+        switch(type) {
             case 0x0:
                 memBank = new MBC0(romCartridge);
                 break;
@@ -67,6 +77,10 @@ public class MemBanks {
             case 0x3:
                 memBank = new MBC1(romCartridge);
                 break;
+            case 0x5:
+            case 0x6:
+                memBank = new MBC2(romCartridge);
+                break;
             case 0xf:
                 memBank = new MBC3(romCartridge);
                 break;
@@ -82,12 +96,16 @@ public class MemBanks {
             case 0x13:
                 memBank = new MBC3(romCartridge);
                 break;
+            case 0x19:
+            case 0x1a:
             case 0x1b:
-                memBank = new MBC3(romCartridge);
+            case 0x1c:
+            case 0x1d:
+            case 0x1e:
+                memBank = new MBC5(romCartridge);
                 break;
             default:
-                System.err.println("Sorry, this MBC is not implemented yet: " + romCartridge[0x147]);
-                System.exit(1); //TODO don't just quit?
+                throw new UnsupportedCartridgeException(type);
         }
     }
     
@@ -116,6 +134,80 @@ public class MemBanks {
         memBank.writeByte(address, data);
     }
 
+    /**
+     * ROM bank currently mapped at 0x4000-0x7fff
+     *
+     * @return rom bank number
+     */
+    public int getRomBank() {
+        return memBank.getRomBank();
+    }
+
+    /**
+     * @return whole rom of the cartridge
+     */
+    public byte[] getRom() {
+        return memBank.getRom();
+    }
+
+    /**
+     * @return external ram if it can be accessed directly, else null
+     */
+    public byte[] getRam() {
+        return memBank.getRam();
+    }
+
+    /**
+     * @return index in getRam() of the byte at 0xa000
+     */
+    public int getRamOffset() {
+        return memBank.getRamOffset();
+    }
+
+    /**
+     * Keeps battery ram in a save file, see MemoryBank.attachBattery
+     *
+     * @param file .sav file
+     * @throws IOException if the file can't be opened
+     */
+    public void attachBattery(Path file) throws IOException {
+        memBank.attachBattery(file);
+    }
+
+    public void flushBattery() {
+        memBank.flushBattery();
+    }
+
+    public void closeBattery() {
+        memBank.closeBattery();
+    }
+
+    /**
+     * @param cycles emulated clock cycles, for cartridge clocks
+     */
+    public void setClock(LongSupplier cycles) {
+        memBank.setClock(cycles);
+    }
+
+    public void resumeClock() {
+        memBank.resumeClock();
+    }
+
+    /**
+     * @return bytes saveSnapshot() writes for this cartridge
+     */
+    public int snapshotSize() {
+        return memBank.snapshotSize();
+    }
+
+    public void saveSnapshot(ByteBuffer snapshot) {
+        memBank.saveSnapshot(snapshot);
+    }
+
+    public void loadSnapshot(ByteBuffer snapshot) {
+        memBank.loadSnapshot(snapshot);
+    }
+
     public byte[] saveState() {
         byte[] buf = new byte[BYTE_SAVE_SIZE];
         byte[] save = memBank.saveState();
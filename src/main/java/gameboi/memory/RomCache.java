@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of rom images
+ *
+ * <p>
+ * Every GBMem running the same rom shares one byte[] of it, so
+ * copies of a rom under different names share it too. Loading a
+ * file again with the same size and modification time doesn't
+ * touch its contents. A file that isn't known yet is compared,
+ * through a read only mapping, with the images of the same length
+ * in use; only if none match is it read, straight from the channel
+ * into the array that is handed out. Images are held weakly and
+ * dropped once no emulator uses them.
+ *
+ * <p>
+ * The shared arrays must be treated as read only, the memory bank
+ * controllers never write to rom.
+ *
+ * @author tomis007
+ */
+final class RomCache {
+    //rom images in use
+    private static final List<WeakReference<byte[]>> images = new ArrayList<>();
+    //rom image by file path, size and modification time
+    private static final Map<String, WeakReference<byte[]>> files = new HashMap<>();
+
+    private RomCache() {
+    }
+
+    /**
+     * The rom image in path, shared with everyone
+     * else who loaded the same contents
+     *
+     * @param path of the rom file
+     * @return shared rom image, must not be written to
+     * @throws IOException if the file can't be read
+     */
+    static synchronized byte[] load(Path path) throws IOException {
+        Path file = path.toRealPath();
+        String fileKey = file + ":" + Files.size(file) + ":"
+                + Files.getLastModifiedTime(file).toMillis();
+        byte[] rom = cached(files.get(fileKey));
+        if (rom != null) {
+            return rom;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("rom too large: " + file);
+            }
+            rom = sameContents(channel, (int)size);
+            if (rom == null) {
+                rom = new byte[(int)size];
+                ByteBuffer contents = ByteBuffer.wrap(rom);
+                while (contents.hasRemaining()) {
+                    if (channel.read(contents) < 0) {
+                        throw new EOFException("rom shorter than expected: " + file);
+                    }
+                }
+                images.add(new WeakReference<>(rom));
+            }
+        }
+        files.put(fileKey, new WeakReference<>(rom));
+        expunge();
+        return rom;
+    }
+
+    /**
+     * @param channel of a rom file
+     * @param size of the file
+     * @return an image in use with the file's contents, else null
+     * @throws IOException if the file can't be mapped
+     */
+    private static byte[] sameContents(FileChannel channel, int size) throws IOException {
+        ByteBuffer mapped = null;
+        for (WeakReference<byte[]> image : images) {
+            byte[] rom = image.get();
+            if (rom == null || rom.length != size) {
+                continue;
+            }
+            if (mapped == null) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            if (mapped.equals(ByteBuffer.wrap(rom))) {
+                return rom;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param image reference to an image, may be null
+     * @return the image if still in use, else null
+     */
+    private static byte[] cached(WeakReference<byte[]> image) {
+        return (image == null) ? null : image.get();
+    }
+
+    /**
+     * drops images nobody uses anymore and
+     * the files that had them
+     */
+    private static void expunge() {
+        images.removeIf(image -> image.get() == null);
+        files.values().removeIf(image -> image.get() == null);
+    }
+}
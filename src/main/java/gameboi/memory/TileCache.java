@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory;
+
+/**
+ * Decoded tile data of both vram banks
+ *
+ * <p>
+ * Each of the 384 tiles per bank (0x8000-0x97ff) is kept as 64
+ * color numbers (0-3), a line of 8 pixels after another, and once
+ * more with every line mirrored for horizontally flipped tiles. GBMem
+ * marks a tile when one of its bytes is written and it is decoded
+ * again the next time it is drawn, so the renderer reads ready made
+ * lines instead of taking the bit planes apart for every pixel.
+ *
+ * @author tomis007
+ */
+public final class TileCache {
+    //tiles per vram bank
+    public static final int TILES = 384;
+    private static final int TILE_PIXELS = 64;
+    //index in pixels of the mirrored tiles
+    private static final int FLIPPED = 2 * TILES * TILE_PIXELS;
+
+    //vram in GBMem's ram, and where each bank starts in it
+    private final byte[] ram;
+    private final int bank0;
+    private final int bank1;
+    //color numbers of every tile of bank 0 then bank 1, then mirrored
+    private final byte[] pixels;
+    //tiles to decode before they are drawn, bank 0 then bank 1
+    private final boolean[] dirty;
+
+    /**
+     * @param ram holding vram
+     * @param bank0 index in ram of vram bank 0 (0x8000)
+     * @param bank1 index in ram of vram bank 1
+     */
+    TileCache(byte[] ram, int bank0, int bank1) {
+        this.ram = ram;
+        this.bank0 = bank0;
+        this.bank1 = bank1;
+        pixels = new byte[2 * FLIPPED];
+        dirty = new boolean[2 * TILES];
+        invalidate();
+    }
+
+    /**
+     * Marks the tile holding a vram byte, writes
+     * to the tile maps are ignored
+     *
+     * @param index in ram of the byte written
+     */
+    void written(int index) {
+        int offset = index - bank0;
+        int bank = 0;
+        if (offset < 0 || offset >= 0x2000) {
+            offset = index - bank1;
+            bank = TILES;
+        }
+        if (offset >= 0 && offset < TILES * 16) {
+            dirty[bank + (offset >> 4)] = true;
+        }
+    }
+
+    /**
+     * Marks the tiles holding length vram bytes
+     * from index in ram (all in one bank)
+     *
+     * @param index in ram of the first byte written
+     * @param length bytes written
+     */
+    void written(int index, int length) {
+        for (int i = index & ~0xf; i < index + length; i += 16) {
+            written(i);
+        }
+    }
+
+    /**
+     * marks every tile, after vram was replaced
+     */
+    void invalidate() {
+        for (int i = 0; i < dirty.length; ++i) {
+            dirty[i] = true;
+        }
+    }
+
+    /**
+     * Color numbers of a tile line, decoding the tile
+     * first if it changed since it was last drawn
+     *
+     * @param bank vram bank (0 or 1)
+     * @param address of the line's first byte (0x8000-0x97ff)
+     * @param flipped true for the line mirrored horizontally
+     * @return index in getPixels() of the line's 8 color numbers,
+     *     leftmost pixel first
+     */
+    public int line(int bank, int address, boolean flipped) {
+        int tile = bank * TILES + ((address - 0x8000) >> 4);
+        if (dirty[tile]) {
+            decode(tile);
+        }
+        int index = tile * TILE_PIXELS + (address & 0xe) * 4;
+        return flipped ? FLIPPED + index : index;
+    }
+
+    /**
+     * @return color numbers (0-3) of every tile, read at line()
+     */
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    private void decode(int tile) {
+        int bank = (tile < TILES) ? bank0 : bank1;
+        int data = bank + (tile % TILES) * 16;
+        int index = tile * TILE_PIXELS;
+        for (int line = 0; line < 8; ++line) {
+            int low = ram[data + 2 * line];
+            int high = ram[data + 2 * line + 1];
+            for (int pixel = 0; pixel < 8; ++pixel) {
+                int bit = 7 - pixel;
+                byte colorNum = (byte)((((high >> bit) & 1) << 1) | ((low >> bit) & 1));
+                pixels[index + pixel] = colorNum;
+                pixels[FLIPPED + index + bit] = colorNum;
+            }
+            index += 8;
+        }
+        dirty[tile] = false;
+    }
+}
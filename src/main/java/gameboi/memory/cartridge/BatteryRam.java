@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory.cartridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Battery backed cartridge ram kept in a memory mapped .sav file
+ *
+ * The emulator keeps using its own ram array. flush() copies it
+ * (on the emulation thread, no disk access) and queues a write;
+ * one background thread shared by every cartridge takes the copy,
+ * compares it with what the file holds, page by page, puts the
+ * changed pages into the mapping and forces them to disk. Only the
+ * copies are done under the lock, so flush() never waits on disk
+ *
+ * The file is locked while it is open, a save already held by
+ * another emulator (in this or another process) is refused
+ *
+ * @author tomis007
+ */
+final class BatteryRam {
+    private static final int PAGE_SIZE = 0x100;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "battery-ram-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path path;
+    //live ram, only touched by the emulation thread
+    private final byte[] ram;
+    //copy of ram waiting to be written, guarded by this
+    private final byte[] pending;
+    private boolean queued;
+    //copy being written and contents of the file, only touched by the writer
+    private final byte[] writing;
+    private final byte[] written;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer file;
+
+    /**
+     * Maps the save file, creating it if needed, and
+     * loads its contents into ram if it has any
+     *
+     * @param path of the .sav file
+     * @param ram cartridge ram to back
+     * @throws IOException if the file can't be opened, locked or mapped
+     */
+    BatteryRam(Path path, byte[] ram) throws IOException {
+        this.path = path;
+        this.ram = ram;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = lock(channel);
+        if (lock == null) {
+            channel.close();
+            throw new IOException("save is in use by another emulator: " + path);
+        }
+        boolean saved = channel.size() >= ram.length;
+        file = channel.map(FileChannel.MapMode.READ_WRITE, 0, ram.length);
+        if (saved) {
+            file.duplicate().get(ram);
+        } else {
+            //new or short file, start from the current ram
+            file.duplicate().put(ram);
+        }
+        written = ram.clone();
+        writing = new byte[ram.length];
+        pending = new byte[ram.length];
+    }
+
+    /**
+     * @return lock on the whole file, null if someone else holds it
+     */
+    private static FileLock lock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            //held by another channel in this vm
+            return null;
+        }
+    }
+
+    /**
+     * Queues a write of ram to the file, returns without waiting
+     * for it. A write that is still queued picks up this copy
+     */
+    void flush() {
+        synchronized (this) {
+            System.arraycopy(ram, 0, pending, 0, ram.length);
+            if (queued) {
+                return;
+            }
+            queued = true;
+        }
+        WRITER.execute(this::write);
+    }
+
+    /**
+     * Flushes, waits for the writer to finish and closes the file
+     */
+    void close() {
+        flush();
+        try {
+            WRITER.submit(() -> { }).get();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | IOException e) {
+            System.err.println("Closing battery save failed: " + path + " " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Writer thread: takes the queued copy, puts the pages that
+     * changed since the last write into the mapping, then forces
+     * them to disk
+     */
+    private void write() {
+        synchronized (this) {
+            queued = false;
+            System.arraycopy(pending, 0, writing, 0, pending.length);
+        }
+        boolean changed = false;
+        for (int start = 0; start < writing.length; start += PAGE_SIZE) {
+            int end = Math.min(start + PAGE_SIZE, writing.length);
+            if (!samePage(start, end)) {
+                System.arraycopy(writing, start, written, start, end - start);
+                ByteBuffer page = file.duplicate();
+                page.position(start);
+                page.put(writing, start, end - start);
+                changed = true;
+            }
+        }
+        if (changed) {
+            try {
+                file.force();
+            } catch (RuntimeException e) {
+                System.err.println("Writing battery save failed: " + path + " " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private boolean samePage(int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (writing[i] != written[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
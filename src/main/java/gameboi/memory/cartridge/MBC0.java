@@ -23,6 +23,9 @@
  */
 package main.java.gameboi.memory.cartridge;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  *
  * implementation of NO
@@ -31,76 +34,69 @@ package main.java.gameboi.memory.cartridge;
  *
  * @author tomis007
  */
-public class MBC0 implements MemoryBank {
+public class MBC0 extends Mapper {
+
     /**
+     * intialize the MBCO from romCartridge
      *
-     * 0x0 - 0x7fff
+     * uses the rom as is (padded to 0x8000 if shorter),
+     * with 0x2000 bytes of ram at 0xa000 - 0xbfff
+     * @param romCartridge byte array of the rom
      */
-    private int[] rom;
+    public MBC0(byte[] romCartridge) {
+        super((romCartridge.length >= 0x8000) ? romCartridge : Arrays.copyOf(romCartridge, 0x8000),
+                new byte[0x2000]);
+        mapBanks();
+    }
 
     /**
+     * no registers, writes to rom are ignored
      *
-     * 0xa000 - 0xbfff
+     * @param address to write to
+     * @param data to write
      */
-    private int[] extRam;
+    protected void writeRegister(int address, int data) {
+    }
 
     /**
-     * intialize the MBCO from romCartridge
+     * ram is always enabled
      *
-     * copies the values to ROM and extRAM
-     * @param romCartridge int array of the rom
+     * @return true
      */
-    public MBC0(int[] romCartridge) {
-        rom = new int[0x8000];
-        extRam = new int[0x2000];
-
-        for (int i = 0; i < romCartridge.length && i < 0x8000; ++i) {
-            rom[i] = romCartridge[i];
-        }
-
-        /* TODO: This shouldn't be here?
-        for (int i = 0xa000; i < romCartridge.length && i < 0xc000; ++i) {
-            extRam[i - 0xa000] = romCartridge[i];
-        }
-        */
+    protected boolean isRamEnabled() {
+        return true;
+    }
 
+    /**
+     * no banking, 0x4000-0x7fff is always bank 1
+     */
+    protected void mapBanks() {
+        mapRom(1);
+        mapRam(true, 0);
     }
 
     /**
-     * read a byte from MBC0
-     *
      * only valid ranges are ROM 0x0 - 0x7fff
-     * and extRam 0xa000 - 0xbfff
-     *
+     * and ram 0xa000 - 0xbfff
      *
      * @param address to read from
-     * @return data read
+     * @return 0
      */
-    public int readByte(int address) {
-        if (address < 0x8000 && address >= 0) {
-            return rom[address];
-        } else if (address < 0xc000 && address >= 0xa000) {
-            return extRam[address];
-        } else {
-            System.err.println("invalid read from MBC0");
-            return 0;
-        }
+    protected int readUnmapped(int address) {
+        System.err.println("invalid read from MBC0");
+        return 0;
     }
 
-    /**
-     * write a Byte to MBC0
-     *
-     * only writes a byte to extRam
-     * (0xa000 - 0xbfff)
-     *
-     * @param address to write to
-     * @param data to write
-     */
-    public void writeByte(int address, int data) {
-        data &= 0xff;
-        if (address >= 0xa000 && address < 0xc000) {
-            extRam[address - 0xa000] = data & 0xff;
-        }
+    public int snapshotSize() {
+        return ram.length;
+    }
+
+    public void saveSnapshot(ByteBuffer snapshot) {
+        snapshot.put(ram);
+    }
+
+    public void loadSnapshot(ByteBuffer snapshot) {
+        snapshot.get(ram);
     }
 
     //TODO
@@ -23,7 +23,8 @@
  */
 package main.java.gameboi.memory.cartridge;
 
-import main.java.gameboi.memory.MemCopyUtil;
+import java.nio.ByteBuffer;
+
 
 /**
  *
@@ -31,19 +32,15 @@ import main.java.gameboi.memory.MemCopyUtil;
  *
  * tomis007
  */
-public class MBC1 implements MemoryBank {
+public class MBC1 extends Mapper {
 
-    private int[] romBanks;
     private int currentROmBank;
     private int currentRAmBank;
-    private int[] ramBanks;
     private boolean ramEnabled;
     private mode currentMode;
     private static final int STATE_LEN = 4;
 
 
-    private static final int ROM_BANK_SIZE = 0x4000;
-    private static final int RAM_BANK_SIZE = 0x2000;
     private static final mode ROM = mode.ROM;
     private static final mode RAM = mode.RAM;
 
@@ -56,94 +53,12 @@ public class MBC1 implements MemoryBank {
      * MBC1 Memory controller
      * @param cartridge ROM to initialize from
      */
-    public MBC1(int[] cartridge) {
-        romBanks = new int[cartridge.length];
-        System.arraycopy(cartridge, 0, romBanks, 0, cartridge.length);
-        ramBanks = initRamBank(cartridge[0x149]);
+    public MBC1(byte[] cartridge) {
+        super(cartridge, allocateRam(Byte.toUnsignedInt(cartridge[0x149])));
         currentROmBank = 1;
         currentRAmBank = 0;
         currentMode = ROM;
-    }
-
-
-    /**
-     * create a RamBank of the correct size based on
-     * rom's value at 0x149
-     *
-     * @param bankInfo cartridge byte at 0x149
-     * @return int[] of appropriate rambank size
-     */
-    private int[] initRamBank(int bankInfo) {
-        int[] bank;
-        switch(bankInfo) {
-            case 0:
-                bank = null;
-                break;
-            case 1:
-                bank = new int[0x800];
-                break;
-            case 2:
-                bank = new int[0x2000];
-                break;
-            case 3:
-                bank = new int[0x8000];
-                break;
-            default:
-                System.err.println("invalid ram bank size");
-                System.err.println("MBC1 INIT: will probably crash soon");
-                bank = new int[0x800];
-        }
-        return bank;
-    }
-
-
-    /**
-     * Read a byte from MBC1
-     *
-     * @param address to read from
-     * @return byte at address
-     */
-    public int readByte(int address) {
-        //bank 0 always here
-        if (address < 0x4000) {
-            return romBanks[address];
-        } else if (address < 0x8000){
-            address -= 0x4000;
-            if (currentMode == ROM) {
-                return romBanks[address + (currentROmBank * ROM_BANK_SIZE)];
-            } else {
-                return romBanks[address + ((currentROmBank & 0x1f) * ROM_BANK_SIZE)];
-            }
-        } else if ((address >= 0xa000 && address < 0xc000) && ramEnabled) {
-            if (currentMode == ROM) {
-                return ramBanks[address - 0xa000];
-            } else {
-                return ramBanks[(address - 0xa000) + (currentRAmBank * RAM_BANK_SIZE)];
-            }
-        } else {
-            System.err.println("invalid read from MBC1: 0x" + Integer.toHexString(address));
-            return -1;
-        }
-    }
-
-    /**
-     * controls the MBC1 registers
-     * or writes to RAM BANK
-     *
-     * @param address to write to
-     * @param data to write
-     */
-    public void writeByte(int address, int data) {
-        data &= 0xff;
-        if (address < 0x8000) {
-            updateMBCRegisters(address, data);
-        } else if (ramEnabled) {
-            if (currentMode == ROM) {
-                ramBanks[address - 0xa000] = data & 0xff;
-            } else {
-                ramBanks[(address - 0xa000) + (currentRAmBank * RAM_BANK_SIZE)] = data & 0xff;
-            }
-        }
+        mapBanks();
     }
 
 
@@ -155,9 +70,7 @@ public class MBC1 implements MemoryBank {
      * @param address to write to
      * @param data to write
      */
-    private void updateMBCRegisters(int address, int data) {
-        data &= 0xff;
-
+    protected void writeRegister(int address, int data) {
         if (address < 0x2000) {
             ramEnabled = ((data & 0xf) == 0xa);
         } else if (address < 0x4000) {
@@ -168,11 +81,56 @@ public class MBC1 implements MemoryBank {
             data &= 0x3;
             currentROmBank &= ((data << 5) | 0x1f);
             currentRAmBank = data;
-        } else if (address < 0x8000){
+        } else {
             currentMode = ((data & 0x1) == 1) ? RAM : ROM;
+        }
+    }
+
+    protected boolean isRamEnabled() {
+        return ramEnabled;
+    }
+
+    /**
+     * rom mode: all 7 bits of the rom bank, ram bank 0
+     * ram mode: low 5 bits of the rom bank, selected ram bank
+     */
+    protected void mapBanks() {
+        if (currentMode == ROM) {
+            mapRom(currentROmBank);
+            mapRam(ramEnabled, 0);
         } else {
-            System.err.println("invalid write to MBC Registers");
+            mapRom(currentROmBank & 0x1f);
+            mapRam(ramEnabled, currentRAmBank);
+        }
+    }
+
+    private int ramLength() {
+        return (ram == null) ? 0 : ram.length;
+    }
+
+    public int snapshotSize() {
+        return ramLength() + STATE_LEN;
+    }
+
+    public void saveSnapshot(ByteBuffer snapshot) {
+        if (ram != null) {
+            snapshot.put(ram);
         }
+        snapshot.put((byte)currentRAmBank);
+        snapshot.put((byte)currentROmBank);
+        snapshot.put((byte)(ramEnabled ? 1 : 0));
+        snapshot.put((byte)(currentMode == ROM ? 1 : 0));
+    }
+
+    public void loadSnapshot(ByteBuffer snapshot) {
+        if (ram != null) {
+            snapshot.get(ram);
+        }
+        currentRAmBank = Byte.toUnsignedInt(snapshot.get());
+        currentROmBank = Byte.toUnsignedInt(snapshot.get());
+        ramEnabled = snapshot.get() == 1;
+        currentMode = (snapshot.get() == 1) ? ROM : RAM;
+        mapBanks();
     }
 
     /**
@@ -181,12 +139,15 @@ public class MBC1 implements MemoryBank {
      * @param buf to load from
      */
     public void loadState(byte[] buf) {
-        ramBanks = initRamBank(romBanks[0x149]);
-        MemCopyUtil.copyArray(buf, 0, ramBanks, 0, ramBanks.length);
-        currentRAmBank = Byte.toUnsignedInt(buf[ramBanks.length]);
-        currentROmBank = Byte.toUnsignedInt(buf[ramBanks.length + 1]);
-        ramEnabled = Byte.toUnsignedInt(buf[ramBanks.length + 2]) == 1;
-        currentMode = Byte.toUnsignedInt(buf[ramBanks.length + 3]) == 1 ? ROM : RAM;
+        int length = ramLength();
+        if (ram != null) {
+            System.arraycopy(buf, 0, ram, 0, length);
+        }
+        currentRAmBank = Byte.toUnsignedInt(buf[length]);
+        currentROmBank = Byte.toUnsignedInt(buf[length + 1]);
+        ramEnabled = Byte.toUnsignedInt(buf[length + 2]) == 1;
+        currentMode = Byte.toUnsignedInt(buf[length + 3]) == 1 ? ROM : RAM;
+        mapBanks();
     }
 
     /**
@@ -195,12 +156,15 @@ public class MBC1 implements MemoryBank {
      * @return state saved in byte[] array
      */
     public byte[] saveState() {
-        byte[] state = new byte[ramBanks.length + STATE_LEN];
-        MemCopyUtil.copyArray(ramBanks, 0, state, 0, ramBanks.length);
-        state[ramBanks.length] = (byte)(currentRAmBank & 0xff);
-        state[ramBanks.length + 1] = (byte)(currentROmBank & 0xff);
-        state[ramBanks.length + 2] = (byte)(ramEnabled ? 1 : 0);
-        state[ramBanks.length + 3] = (byte)(currentMode == ROM ? 1 : 0);
+        int length = ramLength();
+        byte[] state = new byte[length + STATE_LEN];
+        if (ram != null) {
+            System.arraycopy(ram, 0, state, 0, length);
+        }
+        state[length] = (byte)(currentRAmBank & 0xff);
+        state[length + 1] = (byte)(currentROmBank & 0xff);
+        state[length + 2] = (byte)(ramEnabled ? 1 : 0);
+        state[length + 3] = (byte)(currentMode == ROM ? 1 : 0);
         return state;
     }
 }
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory.cartridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Implementation of MBC2 cartridge chip
+ *
+ * Up to 16 rom banks and 512 half bytes of ram built into the
+ * chip, at 0xa000-0xa1ff and repeated up to 0xbfff. The ram isn't
+ * plain bytes so it always goes through readUnmapped/writeUnmapped
+ *
+ * @author tomis007
+ */
+public class MBC2 extends Mapper {
+
+    private static final int RAM_SIZE = 0x200;
+    private int currentROmBank;
+    private boolean ramEnabled;
+    private static final int STATE_LEN = 2;
+
+    /**
+     * @param cartridge ROM to initialize from
+     */
+    public MBC2(byte[] cartridge) {
+        super(cartridge, new byte[RAM_SIZE]);
+        currentROmBank = 1;
+        ramEnabled = false;
+        mapBanks();
+    }
+
+    /**
+     * 0x0000-0x3fff: ram enable if address bit 8 is clear,
+     * else the rom bank (4 bits, 0 selects 1)
+     *
+     * @param address to write to
+     * @param data to write
+     */
+    protected void writeRegister(int address, int data) {
+        if (address >= 0x4000) {
+            return;
+        }
+        if ((address & 0x100) == 0) {
+            ramEnabled = ((data & 0xf) == 0xa);
+        } else {
+            currentROmBank = data & 0xf;
+            currentROmBank += (currentROmBank == 0) ? 1 : 0;
+        }
+    }
+
+    protected boolean isRamEnabled() {
+        return ramEnabled;
+    }
+
+    protected void mapBanks() {
+        mapRom(currentROmBank);
+        mapRam(false, 0);
+    }
+
+    /**
+     * ram reads give the stored half byte, upper bits set
+     *
+     * @param address to read from
+     * @return byte read
+     */
+    protected int readUnmapped(int address) {
+        if (ramEnabled && address >= 0xa000 && address < 0xc000) {
+            return 0xf0 | (ram[address & (RAM_SIZE - 1)] & 0xf);
+        }
+        return super.readUnmapped(address);
+    }
+
+    protected void writeUnmapped(int address, int data) {
+        if (ramEnabled && address >= 0xa000 && address < 0xc000) {
+            ram[address & (RAM_SIZE - 1)] = (byte)(data & 0xf);
+        }
+    }
+
+    public int snapshotSize() {
+        return RAM_SIZE + STATE_LEN;
+    }
+
+    public void saveSnapshot(ByteBuffer snapshot) {
+        snapshot.put(ram);
+        snapshot.put((byte)currentROmBank);
+        snapshot.put((byte)(ramEnabled ? 1 : 0));
+    }
+
+    public void loadSnapshot(ByteBuffer snapshot) {
+        snapshot.get(ram);
+        currentROmBank = Byte.toUnsignedInt(snapshot.get());
+        ramEnabled = snapshot.get() == 1;
+        mapBanks();
+    }
+
+    public byte[] saveState() {
+        byte[] state = new byte[RAM_SIZE + STATE_LEN];
+        System.arraycopy(ram, 0, state, 0, RAM_SIZE);
+        state[RAM_SIZE] = (byte)currentROmBank;
+        state[RAM_SIZE + 1] = (byte)(ramEnabled ? 1 : 0);
+        return state;
+    }
+
+    public void loadState(byte[] buf) {
+        System.arraycopy(buf, 0, ram, 0, RAM_SIZE);
+        currentROmBank = Byte.toUnsignedInt(buf[RAM_SIZE]);
+        ramEnabled = buf[RAM_SIZE + 1] == 1;
+        mapBanks();
+    }
+}
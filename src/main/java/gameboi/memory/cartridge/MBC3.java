@@ -23,119 +23,91 @@
  */
 package main.java.gameboi.memory.cartridge;
 
-import java.time.LocalDateTime;
-import main.java.gameboi.memory.MemCopyUtil;
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
 
 /**
  *
  * Implementation of MBC3 hardware in cartridge
  *
- * TODO: real time clock support, should probably be
- * functional without it
+ * The real time clock runs on emulated clock cycles (see setClock),
+ * so it keeps pace with the game when fast forwarding or replaying
+ * and never asks the system for the time while running. Its
+ * registers are brought up to date when they are latched or written.
+ * Wall clock time is only looked at when a saved state is resumed
+ * (resumeClock)
  * tomis007
  */
-public class MBC3 implements MemoryBank {
+public class MBC3 extends Mapper {
 
-    private int[] romBanks;
     private int currentROmBank;
     private int currentRAmBank;
-    private int[] ramBanks;
     private boolean ramEnabled;
 
     //rtc clock
     private boolean rtcEnabled;
     private boolean latchOnOne;
+    //rtc register mapped at 0xa000-0xbfff (0x08-0x0c), 0 for ram
     private int mappedRTCReg;
 
-    private int rtc_S;
-    private int rtc_M;
-    private int rtc_H;
-    private int rtc_DL;
-    private int rtc_DH;
+    //rtc registers indexed by register number - 0x08
+    private static final int RTC_S = 0;
+    private static final int RTC_M = 1;
+    private static final int RTC_H = 2;
+    private static final int RTC_DL = 3;
+    private static final int RTC_DH = 4;
+    private static final int RTC_REGISTERS = 5;
+    //bits that exist in each register
+    private static final int[] RTC_MASKS = {0x3f, 0x3f, 0x1f, 0xff, 0xc1};
+    //DH bits
+    private static final int DAY_HIGH = 0x01;
+    private static final int HALT = 0x40;
+    private static final int DAY_CARRY = 0x80;
+    private static final int CYCLES_PER_SECOND = 4194304;
 
-    private static final int STATE_LEN = 4;
-    private static final int ROM_BANK_SIZE = 0x4000;
-    private static final int RAM_BANK_SIZE = 0x2000;
+    //counting registers, as of clock cycle rtcCycle
+    private final int[] rtc;
+    //copy of rtc taken by the last latch, what the game reads
+    private final int[] latched;
+    //emulated clock cycles
+    private LongSupplier clock;
+    private long rtcCycle;
+    //cycles into the current second
+    private int rtcSubCycles;
+    //wall clock time (ms) a loaded state was saved at, 0 if none
+    private long savedWallTime;
 
+    //bank registers, latch, rtc registers and the wall clock time saved
+    private static final int STATE_LEN = 4 + 2 + 2 * RTC_REGISTERS + 4 + 8;
+    //bank registers, flags, mapped rtc register, rtc registers, rtc clock
+    private static final int SNAPSHOT_STATE_LEN = 3 + 1 + 2 * RTC_REGISTERS + 8 + 4;
 
-    //TODO RTC CLOCK!!!
-    public MBC3(int[] cartridge) {
-        romBanks = new int[cartridge.length];
-        System.arraycopy(cartridge, 0, romBanks, 0, cartridge.length);
-        ramBanks = initRamBank(cartridge[0x149]);
+
+    public MBC3(byte[] cartridge) {
+        super(cartridge, allocateBankRam(Byte.toUnsignedInt(cartridge[0x149])));
+        System.err.println("Initializing MBC3");
         currentROmBank = 1;
         currentRAmBank = 0;
         rtcEnabled = false;
         latchOnOne = false;
-    }
-
-    private int[] initRamBank(int bankInfo) {
-        int[] bank;
-        System.err.println("Initializing MBC3");
-        switch (bankInfo) {
-            case 0:
-                bank = null;
-                break;
-            case 1:
-                bank = new int[0x800];
-                break;
-            case 2:
-                bank = new int[0x2000];
-                break;
-            case 3:
-                bank = new int[0x8000];
-                break;
-            default:
-                System.err.println("invalid ram bank size, MBC3 INIT");
-                System.err.println("will probably crash soon");
-                bank = new int[0x800];
-        }
-        return bank;
+        rtc = new int[RTC_REGISTERS];
+        latched = new int[RTC_REGISTERS];
+        clock = () -> 0;
+        rtcCycle = 0;
+        mapBanks();
     }
 
     /**
-     * Read a Byte from MBC3
-     *
+     * MBC3 (and MBC30) address at most 64KB of ram, a header
+     * asking for 128KB gets 64KB so the state fits a save
      *
-     * @param address to read from
-     * @return byte at the address
+     * @param sizeCode ram size from the cartridge header
+     * @return ram for the cartridge, null if it has none
      */
-    public int readByte(int address) {
-        //bank 0 always here
-        if (address < 0x4000) {
-            return romBanks[address];
-        } else if (address < 0x8000) {
-            address -= 0x4000;
-            return romBanks[address + (currentROmBank * ROM_BANK_SIZE)];
-        } else if (address >= 0xa000 && address < 0xc000) {
-            //if (rtcEnabled && address == 0xa000) {
-                //return mappedRTCReg;
-            //} else if (ramEnabled) {
-                return ramBanks[(address & 0x1fff) + (currentRAmBank * RAM_BANK_SIZE)];
-            //}
-        } else {
-            System.err.println("invalid read from MBC1: 0x" + Integer.toHexString(address));
-        }
-        return -1;
+    private static byte[] allocateBankRam(int sizeCode) {
+        return allocateRam((sizeCode == 4) ? 5 : sizeCode);
     }
 
-    /**
-     * controls the MBC1 registers or writes to RAM
-     *
-     * @param address to write to
-     * @param data to write
-     */
-    public void writeByte(int address, int data) {
-        data &= 0xff;
-
-        if (address < 0x8000) {
-            updateMBCRegisters(address, data);
-        } else { //if (ramEnabled) {
-            ramBanks[(address & 0x1fff) + (currentRAmBank * RAM_BANK_SIZE)] = data & 0xff;
-        }
-    }
-
-
     /**
      * Updates the MBC Control Registers as
      * activated when attempting to write to
@@ -144,9 +116,7 @@ public class MBC3 implements MemoryBank {
      * @param address to write to
      * @param data to write
      */
-    private void updateMBCRegisters(int address, int data) {
-        data &= 0xff;
-
+    protected void writeRegister(int address, int data) {
         if (address < 0x2000) {
             ramEnabled = rtcEnabled = ((data & 0xf) == 0xa);
         } else if (address < 0x4000) {
@@ -155,73 +125,228 @@ public class MBC3 implements MemoryBank {
         } else if (address < 0x6000) {
             if (data >= 0 && data <= 3) {
                 currentRAmBank = data;
-            } else if (address >= 0x8 && address <= 0xc) {
-//                writeRTCData(data);
+                mappedRTCReg = 0;
+            } else if (data >= 0x8 && data <= 0xc) {
+                mappedRTCReg = data;
             }
-        } else if (address < 0x8000){
-//            latchClock(data);
         } else {
-            System.err.println("invalid write to MBC Registers");
+            latchClock(data);
         }
     }
 
-    private void writeRTCData(int data){
-        LocalDateTime date = LocalDateTime.now();
-
-        switch(data) {
-            case 0x8:
-                mappedRTCReg = date.getSecond();
-                break;
-            case 0x9:
-                mappedRTCReg = date.getMinute();
-                break;
-            case 0xa:
-                mappedRTCReg = rtc_H;
-                break;
-            case 0xb:
-                mappedRTCReg = rtc_DL;
-                break;
-            case 0xc:
-                mappedRTCReg = rtc_DH;
-                break;
-            default:
-                break;
-        }
+    protected boolean isRamEnabled() {
+        return ramEnabled;
     }
 
+    /**
+     * ram is accessible whether enabled or not, a mapped
+     * rtc register goes through readUnmapped/writeUnmapped
+     */
+    protected void mapBanks() {
+        mapRom(currentROmBank);
+        mapRam(mappedRTCReg == 0, currentRAmBank);
+    }
 
-    public void loadState(byte[] buf) {
-        ramBanks = initRamBank(romBanks[0x149]);
-        MemCopyUtil.copyArray(buf, 0, ramBanks, 0, ramBanks.length);
-        currentRAmBank = Byte.toUnsignedInt(buf[ramBanks.length]);
-        currentROmBank = Byte.toUnsignedInt(buf[ramBanks.length + 1]);
-        ramEnabled = Byte.toUnsignedInt(buf[ramBanks.length + 2]) == 1;
-        System.err.println("loaded state");
+    /**
+     * @param address to read from
+     * @return latched rtc register if one is mapped at 0xa000-0xbfff
+     */
+    protected int readUnmapped(int address) {
+        if (mappedRTCReg != 0 && address >= 0xa000 && address < 0xc000) {
+            return latched[mappedRTCReg - 0x8];
+        }
+        return super.readUnmapped(address);
     }
 
-    public byte[] saveState() {
-        byte[] state = new byte[ramBanks.length + STATE_LEN];
-        MemCopyUtil.copyArray(ramBanks, 0, state, 0, ramBanks.length);
-        state[ramBanks.length] = (byte)(currentRAmBank & 0xff);
-        state[ramBanks.length + 1] = (byte)(currentROmBank & 0xff);
-        state[ramBanks.length + 2] = (byte)(ramEnabled ? 1 : 0);
-        return state;
+    /**
+     * Sets the counting rtc register mapped at 0xa000-0xbfff,
+     * writing the seconds restarts the current second
+     *
+     * @param address to write to
+     * @param data to write
+     */
+    protected void writeUnmapped(int address, int data) {
+        if (mappedRTCReg != 0 && address >= 0xa000 && address < 0xc000) {
+            updateClock();
+            int register = mappedRTCReg - 0x8;
+            rtc[register] = data & RTC_MASKS[register];
+            if (register == RTC_S) {
+                rtcSubCycles = 0;
+            }
+        }
     }
 
+    /**
+     * writing 0 then 1 copies the counting registers
+     * into the ones the game reads
+     *
+     * @param data written to 0x6000-0x7fff
+     */
     private void latchClock(int data) {
         if (data == 0x0) {
             latchOnOne = true;
             return;
         }
         if (data == 0x1 && latchOnOne) {
-            LocalDateTime date = LocalDateTime.now();
-            rtc_DL = date.getDayOfYear() & 0xff;
-            rtc_H = date.getHour();
-            rtc_M = date.getMinute();
-            rtc_S = date.getSecond();
+            updateClock();
+            System.arraycopy(rtc, 0, latched, 0, RTC_REGISTERS);
         }
+        latchOnOne = false;
+    }
 
+    /**
+     * Counts the cycles since the registers were last brought
+     * up to date, unless the clock is halted
+     */
+    private void updateClock() {
+        long now = clock.getAsLong();
+        long elapsed = now - rtcCycle;
+        rtcCycle = now;
+        if ((rtc[RTC_DH] & HALT) != 0 || elapsed <= 0) {
+            return;
+        }
+        long cycles = rtcSubCycles + elapsed;
+        rtcSubCycles = (int)(cycles % CYCLES_PER_SECOND);
+        advanceClock(cycles / CYCLES_PER_SECOND);
+    }
 
-        latchOnOne = false;
+    /**
+     * Adds seconds to the counting registers, a day counter
+     * past 511 wraps and sets the day carry bit
+     *
+     * @param seconds to add
+     */
+    private void advanceClock(long seconds) {
+        long total = rtc[RTC_S] + seconds;
+        rtc[RTC_S] = (int)(total % 60);
+        total = rtc[RTC_M] + total / 60;
+        rtc[RTC_M] = (int)(total % 60);
+        total = rtc[RTC_H] + total / 60;
+        rtc[RTC_H] = (int)(total % 24);
+        long days = (((rtc[RTC_DH] & DAY_HIGH) << 8) | rtc[RTC_DL]) + total / 24;
+        if (days > 0x1ff) {
+            rtc[RTC_DH] |= DAY_CARRY;
+            days &= 0x1ff;
+        }
+        rtc[RTC_DL] = (int)(days & 0xff);
+        rtc[RTC_DH] = (rtc[RTC_DH] & ~DAY_HIGH) | (int)(days >> 8);
+    }
+
+    /**
+     * @param cycles emulated clock cycles since power on
+     */
+    public void setClock(LongSupplier cycles) {
+        updateClock();
+        clock = cycles;
+        rtcCycle = clock.getAsLong();
+    }
+
+    /**
+     * Moves the clock on by the wall clock time since the
+     * loaded state was saved, as if the cartridge's battery
+     * had kept it running. Only once per loaded state
+     */
+    public void resumeClock() {
+        if (savedWallTime == 0) {
+            return;
+        }
+        long seconds = (System.currentTimeMillis() - savedWallTime) / 1000;
+        savedWallTime = 0;
+        updateClock();
+        if (seconds > 0 && (rtc[RTC_DH] & HALT) == 0) {
+            advanceClock(seconds);
+        }
+    }
+
+    public int snapshotSize() {
+        return ((ram == null) ? 0 : ram.length) + SNAPSHOT_STATE_LEN;
+    }
+
+    public void saveSnapshot(ByteBuffer snapshot) {
+        if (ram != null) {
+            snapshot.put(ram);
+        }
+        snapshot.put((byte)currentRAmBank);
+        snapshot.put((byte)currentROmBank);
+        snapshot.put((byte)((ramEnabled ? 1 : 0) | (rtcEnabled ? 2 : 0) | (latchOnOne ? 4 : 0)));
+        snapshot.put((byte)mappedRTCReg);
+        for (int i = 0; i < RTC_REGISTERS; ++i) {
+            snapshot.put((byte)rtc[i]);
+            snapshot.put((byte)latched[i]);
+        }
+        snapshot.putLong(rtcCycle);
+        snapshot.putInt(rtcSubCycles);
+    }
+
+    public void loadSnapshot(ByteBuffer snapshot) {
+        if (ram != null) {
+            snapshot.get(ram);
+        }
+        currentRAmBank = Byte.toUnsignedInt(snapshot.get());
+        currentROmBank = Byte.toUnsignedInt(snapshot.get());
+        int flags = snapshot.get();
+        ramEnabled = (flags & 1) != 0;
+        rtcEnabled = (flags & 2) != 0;
+        latchOnOne = (flags & 4) != 0;
+        mappedRTCReg = Byte.toUnsignedInt(snapshot.get());
+        for (int i = 0; i < RTC_REGISTERS; ++i) {
+            rtc[i] = Byte.toUnsignedInt(snapshot.get());
+            latched[i] = Byte.toUnsignedInt(snapshot.get());
+        }
+        rtcCycle = snapshot.getLong();
+        rtcSubCycles = snapshot.getInt();
+        mapBanks();
+    }
+
+    /**
+     * the clock is saved as of now, with the wall clock
+     * time for resumeClock()
+     *
+     * @param buf to load from
+     */
+    public void loadState(byte[] buf) {
+        int length = (ram == null) ? 0 : ram.length;
+        if (ram != null) {
+            System.arraycopy(buf, 0, ram, 0, length);
+        }
+        currentRAmBank = Byte.toUnsignedInt(buf[length]);
+        currentROmBank = Byte.toUnsignedInt(buf[length + 1]);
+        ramEnabled = Byte.toUnsignedInt(buf[length + 2]) == 1;
+        rtcEnabled = Byte.toUnsignedInt(buf[length + 3]) == 1;
+        latchOnOne = buf[length + 4] == 1;
+        mappedRTCReg = Byte.toUnsignedInt(buf[length + 5]);
+        ByteBuffer clockState = ByteBuffer.wrap(buf, length + 6, 2 * RTC_REGISTERS + 4 + 8);
+        for (int i = 0; i < RTC_REGISTERS; ++i) {
+            rtc[i] = Byte.toUnsignedInt(clockState.get());
+            latched[i] = Byte.toUnsignedInt(clockState.get());
+        }
+        rtcSubCycles = clockState.getInt();
+        savedWallTime = clockState.getLong();
+        rtcCycle = clock.getAsLong();
+        mapBanks();
+        System.err.println("loaded state");
+    }
+
+    public byte[] saveState() {
+        int length = (ram == null) ? 0 : ram.length;
+        updateClock();
+        byte[] state = new byte[length + STATE_LEN];
+        if (ram != null) {
+            System.arraycopy(ram, 0, state, 0, length);
+        }
+        state[length] = (byte)(currentRAmBank & 0xff);
+        state[length + 1] = (byte)(currentROmBank & 0xff);
+        state[length + 2] = (byte)(ramEnabled ? 1 : 0);
+        state[length + 3] = (byte)(rtcEnabled ? 1 : 0);
+        state[length + 4] = (byte)(latchOnOne ? 1 : 0);
+        state[length + 5] = (byte)mappedRTCReg;
+        ByteBuffer clockState = ByteBuffer.wrap(state, length + 6, 2 * RTC_REGISTERS + 4 + 8);
+        for (int i = 0; i < RTC_REGISTERS; ++i) {
+            clockState.put((byte)rtc[i]);
+            clockState.put((byte)latched[i]);
+        }
+        clockState.putInt(rtcSubCycles);
+        clockState.putLong(System.currentTimeMillis());
+        return state;
     }
 }
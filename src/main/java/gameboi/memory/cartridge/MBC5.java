@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory.cartridge;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Implementation of MBC5 cartridge chip
+ *
+ * 9 bit rom bank (bank 0 can be mapped at 0x4000 too) and
+ * up to 16 ram banks, used by most gbc games
+ *
+ * @author tomis007
+ */
+public class MBC5 extends Mapper {
+
+    private int romBankLow;
+    private int romBankHigh;
+    private int currentRAmBank;
+    private boolean ramEnabled;
+    //rumble carts drive the motor with bit 3 of the ram bank
+    private final int ramBankMask;
+    private static final int STATE_LEN = 4;
+
+    /**
+     * @param cartridge ROM to initialize from
+     */
+    public MBC5(byte[] cartridge) {
+        super(cartridge, allocateRam(Byte.toUnsignedInt(cartridge[0x149])));
+        int type = Byte.toUnsignedInt(cartridge[0x147]);
+        ramBankMask = (type >= 0x1c) ? 0x7 : 0xf;
+        romBankLow = 1;
+        romBankHigh = 0;
+        currentRAmBank = 0;
+        ramEnabled = false;
+        mapBanks();
+    }
+
+    /**
+     * 0x0000-0x1fff ram enable, 0x2000-0x2fff low 8 bits of the
+     * rom bank, 0x3000-0x3fff its bit 8, 0x4000-0x5fff ram bank
+     *
+     * @param address to write to
+     * @param data to write
+     */
+    protected void writeRegister(int address, int data) {
+        if (address < 0x2000) {
+            ramEnabled = ((data & 0xf) == 0xa);
+        } else if (address < 0x3000) {
+            romBankLow = data;
+        } else if (address < 0x4000) {
+            romBankHigh = data & 0x1;
+        } else if (address < 0x6000) {
+            currentRAmBank = data & ramBankMask;
+        }
+    }
+
+    protected boolean isRamEnabled() {
+        return ramEnabled;
+    }
+
+    protected void mapBanks() {
+        mapRom((romBankHigh << 8) | romBankLow);
+        mapRam(ramEnabled, currentRAmBank);
+    }
+
+    private int ramLength() {
+        return (ram == null) ? 0 : ram.length;
+    }
+
+    public int snapshotSize() {
+        return ramLength() + STATE_LEN;
+    }
+
+    public void saveSnapshot(ByteBuffer snapshot) {
+        if (ram != null) {
+            snapshot.put(ram);
+        }
+        snapshot.put((byte)romBankLow);
+        snapshot.put((byte)romBankHigh);
+        snapshot.put((byte)currentRAmBank);
+        snapshot.put((byte)(ramEnabled ? 1 : 0));
+    }
+
+    public void loadSnapshot(ByteBuffer snapshot) {
+        if (ram != null) {
+            snapshot.get(ram);
+        }
+        romBankLow = Byte.toUnsignedInt(snapshot.get());
+        romBankHigh = Byte.toUnsignedInt(snapshot.get());
+        currentRAmBank = Byte.toUnsignedInt(snapshot.get());
+        ramEnabled = snapshot.get() == 1;
+        mapBanks();
+    }
+
+    public byte[] saveState() {
+        int length = ramLength();
+        byte[] state = new byte[length + STATE_LEN];
+        if (ram != null) {
+            System.arraycopy(ram, 0, state, 0, length);
+        }
+        state[length] = (byte)romBankLow;
+        state[length + 1] = (byte)romBankHigh;
+        state[length + 2] = (byte)currentRAmBank;
+        state[length + 3] = (byte)(ramEnabled ? 1 : 0);
+        return state;
+    }
+
+    public void loadState(byte[] buf) {
+        int length = ramLength();
+        if (ram != null) {
+            System.arraycopy(buf, 0, ram, 0, length);
+        }
+        romBankLow = Byte.toUnsignedInt(buf[length]);
+        romBankHigh = Byte.toUnsignedInt(buf[length + 1]);
+        currentRAmBank = Byte.toUnsignedInt(buf[length + 2]);
+        ramEnabled = buf[length + 3] == 1;
+        mapBanks();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory.cartridge;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+/**
+ * Common base of the cartridge memory bank controllers
+ *
+ * The rom window at 0x4000-0x7fff and the ram window at
+ * 0xa000-0xbfff are kept as base offsets into the rom and ram
+ * arrays, recomputed by mapBanks() after every write to the bank
+ * registers, so a read is an array access at address + base.
+ * Bank numbers wrap around the banks the cartridge has.
+ *
+ * Subclasses decode the register writes (writeRegister) and say
+ * which banks are mapped (mapBanks)
+ *
+ * Battery backed ram can be kept in a save file (attachBattery),
+ * written in the background whenever the game disables ram that
+ * was enabled
+ * and when flushBattery() is called
+ *
+ * @author tomis007
+ */
+public abstract class Mapper implements MemoryBank {
+    protected static final int ROM_BANK_SIZE = 0x4000;
+    protected static final int RAM_BANK_SIZE = 0x2000;
+
+    //whole rom, bank n at n * ROM_BANK_SIZE
+    protected final byte[] rom;
+    //external ram, null if the cartridge has none
+    protected final byte[] ram;
+
+    private final int romBankCount;
+    //rom bank mapped at 0x4000, and what to add to an address there for its index in rom
+    private int romBank;
+    private int romBase;
+    //if 0xa000-0xbfff is plain ram, and what to add to an address there for its index in ram
+    private boolean ramMapped;
+    private int ramBase;
+    //save file of battery backed ram, null if not attached
+    private BatteryRam battery;
+
+    /**
+     * @param rom cartridge contents
+     * @param ram external ram, null for none
+     */
+    protected Mapper(byte[] rom, byte[] ram) {
+        this.rom = rom;
+        this.ram = ram;
+        romBankCount = Math.max(1, rom.length / ROM_BANK_SIZE);
+        romBank = 1;
+        romBase = 0;
+        ramMapped = false;
+        ramBase = -0xa000;
+    }
+
+    /**
+     * Allocates the external ram described by the
+     * cartridge header byte at 0x149
+     *
+     * @param sizeCode header byte at 0x149
+     * @return ram, null if the cartridge has none
+     */
+    protected static byte[] allocateRam(int sizeCode) {
+        switch (sizeCode) {
+            case 0:
+                return null;
+            case 1:
+                return new byte[0x800];
+            case 2:
+                return new byte[0x2000];
+            case 3:
+                return new byte[0x8000];
+            case 4:
+                return new byte[0x20000];
+            case 5:
+                return new byte[0x10000];
+            default:
+                System.err.println("invalid ram bank size: " + sizeCode);
+                System.err.println("will probably crash soon");
+                return new byte[0x800];
+        }
+    }
+
+    /**
+     * Cartridge types (header byte 0x147) that keep their
+     * ram powered by a battery
+     *
+     * @return true if the cartridge has battery backed ram
+     */
+    public boolean hasBattery() {
+        switch (Byte.toUnsignedInt(rom[0x147])) {
+            case 0x03:
+            case 0x06:
+            case 0x09:
+            case 0x0d:
+            case 0x0f:
+            case 0x10:
+            case 0x13:
+            case 0x1b:
+            case 0x1e:
+            case 0xff:
+                return ram != null;
+            default:
+                return false;
+        }
+    }
+
+    public void attachBattery(Path file) throws IOException {
+        if (hasBattery() && battery == null) {
+            battery = new BatteryRam(file, ram);
+        }
+    }
+
+    public void flushBattery() {
+        if (battery != null) {
+            battery.flush();
+        }
+    }
+
+    public void closeBattery() {
+        if (battery != null) {
+            battery.close();
+            battery = null;
+        }
+    }
+
+    public void setClock(LongSupplier cycles) {
+    }
+
+    public void resumeClock() {
+    }
+
+    /**
+     * Decodes a write to the bank registers (0x0000-0x7fff),
+     * mapBanks() is called after it
+     *
+     * @param address written to
+     * @param data written, 0-0xff
+     */
+    protected abstract void writeRegister(int address, int data);
+
+    /**
+     * Maps the banks selected by the registers,
+     * calling mapRom and mapRam
+     */
+    protected abstract void mapBanks();
+
+    /**
+     * @return true if the registers have the ram enabled
+     */
+    protected abstract boolean isRamEnabled();
+
+    /**
+     * @param bank rom bank to map at 0x4000-0x7fff, wraps around
+     *     the banks the rom has
+     */
+    protected final void mapRom(int bank) {
+        romBank = bank % romBankCount;
+        romBase = romBank * ROM_BANK_SIZE - 0x4000;
+    }
+
+    /**
+     * @param enabled true if 0xa000-0xbfff reads and writes the ram
+     * @param bank ram bank to map there, wraps around the banks
+     *     the ram has
+     */
+    protected final void mapRam(boolean enabled, int bank) {
+        ramMapped = enabled && ram != null;
+        if (ramMapped) {
+            bank %= Math.max(1, ram.length / RAM_BANK_SIZE);
+            ramBase = bank * RAM_BANK_SIZE - 0xa000;
+        }
+    }
+
+    public int readByte(int address) {
+        //bank 0 always here
+        if (address < 0x4000 && address >= 0) {
+            return Byte.toUnsignedInt(rom[address]);
+        } else if (address < 0x8000 && address >= 0) {
+            return Byte.toUnsignedInt(rom[address + romBase]);
+        } else if (ramMapped && address >= 0xa000 && address < 0xc000) {
+            return Byte.toUnsignedInt(ram[address + ramBase]);
+        }
+        return readUnmapped(address);
+    }
+
+    public void writeByte(int address, int data) {
+        data &= 0xff;
+        if (address < 0x8000 && address >= 0) {
+            boolean enabled = isRamEnabled();
+            writeRegister(address, data);
+            mapBanks();
+            if (enabled && !isRamEnabled() && battery != null) {
+                //the game is done with its ram for now
+                battery.flush();
+            }
+        } else if (ramMapped && address >= 0xa000 && address < 0xc000) {
+            ram[address + ramBase] = (byte)data;
+        } else {
+            writeUnmapped(address, data);
+        }
+    }
+
+    /**
+     * Read outside the rom and mapped ram (disabled ram, no ram,
+     * cartridge registers at 0xa000-0xbfff)
+     *
+     * @param address to read from
+     * @return byte read
+     */
+    protected int readUnmapped(int address) {
+        System.err.println("invalid read from " + getClass().getSimpleName()
+                + ": 0x" + Integer.toHexString(address));
+        return -1;
+    }
+
+    /**
+     * Write outside the registers and mapped ram, ignored
+     *
+     * @param address to write to
+     * @param data to write
+     */
+    protected void writeUnmapped(int address, int data) {
+    }
+
+    /**
+     * ROM bank mapped at 0x4000-0x7fff, matches readByte()
+     *
+     * @return current rom bank
+     */
+    public int getRomBank() {
+        return romBank;
+    }
+
+    public byte[] getRom() {
+        return rom;
+    }
+
+    /**
+     * @return ram while 0xa000-0xbfff is mapped to it, matches readByte()
+     */
+    public byte[] getRam() {
+        return ramMapped ? ram : null;
+    }
+
+    public int getRamOffset() {
+        return ramBase + 0xa000;
+    }
+}
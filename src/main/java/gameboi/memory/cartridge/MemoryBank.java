@@ -23,6 +23,11 @@
  */
 package main.java.gameboi.memory.cartridge;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
 /**
  * interface for cartridge memory bank
  */
@@ -49,6 +54,35 @@ public interface MemoryBank {
      */
     void writeByte(int address, int data);
 
+    /**
+     * ROM bank currently mapped at 0x4000-0x7fff
+     *
+     * @return rom bank number
+     */
+    int getRomBank();
+
+    /**
+     * the whole rom, bank n starts at n * 0x4000
+     * (for mapping banks straight into the address space)
+     *
+     * @return rom contents
+     */
+    byte[] getRom();
+
+    /**
+     * External RAM, if reads and writes at 0xa000-0xbfff
+     * are plain accesses to it in the current state
+     *
+     * @return ram, or null if they have to go through
+     *     readByte/writeByte (no ram, disabled)
+     */
+    byte[] getRam();
+
+    /**
+     * @return index in getRam() of the byte mapped at 0xa000
+     */
+    int getRamOffset();
+
     /**
      *  save the memory bank state
      *
@@ -65,6 +99,60 @@ public interface MemoryBank {
      */
     void loadState(byte[] buf);
 
+    /**
+     * @return bytes saveSnapshot() writes, fixed per cartridge
+     */
+    int snapshotSize();
+
+    /**
+     * write the complete bank state (registers and ram)
+     *
+     * @param snapshot to write snapshotSize() bytes to at its position
+     */
+    void saveSnapshot(ByteBuffer snapshot);
+
+    /**
+     * Backs battery ram with a save file, loading what the file
+     * holds. Does nothing for cartridges without battery ram
+     *
+     * @param file .sav file to keep the ram in
+     * @throws IOException if the file can't be opened
+     */
+    void attachBattery(Path file) throws IOException;
+
+    /**
+     * Queues a write of battery ram to its save file without
+     * waiting for it, if there is one
+     */
+    void flushBattery();
+
+    /**
+     * Writes battery ram to its save file, if there is one,
+     * and closes the file
+     */
+    void closeBattery();
+
+    /**
+     * Source of time for a cartridge real time clock,
+     * ignored by cartridges without one
+     *
+     * @param cycles emulated clock cycles since power on
+     */
+    void setClock(LongSupplier cycles);
+
+    /**
+     * Moves a real time clock on by the wall clock time since
+     * the loaded state was saved. Does nothing without one
+     */
+    void resumeClock();
+
+    /**
+     * restore the state written by saveSnapshot()
+     *
+     * @param snapshot to read snapshotSize() bytes from at its position
+     */
+    void loadSnapshot(ByteBuffer snapshot);
+
 
 
 }
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.memory.cartridge;
+
+/**
+ * Thrown for a rom whose cartridge type (header byte 0x147)
+ * has no memory bank controller implementation
+ *
+ * @author tomis007
+ */
+public class UnsupportedCartridgeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int cartridgeType;
+
+    /**
+     * @param cartridgeType header byte at 0x147
+     */
+    public UnsupportedCartridgeException(int cartridgeType) {
+        super("Sorry, this MBC is not implemented yet: 0x" + Integer.toHexString(cartridgeType));
+        this.cartridgeType = cartridgeType;
+    }
+
+    /**
+     * @return header byte at 0x147 of the rom
+     */
+    public int getCartridgeType() {
+        return cartridgeType;
+    }
+}
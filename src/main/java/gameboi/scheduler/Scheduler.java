@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package main.java.gameboi.scheduler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Central clock of the emulator
+ *
+ * <p>
+ * Keeps a 64 bit count of clock cycles and a priority queue of
+ * events (timer overflow, DIV tick, lcd mode change) ordered by the
+ * cycle they are due. The cpu advances the clock after every
+ * instruction, which is a single compare against the earliest due
+ * time until an event is actually due, so the timers and the gpu cost
+ * nothing between their events.
+ *
+ * <p>
+ * Every kind of event has a fixed slot (id) and is scheduled at most
+ * once, rescheduling moves it in the queue. Events are fired at the
+ * first instruction boundary at or after their due time, in due order.
+ *
+ * @author tomis007
+ */
+public final class Scheduler {
+    //event ids
+    public static final int DIVIDER = 0;
+    public static final int TIMER = 1;
+    public static final int LCD = 2;
+    private static final int EVENT_COUNT = 3;
+
+    //due time when nothing is scheduled
+    private static final long NEVER = Long.MAX_VALUE;
+
+    //bytes saveSnapshot writes: clock, queue size, queue and due times
+    public static final int SNAPSHOT_SIZE = 8 + 4 + EVENT_COUNT * (4 + 8);
+
+    private long now;
+    //due time of the first event in the queue
+    private long nextEventTime;
+
+    private final Event[] events;
+    private final long[] due;
+    //binary min heap of scheduled event ids, ordered by due
+    private final int[] heap;
+    //index of each event in heap, -1 if not scheduled
+    private final int[] position;
+    private int size;
+
+    public Scheduler() {
+        events = new Event[EVENT_COUNT];
+        due = new long[EVENT_COUNT];
+        heap = new int[EVENT_COUNT];
+        position = new int[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; ++i) {
+            position[i] = -1;
+        }
+        now = 0;
+        nextEventTime = NEVER;
+    }
+
+    /**
+     * Sets the handler for an event id
+     *
+     * @param id event slot (DIVIDER, TIMER, LCD)
+     * @param event to run when the slot is due
+     */
+    public void setEvent(int id, Event event) {
+        events[id] = event;
+    }
+
+    /**
+     * @return clock cycles since power on
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * @return due time of the next event, Long.MAX_VALUE if none
+     */
+    public long nextEventTime() {
+        return nextEventTime;
+    }
+
+    /**
+     * Schedules (or reschedules) an event
+     *
+     * @param id event slot
+     * @param time clock cycle it is due, times in the past fire
+     *     at the next instruction boundary
+     */
+    public void schedule(int id, long time) {
+        due[id] = time;
+        if (position[id] < 0) {
+            heap[size] = id;
+            position[id] = size;
+            size++;
+            siftUp(size - 1);
+        } else {
+            siftUp(position[id]);
+            siftDown(position[id]);
+        }
+        nextEventTime = due[heap[0]];
+    }
+
+    /**
+     * Removes an event from the queue, if scheduled
+     *
+     * @param id event slot
+     */
+    public void cancel(int id) {
+        int index = position[id];
+        if (index < 0) {
+            return;
+        }
+        size--;
+        position[id] = -1;
+        if (index != size) {
+            //fill the hole with the last event
+            int last = heap[size];
+            heap[index] = last;
+            position[last] = index;
+            siftUp(index);
+            siftDown(position[last]);
+        }
+        nextEventTime = (size == 0) ? NEVER : due[heap[0]];
+    }
+
+    /**
+     * @param id event slot
+     * @return true if the event is in the queue
+     */
+    public boolean isScheduled(int id) {
+        return position[id] >= 0;
+    }
+
+    /**
+     * @param id event slot
+     * @return clock cycle the event is due (only valid if scheduled)
+     */
+    public long dueTime(int id) {
+        return due[id];
+    }
+
+    /**
+     * Advances the clock after an instruction and fires
+     * every event that is now due
+     *
+     * @param cycles taken by the instruction
+     * @return true if any event fired
+     */
+    public boolean advance(int cycles) {
+        now += cycles;
+        if (now < nextEventTime) {
+            return false;
+        }
+        do {
+            int id = heap[0];
+            long time = due[id];
+            cancel(id);
+            events[id].fire(time);
+        } while (now >= nextEventTime);
+        return true;
+    }
+
+    /**
+     * Writes the clock and the queue (in heap order, so events due
+     * at the same time still fire in the same order) to snapshot
+     *
+     * @param snapshot to write SNAPSHOT_SIZE bytes to at its position
+     */
+    public void saveSnapshot(ByteBuffer snapshot) {
+        snapshot.putLong(now);
+        snapshot.putInt(size);
+        for (int i = 0; i < EVENT_COUNT; ++i) {
+            snapshot.putInt(heap[i]);
+            snapshot.putLong(due[i]);
+        }
+    }
+
+    /**
+     * Restores the clock and the queue from saveSnapshot,
+     * the event handlers stay as they are
+     *
+     * @param snapshot to read SNAPSHOT_SIZE bytes from at its position
+     */
+    public void loadSnapshot(ByteBuffer snapshot) {
+        now = snapshot.getLong();
+        size = snapshot.getInt();
+        for (int i = 0; i < EVENT_COUNT; ++i) {
+            heap[i] = snapshot.getInt();
+            due[i] = snapshot.getLong();
+            position[i] = -1;
+        }
+        for (int i = 0; i < size; ++i) {
+            position[heap[i]] = i;
+        }
+        nextEventTime = (size == 0) ? NEVER : due[heap[0]];
+    }
+
+    private void siftUp(int index) {
+        int id = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (due[heap[parent]] <= due[id]) {
+                break;
+            }
+            heap[index] = heap[parent];
+            position[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = id;
+        position[id] = index;
+    }
+
+    private void siftDown(int index) {
+        int id = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && due[heap[child + 1]] < due[heap[child]]) {
+                child++;
+            }
+            if (due[heap[child]] >= due[id]) {
+                break;
+            }
+            heap[index] = heap[child];
+            position[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = id;
+        position[id] = index;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 tomis007.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test.java.gameboi.tools;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Build time check that no compiled method is too large for the JIT
+ *
+ * <p>
+ * HotSpot refuses to compile methods whose bytecode is longer than
+ * HugeMethodLimit (8000 bytes) and leaves them running in the
+ * interpreter. Run from the maven build (process-test-classes phase,
+ * on the test classpath so it isn't shipped with the emulator) over
+ * the compiled classes, failing the build if a method is over the limit.
+ *
+ * <p>
+ * usage: MethodSizeCheck classesDir [limit]
+ *
+ * @author tomis007
+ */
+public class MethodSizeCheck {
+    private static final int DEFAULT_LIMIT = 8000;
+
+    //constant pool tags
+    private static final int UTF8 = 1;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+
+    /**
+     * checks every class file under argv[0]
+     *
+     * @param argv classes directory and optional bytecode limit
+     * @throws IOException if the classes can't be read
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1) {
+            throw new IllegalArgumentException("usage: MethodSizeCheck classesDir [limit]");
+        }
+        int limit = (argv.length > 1) ? Integer.parseInt(argv[1]) : DEFAULT_LIMIT;
+
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(Paths.get(argv[0]))) {
+            classFiles = files.filter(f -> f.toString().endsWith(".class"))
+                              .collect(Collectors.toList());
+        }
+
+        List<String> tooLarge = new ArrayList<>();
+        for (Path classFile : classFiles) {
+            tooLarge.addAll(checkClass(classFile, limit));
+        }
+        if (!tooLarge.isEmpty()) {
+            for (String method : tooLarge) {
+                System.err.println(method);
+            }
+            throw new IllegalStateException(tooLarge.size()
+                    + " method(s) over the JIT limit of " + limit + " bytes");
+        }
+        System.out.println("MethodSizeCheck: " + classFiles.size()
+                + " classes, no method over " + limit + " bytes");
+    }
+
+    /**
+     * Reads a class file, returns the methods whose code
+     * length is over limit
+     *
+     * @param classFile to check
+     * @param limit max code length in bytes
+     * @return descriptions of the methods over limit
+     * @throws IOException on read error
+     */
+    private static List<String> checkClass(Path classFile, int limit) throws IOException {
+        List<String> tooLarge = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(classFile))) {
+            if (in.readInt() != 0xcafebabe) {
+                return tooLarge;
+            }
+            in.readUnsignedShort(); //minor version
+            in.readUnsignedShort(); //major version
+
+            String[] utf8 = readConstantPool(in);
+            in.readUnsignedShort(); //access flags
+            in.readUnsignedShort(); //this class
+            in.readUnsignedShort(); //super class
+            in.skipBytes(2 * in.readUnsignedShort()); //interfaces
+
+            int fields = in.readUnsignedShort();
+            for (int i = 0; i < fields; ++i) {
+                in.skipBytes(6);
+                skipAttributes(in);
+            }
+
+            int methods = in.readUnsignedShort();
+            for (int i = 0; i < methods; ++i) {
+                in.readUnsignedShort(); //access flags
+                String name = utf8[in.readUnsignedShort()];
+                String descriptor = utf8[in.readUnsignedShort()];
+                int attributes = in.readUnsignedShort();
+                for (int j = 0; j < attributes; ++j) {
+                    String attrName = utf8[in.readUnsignedShort()];
+                    int length = in.readInt();
+                    if ("Code".equals(attrName)) {
+                        in.skipBytes(4); //max stack, max locals
+                        int codeLength = in.readInt();
+                        if (codeLength > limit) {
+                            tooLarge.add(classFile.getFileName() + " " + name + descriptor
+                                    + ": " + codeLength + " bytes");
+                        }
+                        in.skipBytes(length - 8);
+                    } else {
+                        in.skipBytes(length);
+                    }
+                }
+            }
+        }
+        return tooLarge;
+    }
+
+    /**
+     * Reads the constant pool, keeping only the utf8 entries
+     *
+     * @param in positioned at the constant pool count
+     * @return utf8 entries by constant pool index
+     * @throws IOException on read error
+     */
+    private static String[] readConstantPool(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        for (int i = 1; i < count; ++i) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case UTF8:
+                    utf8[i] = in.readUTF();
+                    break;
+                case LONG:
+                case DOUBLE:
+                    in.skipBytes(8);
+                    ++i; //takes two entries
+                    break;
+                case 3: case 4: case 12: case 17: case 18: //int, float, nameandtype, (invoke)dynamic
+                case 9: case 10: case 11: //field, method, interface method refs
+                    in.skipBytes(4);
+                    break;
+                case 15: //method handle
+                    in.skipBytes(3);
+                    break;
+                case 7: case 8: case 16: case 19: case 20: //class, string, method type, module, package
+                    in.skipBytes(2);
+                    break;
+                default:
+                    throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+        return utf8;
+    }
+
+    /**
+     * skips over an attribute table
+     *
+     * @param in positioned at the attribute count
+     * @throws IOException on read error
+     */
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int attributes = in.readUnsignedShort();
+        for (int i = 0; i < attributes; ++i) {
+            in.readUnsignedShort();
+            in.skipBytes(in.readInt());
+        }
+    }
+}